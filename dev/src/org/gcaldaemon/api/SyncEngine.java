@@ -15,12 +15,12 @@ package org.gcaldaemon.api;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.Properties;
 
 import org.gcaldaemon.core.CachedCalendar;
 import org.gcaldaemon.core.Configurator;
+import org.gcaldaemon.core.FileUtilities;
 import org.gcaldaemon.core.GCalUtilities;
 import org.gcaldaemon.core.Request;
 import org.gcaldaemon.core.StringUtils;
@@ -406,16 +406,7 @@ public final class SyncEngine {
 		// Load local calendar file
 		byte[] bytes = null;
 		if (localCalendar.isFile()) {
-			RandomAccessFile file = null;
-			try {
-				file = new RandomAccessFile(localCalendar, "r");
-				bytes = new byte[(int) localCalendar.length()];
-				file.readFully(bytes);
-			} finally {
-				if (file != null) {
-					file.close();
-				}
-			}
+			bytes = FileUtilities.readBytes(localCalendar);
 		}
 
 		// Create (or reinitialize) the cached instance
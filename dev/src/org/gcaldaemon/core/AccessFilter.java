@@ -0,0 +1,375 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core;
+
+import java.net.InetAddress;
+import java.util.LinkedList;
+import java.util.StringTokenizer;
+
+/**
+ * Precompiled TCP/IP access control list of the network listeners. Address
+ * patterns are converted to numeric rules (masks and CIDR blocks), so they are
+ * matched without String conversion. Sample address patterns:
+ *
+ * <li>127.0.0.1
+ * <li>234.11.*
+ * <li>*.14.13
+ * <li>192.168.0.0/16
+ * <li>fe80::/10
+ *
+ * Hostnames are resolved by a shared, time-limited reverse DNS cache.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+public final class AccessFilter {
+
+	// --- CONSTANTS ---
+
+	private static final String DELIMITERS = ", \t;|";
+	private static final String LOCALHOST = "localhost";
+
+	// --- HOSTNAME RULES ---
+
+	private final FilterMask[] hosts;
+
+	// --- ADDRESS RULES ---
+
+	private final boolean addressRestricted;
+	private final int[] ipv4Values;
+	private final int[] ipv4Masks;
+	private final byte[][] ipv6Values;
+	private final byte[][] ipv6Masks;
+	private final FilterMask[] addressMasks;
+
+	// --- CONSTRUCTOR ---
+
+	private AccessFilter(FilterMask[] hosts, boolean addressRestricted,
+			LinkedList ipv4Rules, LinkedList ipv6Rules, LinkedList masks) {
+		this.hosts = hosts;
+		this.addressRestricted = addressRestricted;
+		ipv4Values = new int[ipv4Rules.size()];
+		ipv4Masks = new int[ipv4Values.length];
+		int i = 0;
+		while (!ipv4Rules.isEmpty()) {
+			int[] rule = (int[]) ipv4Rules.removeFirst();
+			ipv4Values[i] = rule[0];
+			ipv4Masks[i++] = rule[1];
+		}
+		ipv6Values = new byte[ipv6Rules.size()][];
+		ipv6Masks = new byte[ipv6Values.length][];
+		i = 0;
+		while (!ipv6Rules.isEmpty()) {
+			byte[][] rule = (byte[][]) ipv6Rules.removeFirst();
+			ipv6Values[i] = rule[0];
+			ipv6Masks[i++] = rule[1];
+		}
+		if (masks.isEmpty()) {
+			addressMasks = null;
+		} else {
+			addressMasks = new FilterMask[masks.size()];
+			masks.toArray(addressMasks);
+		}
+	}
+
+	// --- RULE COMPILER ---
+
+	/**
+	 * Compiles the hostname and address lists.
+	 *
+	 * @param hostList
+	 *            list of allowed hostnames (or null)
+	 * @param addressList
+	 *            list of allowed addresses (or null)
+	 *
+	 * @return AccessFilter (or null, if the access is not restricted)
+	 */
+	public static final AccessFilter compile(String hostList,
+			String addressList) throws Exception {
+
+		// Compile hostname masks (lowercase)
+		FilterMask[] hosts = null;
+		if (hostList != null) {
+			hosts = StringUtils.splitMaskList(hostList.toLowerCase(), false);
+		}
+
+		// Compile address masks
+		LinkedList ipv4Rules = new LinkedList();
+		LinkedList ipv6Rules = new LinkedList();
+		LinkedList masks = new LinkedList();
+		boolean addressRestricted = false;
+		if (addressList != null && addressList.trim().length() != 0) {
+			StringTokenizer st = new StringTokenizer(addressList, DELIMITERS);
+			String pattern;
+			addressRestricted = true;
+			while (st.hasMoreTokens()) {
+				pattern = st.nextToken();
+				if (pattern.equals("*")) {
+					addressRestricted = false;
+					break;
+				}
+				if (pattern.indexOf(':') != -1) {
+					ipv6Rules.addLast(compileIPv6(pattern));
+					continue;
+				}
+				int[] rule = compileIPv4(pattern);
+				if (rule == null) {
+
+					// Irregular pattern (eg. '10.1*')
+					masks.addLast(new FilterMask(pattern, false));
+				} else {
+					ipv4Rules.addLast(rule);
+				}
+			}
+		}
+		if (hosts == null && !addressRestricted) {
+			return null;
+		}
+		if (!addressRestricted) {
+			ipv4Rules.clear();
+			ipv6Rules.clear();
+			masks.clear();
+		}
+		return new AccessFilter(hosts, addressRestricted, ipv4Rules,
+				ipv6Rules, masks);
+	}
+
+	private static final int[] compileIPv4(String pattern) {
+		String address = pattern;
+		int prefix = -1;
+		int i = pattern.indexOf('/');
+		if (i != -1) {
+
+			// CIDR block (eg. '192.168.0.0/16')
+			address = pattern.substring(0, i);
+			prefix = Integer.parseInt(pattern.substring(i + 1).trim());
+			if (prefix < 0 || prefix > 32) {
+				throw new IllegalArgumentException("Malformed CIDR block: "
+						+ pattern);
+			}
+		}
+		StringTokenizer st = new StringTokenizer(address, ".", true);
+		int[] octets = new int[4];
+		boolean[] jokers = new boolean[4];
+		int count = 0;
+		boolean dot = true;
+		String token;
+		while (st.hasMoreTokens()) {
+			token = st.nextToken();
+			if (token.equals(".")) {
+				if (dot) {
+					return null;
+				}
+				dot = true;
+				continue;
+			}
+			if (!dot || count == 4) {
+				return null;
+			}
+			dot = false;
+			if (token.equals("*")) {
+				jokers[count++] = true;
+				continue;
+			}
+			for (i = 0; i < token.length(); i++) {
+				if (!Character.isDigit(token.charAt(i))) {
+					return null;
+				}
+			}
+			if (token.length() == 0 || token.length() > 3) {
+				return null;
+			}
+			octets[count] = Integer.parseInt(token);
+			if (octets[count++] > 255) {
+				return null;
+			}
+		}
+		if (dot || count == 0) {
+			return null;
+		}
+		int value = 0;
+		int mask = 0;
+		if (prefix != -1) {
+			if (count != 4 || jokers[0] || jokers[1] || jokers[2] || jokers[3]) {
+				return null;
+			}
+			for (i = 0; i < 4; i++) {
+				value = (value << 8) | octets[i];
+			}
+			mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+			return new int[] { value & mask, mask };
+		}
+		if (jokers[0] && count > 1) {
+
+			// Suffix pattern (eg. '*.14.13'), the joker covers the leading
+			// octets
+			for (i = 1; i < count; i++) {
+				if (jokers[i]) {
+					return null;
+				}
+			}
+			int shift = 8 * (count - 2);
+			for (i = 1; i < count; i++, shift -= 8) {
+				value |= octets[i] << shift;
+				mask |= 0xFF << shift;
+			}
+			return new int[] { value, mask };
+		}
+		if (jokers[count - 1]) {
+
+			// Prefix pattern (eg. '234.11.*'), the joker covers the trailing
+			// octets
+			for (i = 0; i < count - 1; i++) {
+				if (jokers[i]) {
+					return null;
+				}
+			}
+			for (i = 0; i < count - 1; i++) {
+				value |= octets[i] << (24 - 8 * i);
+				mask |= 0xFF << (24 - 8 * i);
+			}
+			return new int[] { value, mask };
+		}
+		if (count != 4) {
+			return null;
+		}
+		for (i = 0; i < 4; i++) {
+			if (jokers[i]) {
+				return null;
+			}
+			value = (value << 8) | octets[i];
+		}
+		return new int[] { value, -1 };
+	}
+
+	private static final byte[][] compileIPv6(String pattern) throws Exception {
+		String address = pattern;
+		int prefix = 128;
+		int i = pattern.indexOf('/');
+		if (i != -1) {
+			address = pattern.substring(0, i);
+			prefix = Integer.parseInt(pattern.substring(i + 1).trim());
+		}
+		for (i = 0; i < address.length(); i++) {
+			if (Character.digit(address.charAt(i), 16) == -1
+					&& address.charAt(i) != ':' && address.charAt(i) != '.') {
+				throw new IllegalArgumentException("Malformed IPv6 address: "
+						+ pattern);
+			}
+		}
+
+		// Numeric address - no DNS lookup
+		byte[] value = InetAddress.getByName(address).getAddress();
+		if (value.length != 16 || prefix < 0 || prefix > 128) {
+			throw new IllegalArgumentException("Malformed IPv6 address: "
+					+ pattern);
+		}
+		byte[] mask = new byte[16];
+		for (i = 0; i < 16; i++) {
+			if (prefix >= 8) {
+				mask[i] = (byte) 0xFF;
+				prefix -= 8;
+			} else {
+				mask[i] = (byte) (0xFF << (8 - prefix));
+				prefix = 0;
+			}
+			value[i] &= mask[i];
+		}
+		return new byte[][] { value, mask };
+	}
+
+	// --- ACCESS CONTROL ---
+
+	/**
+	 * Verifies the remote address of a connection.
+	 *
+	 * @param address
+	 *            remote address
+	 *
+	 * @throws Exception
+	 *             forbidden hostname or IP-address
+	 */
+	public final void checkAccess(InetAddress address) throws Exception {
+		if (addressRestricted && !isAddressMatch(address)) {
+			throw new Exception("forbidden IP-address ("
+					+ address.getHostAddress() + ')');
+		}
+		if (hosts != null) {
+			String host = HostNameResolver.getInstance().getHostName(address);
+			if (host == null) {
+
+				// Lookup timed out (the client can retry later)
+				throw new Exception("unresolved hostname ("
+						+ address.getHostAddress() + ')');
+			}
+			if (!isHostMatch(host)) {
+				throw new Exception("forbidden hostname (" + host + ')');
+			}
+		}
+	}
+
+	private final boolean isAddressMatch(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		int i;
+		if (bytes.length == 4) {
+			int value = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+					| ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+			for (i = 0; i < ipv4Values.length; i++) {
+				if ((value & ipv4Masks[i]) == ipv4Values[i]) {
+					return true;
+				}
+			}
+		} else {
+			byte[] rule, mask;
+			int n;
+			for (i = 0; i < ipv6Values.length; i++) {
+				rule = ipv6Values[i];
+				mask = ipv6Masks[i];
+				for (n = 0; n < 16; n++) {
+					if ((bytes[n] & mask[n]) != rule[n]) {
+						break;
+					}
+				}
+				if (n == 16) {
+					return true;
+				}
+			}
+		}
+		if (addressMasks != null) {
+			String text = address.getHostAddress();
+			if (text == null || text.length() == 0) {
+				text = "127.0.0.1";
+			}
+			for (i = 0; i < addressMasks.length; i++) {
+				if (addressMasks[i].match(text)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private final boolean isHostMatch(String host) {
+		if (host.length() == 0) {
+			host = LOCALHOST;
+		}
+		for (int i = 0; i < hosts.length; i++) {
+			if (hosts[i].match(host)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
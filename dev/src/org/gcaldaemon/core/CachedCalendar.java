@@ -12,6 +12,9 @@
 //
 package org.gcaldaemon.core;
 
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
 /**
  * iCalendar modification container.
  * 
@@ -42,6 +45,21 @@ public final class CachedCalendar extends Request {
 	 */
 	String toDoBlock;
 
+	/**
+	 * Known changes (optional, single event modifications)
+	 */
+	VEvent[] changedEvents;
+
+	/**
+	 * Known removals (optional, single event modifications)
+	 */
+	VEvent[] removedEvents;
+
+	/**
+	 * Timezones of the changed events (optional)
+	 */
+	VTimeZone[] timeZones;
+
 	// --- VEVENT & VTODO CONCATENATOR ---
 
 	public final byte[] toByteArray() throws Exception {
@@ -28,11 +28,15 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Properties;
 import java.util.TimeZone;
 
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
 import net.fortuna.ical4j.model.component.VToDo;
 import net.fortuna.ical4j.util.CompatibilityHints;
 
@@ -73,7 +77,14 @@ public final class Configurator {
 
 	public static final String REMOTE_DELETE_ENABLED = "remote.delete.enabled";
 	public static final String FILE_POLLING_FILE = "file.polling.file";
+	public static final String FILE_WATCH_ENABLED = "file.watch.enabled";
+	public static final String FILE_WATCH_DELAY = "file.watch.delay";
+	public static final String FILE_WRITE_DELAY = "file.write.delay";
+	public static final String FILE_PARALLEL_THREADS = "file.parallel.threads";
+	public static final String FILE_PARALLEL_ACCOUNT = "file.parallel.account";
 	public static final String FILE_RELOADER_SCRIPT = "file.reloader.script";
+	public static final String FILE_RELOADER_DELAY = "file.reloader.delay";
+	public static final String FILE_RELOADER_TIMEOUT = "file.reloader.timeout";
 	public static final String LDAP_VCARD_ENCODING = "ldap.vcard.encoding";
 	public static final String MAILTERM_DIR_PATH = "mailterm.dir.path";
 	public static final String FEED_CACHE_TIMEOUT = "feed.cache.timeout";
@@ -106,6 +117,12 @@ public final class Configurator {
 	public static final String SENDMAIL_DIR_PATH = "sendmail.dir.path";
 	public static final String LOG_CONFIG = "log.config";
 	public static final String HTTP_PORT = "http.port";
+	public static final String HTTP_SPOOL_THRESHOLD = "http.spool.threshold";
+	public static final String HTTP_ASYNC_ENABLED = "http.async.enabled";
+	public static final String HTTP_CALDAV_ENABLED = "http.caldav.enabled";
+	public static final String SERVLET_ASYNC_ENABLED = "servlet.async.enabled";
+	public static final String SERVLET_ASYNC_TIMEOUT = "servlet.async.timeout";
+	public static final String SERVLET_ASYNC_THREADS = "servlet.async.threads";
 	public static final String MAILTERM_POLLING_GOOGLE = "mailterm.polling.google";
 	public static final String LDAP_ALLOWED_ADDRESSES = "ldap.allowed.addresses";
 	public static final String PROGRESS_ENABLED = "progress.enabled";
@@ -124,7 +141,16 @@ public final class Configurator {
 	public static final String NOTIFIER_ENABLED = "notifier.enabled";
 	public static final String CACHE_TIMEOUT = "cache.timeout";
 	public static final String FILE_POLLING_GOOGLE = "file.polling.google";
+	public static final String FILE_POLLING_GOOGLE_MIN = "file.polling.google.min";
+	public static final String FILE_POLLING_GOOGLE_MAX = "file.polling.google.max";
+	public static final String FILE_PUSH_ENABLED = "file.push.enabled";
+	public static final String FILE_PUSH_ADDRESS = "file.push.address";
+	public static final String FILE_PUSH_TTL = "file.push.ttl";
+	public static final String FILE_PUSH_LOCAL = "file.push.local";
 	public static final String LDAP_PORT = "ldap.port";
+	public static final String LDAP_WORKER_THREADS = "ldap.worker.threads";
+	public static final String LDAP_DOWNLOAD_THREADS = "ldap.download.threads";
+	public static final String GMAIL_POOL_SIZE = "gmail.pool.size";
 	public static final String EDITOR_LANGUAGE = "editor.language";
 	public static final String EDITOR_LOOK_AND_FEEL = "editor.look.and.feel";
 	public static final String WORK_DIR = "work.dir";
@@ -145,6 +171,7 @@ public final class Configurator {
 	private final HashSet backupFiles = new HashSet();
 	private final File workDirectory;
 	private final long calendarCacheTimeout;
+	private final long watchedCacheTimeout;
 	private final boolean standaloneMode;
 	private final byte mode;
 	private final long backupTimeout;
@@ -525,6 +552,10 @@ public final class Configurator {
 		}
 		calendarCacheTimeout = timeout;
 
+		// Calendars with push channel are refreshed at the safety polling
+		timeout = getConfigProperty(FILE_POLLING_GOOGLE_MAX, 3600000L);
+		watchedCacheTimeout = Math.max(calendarCacheTimeout, timeout);
+
 		// Get backup file timeout
 		timeout = getConfigProperty(ICAL_BACKUP_TIMEOUT, 604800000L);
 		if (timeout < 86400000L && timeout != 0) {
@@ -839,6 +870,18 @@ public final class Configurator {
 		}
 	}
 
+	public final AccessFilter getAccessFilter(String hostsName,
+			String addressesName) throws Exception {
+		String hostList = config.getProperty(hostsName, null);
+		String addressList = config.getProperty(addressesName, null);
+		try {
+			return AccessFilter.compile(hostList, addressList);
+		} catch (Exception malformed) {
+			throw new IllegalArgumentException("Malformed mask list ("
+					+ hostsName + " or " + addressesName + ")!");
+		}
+	}
+
 	public final String getPasswordProperty(String name) throws Exception {
 		String encodedPassword = config.getProperty(name, null);
 		if (encodedPassword == null) {
@@ -857,7 +900,84 @@ public final class Configurator {
 
 	private final HashMap calendarCache = new HashMap();
 
-	public final synchronized void calendarChanged(Request request)
+	// Last loaded calendars (without timeout, has its own lock)
+	private final HashMap lastCalendars = new HashMap();
+
+	private final void cacheCalendar(String url, CachedCalendar calendar) {
+		if (calendarCache.size() >= MAX_CACHE_SIZE) {
+			calendarCache.clear();
+		}
+		calendarCache.put(url, calendar);
+		synchronized (lastCalendars) {
+			if (lastCalendars.size() >= MAX_CACHE_SIZE) {
+				lastCalendars.clear();
+			}
+			lastCalendars.put(url, calendar);
+		}
+	}
+
+	/**
+	 * Returns the last loaded calendar of the specified URL (even if it is
+	 * expired). This method does not wait for the running Google requests.
+	 * 
+	 * @param url
+	 *            URL of the calendar
+	 * 
+	 * @return CachedCalendar or null
+	 */
+	public final CachedCalendar getLastCalendar(String url) {
+		synchronized (lastCalendars) {
+			return (CachedCalendar) lastCalendars.get(url);
+		}
+	}
+
+	// --- PUSH NOTIFICATIONS ---
+
+	private final PushRegistry pushRegistry = new PushRegistry();
+
+	public final PushRegistry getPushRegistry() {
+		return pushRegistry;
+	}
+
+	/**
+	 * Invalidates the cached calendar of the specified URL (Google reported a
+	 * change) and notifies the file listener.
+	 * 
+	 * @param url
+	 *            URL of the calendar
+	 */
+	public final void remoteChanged(String url) throws Exception {
+		URLLock urlLock = lockURL(url);
+		try {
+			synchronized (urlLock) {
+				synchronized (this) {
+					calendarCache.remove(url);
+				}
+			}
+		} finally {
+			unlockURL(url, urlLock);
+		}
+		if (fileListener != null) {
+			Method remoteChanged = fileListener.getClass().getMethod(
+					"remoteChanged", new Class[] { String.class });
+			remoteChanged.invoke(fileListener, new Object[] { url });
+		}
+	}
+
+	public final void calendarChanged(Request request) throws Exception {
+
+		// Calendars of different URLs are processed in parallel
+		URLLock urlLock = lockURL(request.url);
+		try {
+			synchronized (urlLock) {
+				processChangedCalendar(request);
+			}
+		} finally {
+			unlockURL(request.url, urlLock);
+		}
+	}
+
+	private final void processChangedCalendar(Request request)
 			throws Exception {
 
 		// Find error marker
@@ -868,7 +988,10 @@ public final class Configurator {
 		}
 
 		// Save to-do block
-		String toDoBlock = saveToDoBlock(request, content);
+		String toDoBlock;
+		synchronized (this) {
+			toDoBlock = saveToDoBlock(request, content);
+		}
 
 		// Store previous ics file
 		boolean isSyncJob = request.url.endsWith(".ics");
@@ -876,8 +999,10 @@ public final class Configurator {
 		newCalendar.body = request.body;
 		newCalendar.lastModified = System.currentTimeMillis();
 		if (isSyncJob || !feedEnabled) {
-			CachedCalendar oldCalendar = (CachedCalendar) calendarCache
-					.get(request.url);
+			CachedCalendar oldCalendar;
+			synchronized (this) {
+				oldCalendar = (CachedCalendar) calendarCache.get(request.url);
+			}
 
 			// Set ical bytes
 			if (oldCalendar != null
@@ -908,10 +1033,9 @@ public final class Configurator {
 		newCalendar.username = request.username;
 		newCalendar.password = request.password;
 		newCalendar.toDoBlock = toDoBlock;
-		if (calendarCache.size() >= MAX_CACHE_SIZE) {
-			calendarCache.clear();
+		synchronized (this) {
+			cacheCalendar(request.url, newCalendar);
 		}
-		calendarCache.put(request.url, newCalendar);
 
 		// Start synchronization
 		if (isSyncJob) {
@@ -926,72 +1050,264 @@ public final class Configurator {
 		}
 	}
 
-	public final synchronized CachedCalendar getCalendar(Request request)
-			throws Exception {
-		CachedCalendar calendar = (CachedCalendar) calendarCache
-				.get(request.url);
-		boolean isSyncJob = request.url.endsWith(".ics");
-		long now = System.currentTimeMillis();
-		if (calendar != null) {
-			long timeOut = feedCacheTimeout;
-			if (isSyncJob) {
-				timeOut = calendarCacheTimeout;
-			}
-			if (now - calendar.lastModified >= timeOut) {
-				calendarCache.remove(request.url);
-			} else {
+	public final CachedCalendar getCalendar(Request request) throws Exception {
+		URLLock urlLock = lockURL(request.url);
+		try {
+			synchronized (urlLock) {
+				CachedCalendar calendar;
+				boolean isSyncJob = request.url.endsWith(".ics");
+				long now = System.currentTimeMillis();
+				synchronized (this) {
+					calendar = (CachedCalendar) calendarCache.get(request.url);
+					if (calendar != null) {
+						long timeOut = feedCacheTimeout;
+						if (isSyncJob) {
+							if (pushRegistry.isWatched(request.url, now)) {
+
+								// Removed by the push notification
+								timeOut = watchedCacheTimeout;
+							} else {
+								timeOut = calendarCacheTimeout;
+							}
+						}
+						if (now - calendar.lastModified >= timeOut) {
+							calendarCache.remove(request.url);
+						} else {
+
+							// Return calendar from cache
+							return calendar;
+						}
+					}
+				}
+				calendar = new CachedCalendar();
+
+				if (isSyncJob || !feedEnabled) {
+
+					// Load calendar from Google
+					calendar.body = GCalUtilities.loadCalendar(request);
+				} else {
 
-				// Return calendar from cache
+					// Load feed
+					String feedURL = request.url;
+					if (!feedURL.startsWith("http")) {
+						feedURL = "http:/" + feedURL;
+					}
+					synchronized (this) {
+						calendar = FeedUtilities.getFeedAsCalendar(feedURL,
+								calendarCache, feedEventLength,
+								duplicationRatio, request.username,
+								request.password);
+					}
+					calendar.lastModified = now;
+				}
+
+				// Load todo block
+				synchronized (this) {
+					calendar.toDoBlock = loadToDoBlock(request);
+					calendar.filePath = request.filePath;
+					calendar.lastModified = now;
+					cacheCalendar(request.url, calendar);
+					if (backupTimeout != 0 && isSyncJob) {
+
+						// Do the daily backup
+						calendar.url = request.url;
+						if (now - backupLastVerified > 3600000L) {
+							backupLastVerified = now;
+							backupFiles.clear();
+						}
+						if (!backupFiles.contains(request.url)) {
+							backupFiles.add(request.url);
+							manageBackups(calendar, now);
+						}
+					}
+				}
 				return calendar;
 			}
+		} finally {
+			unlockURL(request.url, urlLock);
 		}
-		calendar = new CachedCalendar();
+	}
 
-		if (isSyncJob || !feedEnabled) {
+	// --- PER-CALENDAR LOCKS ---
 
-			// Load calendar from Google
-			calendar.body = GCalUtilities.loadCalendar(request);
-		} else {
+	// Requests of the same calendar are serialized (url -> lock, unused
+	// locks are removed)
+	private final HashMap urlLocks = new HashMap();
+
+	private static final class URLLock {
+
+		private int users;
 
-			// Load feed
-			String feedURL = request.url;
-			if (!feedURL.startsWith("http")) {
-				feedURL = "http:/" + feedURL;
+	}
+
+	private final URLLock lockURL(String url) {
+		synchronized (urlLocks) {
+			URLLock lock = (URLLock) urlLocks.get(url);
+			if (lock == null) {
+				lock = new URLLock();
+				urlLocks.put(url, lock);
 			}
-			calendar = FeedUtilities.getFeedAsCalendar(feedURL, calendarCache,
-					feedEventLength, duplicationRatio, request.username,
-					request.password);
-			calendar.lastModified = now;
+			lock.users++;
+			return lock;
 		}
-		if (calendarCache.size() >= MAX_CACHE_SIZE) {
-			calendarCache.clear();
+	}
+
+	private final void unlockURL(String url, URLLock lock) {
+		synchronized (urlLocks) {
+			if (--lock.users == 0) {
+				urlLocks.remove(url);
+			}
 		}
+	}
 
-		// Load todo block
-		calendar.toDoBlock = loadToDoBlock(request);
-		calendar.filePath = request.filePath;
-		calendar.lastModified = now;
-		calendarCache.put(request.url, calendar);
-		if (backupTimeout != 0 && isSyncJob) {
+	// --- PER-EVENT (CALDAV) ACCESS ---
 
-			// Do the daily backup
-			calendar.url = request.url;
-			if (now - backupLastVerified > 3600000L) {
-				backupLastVerified = now;
-				backupFiles.clear();
+	private static final int MAX_HISTORY_SIZE = 20;
+
+	// Versions of the calendars (url -> EventHistory, has its own lock)
+	private final HashMap eventHistory = new HashMap();
+	private final long historyEpoch = System.currentTimeMillis();
+
+	public final EventIndex getEventIndex(Request request) throws Exception {
+		CachedCalendar calendar = getCalendar(request);
+		EventHistory history;
+		synchronized (eventHistory) {
+			history = (EventHistory) eventHistory.get(request.url);
+			if (history == null) {
+				if (eventHistory.size() >= MAX_CACHE_SIZE) {
+					eventHistory.clear();
+				}
+				history = new EventHistory();
+				eventHistory.put(request.url, history);
 			}
-			if (!backupFiles.contains(request.url)) {
-				backupFiles.add(request.url);
-				manageBackups(calendar, now);
+		}
+		synchronized (history) {
+			if (history.source == calendar.body && !history.versions.isEmpty()) {
+				return (EventIndex) history.versions.getLast();
+			}
+			EventIndex last = null;
+			long version = 1;
+			if (!history.versions.isEmpty()) {
+				last = (EventIndex) history.versions.getLast();
+				version = last.version + 1;
+			}
+			EventIndex index = EventIndex.build(calendar.body, version);
+			history.source = calendar.body;
+			if (last != null && last.isEquals(index)) {
+				return last;
 			}
+			history.versions.addLast(index);
+			if (history.versions.size() > MAX_HISTORY_SIZE) {
+				history.versions.removeFirst();
+			}
+			return index;
+		}
+	}
+
+	public final EventIndex getEventIndex(String url, long version) {
+		EventHistory history;
+		synchronized (eventHistory) {
+			history = (EventHistory) eventHistory.get(url);
+		}
+		if (history != null) {
+			synchronized (history) {
+				Iterator versions = history.versions.iterator();
+				EventIndex index;
+				while (versions.hasNext()) {
+					index = (EventIndex) versions.next();
+					if (index.version == version) {
+						return index;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	public final long getHistoryEpoch() {
+		return historyEpoch;
+	}
+
+	private static final class EventHistory {
+
+		private final LinkedList versions = new LinkedList();
+		private byte[] source;
+
+	}
+
+	/**
+	 * Replaces (or removes) an event of a calendar and starts the
+	 * synchronization.
+	 * 
+	 * @param request
+	 *            request with the URL of the calendar
+	 * @param uid
+	 *            UID of the event
+	 * @param newEvents
+	 *            the validated new event (or null)
+	 */
+	public final void eventChanged(Request request, String uid,
+			Calendar newEvents) throws Exception {
+		URLLock urlLock = lockURL(request.url);
+		try {
+			synchronized (urlLock) {
+				processChangedEvent(request, uid, newEvents);
+			}
+		} finally {
+			unlockURL(request.url, urlLock);
+		}
+	}
+
+	private final void processChangedEvent(Request request, String uid,
+			Calendar newEvents) throws Exception {
+
+		// Get current calendar
+		CachedCalendar oldCalendar = getCalendar(request);
+
+		// Replace or remove the modified event
+		VTimeZone[] timeZones = new VTimeZone[0];
+		if (newEvents != null) {
+			timeZones = ICalUtilities.getTimeZones(newEvents);
+		}
+		LinkedList changedEvents = new LinkedList();
+		LinkedList removedEvents = new LinkedList();
+		CachedCalendar newCalendar = new CachedCalendar();
+		newCalendar.body = ICalUtilities.replaceEvents(oldCalendar.body,
+				request.url, uid, newEvents, changedEvents, removedEvents);
+		newCalendar.previousBody = oldCalendar.body;
+		newCalendar.lastModified = System.currentTimeMillis();
+		newCalendar.method = request.method;
+		newCalendar.url = request.url;
+		newCalendar.username = request.username;
+		newCalendar.password = request.password;
+		newCalendar.filePath = oldCalendar.filePath;
+		newCalendar.toDoBlock = oldCalendar.toDoBlock;
+		synchronized (this) {
+			cacheCalendar(request.url, newCalendar);
+		}
+		if (changedEvents.isEmpty() && removedEvents.isEmpty()) {
+			return;
+		}
+		newCalendar.changedEvents = new VEvent[changedEvents.size()];
+		changedEvents.toArray(newCalendar.changedEvents);
+		newCalendar.removedEvents = new VEvent[removedEvents.size()];
+		removedEvents.toArray(newCalendar.removedEvents);
+		newCalendar.timeZones = timeZones;
+
+		// Start synchronization
+		((Synchronizer) synchronizer).calendarChanged(newCalendar);
+
+		// Notify file listener (save new calendar file)
+		if (fileListener != null) {
+			Method wakeUp = fileListener.getClass().getMethod("wakeUp",
+					new Class[0]);
+			wakeUp.invoke(fileListener, new Object[0]);
 		}
-		return calendar;
 	}
 
 	// --- ON-DEMAND SYNCHRONIZER ---
 
-	public final synchronized void synchronizeNow(Request request)
-			throws Exception {
+	public final void synchronizeNow(Request request) throws Exception {
 
 		// Find error marker
 		String content = StringUtils.decodeToString(request.body,
@@ -1000,90 +1316,113 @@ public final class Configurator {
 			return;
 		}
 
-		// Save to-do block
-		String toDoBlock = saveToDoBlock(request, content);
-
-		// Create calendar container
-		long now = System.currentTimeMillis();
-		CachedCalendar calendar = new CachedCalendar();
-		calendar.body = request.body;
-		calendar.lastModified = now;
+		// Calendars of different URLs are synchronized in parallel
+		URLLock urlLock = lockURL(request.url);
+		try {
+			synchronized (urlLock) {
 
-		boolean isSyncJob = request.url.endsWith(".ics");
-		if (isSyncJob) {
+				// Save to-do block
+				String toDoBlock;
+				synchronized (this) {
+					toDoBlock = saveToDoBlock(request, content);
+				}
 
-			// Load calendar from Google
-			calendar.previousBody = GCalUtilities.loadCalendar(request);
-		} else {
+				// Create calendar container
+				long now = System.currentTimeMillis();
+				CachedCalendar calendar = new CachedCalendar();
+				calendar.body = request.body;
+				calendar.lastModified = now;
+
+				boolean isSyncJob = request.url.endsWith(".ics");
+				if (isSyncJob) {
+
+					// Load calendar from Google
+					calendar.previousBody = GCalUtilities.loadCalendar(request);
+				} else {
+
+					// Find feed in cache
+					if (feedEnabled) {
+						synchronized (this) {
+							calendar = (CachedCalendar) calendarCache
+									.get(request.url);
+							if (calendar != null) {
+								if (now - calendar.lastModified
+										>= feedCacheTimeout) {
+									calendarCache.remove(request.url);
+									calendar = null;
+								}
+							}
+							if (calendar == null) {
 
-			// Find feed in cache
-			if (feedEnabled) {
-				calendar = (CachedCalendar) calendarCache.get(request.url);
-				if (calendar != null) {
-					if (now - calendar.lastModified >= feedCacheTimeout) {
-						calendarCache.remove(request.url);
-						calendar = null;
+								// Load feed
+								String feedURL = request.url;
+								if (!feedURL.startsWith("http")) {
+									feedURL = "http:/" + feedURL;
+								}
+								calendar = FeedUtilities.getFeedAsCalendar(
+										feedURL, calendarCache, feedEventLength,
+										duplicationRatio, request.username,
+										request.password);
+								calendar.lastModified = now;
+							}
+						}
+					} else {
+						throw new Exception("Invalid private ical URL ("
+								+ request.url + ")!");
 					}
 				}
-				if (calendar == null) {
 
-					// Load feed
-					String feedURL = request.url;
-					if (!feedURL.startsWith("http")) {
-						feedURL = "http:/" + feedURL;
-					}
-					calendar = FeedUtilities.getFeedAsCalendar(feedURL,
-							calendarCache, feedEventLength, duplicationRatio,
-							request.username, request.password);
-					calendar.lastModified = now;
+				// Verify loaded ics file
+				char[] chars = new char[Math.min(
+						calendar.previousBody.length, 100)];
+				for (int i = 0; i < chars.length; i++) {
+					chars[i] = (char) calendar.previousBody[i];
+				}
+				if ((new String(chars))
+						.indexOf(GCalUtilities.ERROR_MARKER) != -1) {
+					return;
 				}
-			} else {
-				throw new Exception("Invalid private ical URL (" + request.url
-						+ ")!");
-			}
-		}
 
-		// Verify loaded ics file
-		char[] chars = new char[Math.min(calendar.previousBody.length, 100)];
-		for (int i = 0; i < chars.length; i++) {
-			chars[i] = (char) calendar.previousBody[i];
-		}
-		if ((new String(chars)).indexOf(GCalUtilities.ERROR_MARKER) != -1) {
-			return;
-		}
+				// Store other properties
+				calendar.username = request.username;
+				calendar.password = request.password;
+				calendar.filePath = request.filePath;
+				calendar.method = request.method;
+				calendar.url = request.url;
+				calendar.toDoBlock = toDoBlock;
+				synchronized (this) {
+					cacheCalendar(request.url, calendar);
+				}
 
-		// Store other properties
-		calendar.username = request.username;
-		calendar.password = request.password;
-		calendar.filePath = request.filePath;
-		calendar.method = request.method;
-		calendar.url = request.url;
-		calendar.toDoBlock = toDoBlock;
-		if (calendarCache.size() >= MAX_CACHE_SIZE) {
-			calendarCache.clear();
-		}
-		calendarCache.put(request.url, calendar);
+				// Do synchronization
+				if (isSyncJob) {
+					calendar.body = ((Synchronizer) synchronizer)
+							.syncronizeNow(calendar);
+				}
 
-		// Do synchronization
-		if (isSyncJob) {
-			calendar.body = ((Synchronizer) synchronizer)
-					.syncronizeNow(calendar);
+				synchronized (this) {
 
-			// Load todo block
-			calendar.toDoBlock = loadToDoBlock(request);
-		}
+					// Load todo block
+					if (isSyncJob) {
+						calendar.toDoBlock = loadToDoBlock(request);
+					}
 
-		// Do the daily backup
-		if (backupTimeout != 0 && isSyncJob) {
-			calendar.url = request.url;
-			if (now - backupLastVerified > 3600000L) {
-				backupLastVerified = now;
-				backupFiles.clear();
-			}
-			if (!backupFiles.contains(request.url)) {
-				backupFiles.add(request.url);
-				manageBackups(calendar, now);
+					// Do the daily backup
+					if (backupTimeout != 0 && isSyncJob) {
+						calendar.url = request.url;
+						if (now - backupLastVerified > 3600000L) {
+							backupLastVerified = now;
+							backupFiles.clear();
+						}
+						if (!backupFiles.contains(request.url)) {
+							backupFiles.add(request.url);
+							manageBackups(calendar, now);
+						}
+					}
+				}
 			}
+		} finally {
+			unlockURL(request.url, urlLock);
 		}
 
 		// Notify file listener (save new calendar file)
@@ -1126,8 +1465,10 @@ public final class Configurator {
 		File gcalBackupFile = new File(backupDirectory, gcalFileName);
 
 		// Save Google backup
-		byte[] bytes = calendar.toByteArray();
-		saveBackup(gcalBackupFile, bytes);
+		try {
+			saveBackup(gcalBackupFile, calendar.toByteArray());
+		} catch (Exception ioException) {
+		}
 
 		// Save local backup
 		if (calendar.filePath == null) {
@@ -1140,17 +1481,9 @@ public final class Configurator {
 		if (icalBackupFile.exists()) {
 			return;
 		}
-		RandomAccessFile in = null;
 		try {
-			in = new RandomAccessFile(localFile, "r");
-			bytes = new byte[(int) localFile.length()];
-			in.readFully(bytes);
-			in.close();
-			saveBackup(icalBackupFile, bytes);
+			saveBackup(icalBackupFile, FileUtilities.readBytes(localFile));
 		} catch (Exception ioException) {
-			if (in != null) {
-				in.close();
-			}
 		}
 	}
 
@@ -0,0 +1,224 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.property.Uid;
+
+import org.gcaldaemon.logger.QuickWriter;
+
+/**
+ * Versioned, per-UID view of a cached calendar (used by the CalDAV handler).
+ * Each UID is a separate resource (the main event and its recurrence
+ * exceptions). The ETag of a resource is computed from its content without the
+ * DTSTAMP lines, so downloading the same calendar again doesn't change it.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+public final class EventIndex {
+
+	// --- CONSTANTS ---
+
+	private static final String STAMP_PREFIX = "DTSTAMP";
+
+	// --- VARIABLES ---
+
+	/**
+	 * Version of the calendar (increased when any event changes)
+	 */
+	public final long version;
+
+	private final HashMap resources;
+
+	// --- CONSTRUCTOR ---
+
+	private EventIndex(long version, HashMap resources) {
+		this.version = version;
+		this.resources = resources;
+	}
+
+	// --- INDEX BUILDER ---
+
+	static final EventIndex build(byte[] body, long version) throws Exception {
+		Calendar calendar = ICalUtilities.parseCalendar(body);
+		VTimeZone[] timeZones = ICalUtilities.getTimeZones(calendar);
+		VEvent[] events = ICalUtilities.getEvents(calendar);
+
+		// Group events by UID
+		HashMap writers = new HashMap();
+		QuickWriter writer;
+		Uid uid;
+		String id;
+		for (int i = 0; i < events.length; i++) {
+			uid = events[i].getUid();
+			if (uid == null) {
+				continue;
+			}
+			id = uid.getValue();
+			if (id == null || id.length() == 0) {
+				continue;
+			}
+			writer = (QuickWriter) writers.get(id);
+			if (writer == null) {
+				writer = new QuickWriter();
+				writers.put(id, writer);
+			}
+			writer.write(events[i].toString());
+		}
+
+		// Create resources
+		QuickWriter zones = new QuickWriter();
+		for (int i = 0; i < timeZones.length; i++) {
+			zones.write(timeZones[i].toString());
+		}
+		HashMap resources = new HashMap();
+		Iterator ids = writers.keySet().iterator();
+		String content;
+		while (ids.hasNext()) {
+			id = (String) ids.next();
+			content = ((QuickWriter) writers.get(id)).toString();
+			writer = new QuickWriter(content.length() + zones.length() + 100);
+			writer.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:");
+			writer.write(Configurator.VERSION);
+			writer.write("\r\n");
+			writer.write(zones.toString());
+			writer.write(content);
+			writer.write("END:VCALENDAR\r\n");
+			resources.put(id, new String[] { computeETag(content),
+					writer.toString() });
+		}
+		return new EventIndex(version, resources);
+	}
+
+	private static final String computeETag(String content) {
+
+		// 64-bit FNV-1a hash (DTSTAMP lines are skipped)
+		long hash = 0xcbf29ce484222325L;
+		int length = content.length();
+		int start = 0;
+		int end;
+		char c;
+		while (start < length) {
+			end = content.indexOf('\n', start);
+			if (end == -1) {
+				end = length;
+			}
+			if (!content.startsWith(STAMP_PREFIX, start)) {
+				for (int i = start; i < end; i++) {
+					c = content.charAt(i);
+					if (c == '\r') {
+						continue;
+					}
+					hash ^= c;
+					hash *= 0x100000001b3L;
+				}
+			}
+			start = end + 1;
+		}
+		return '"' + Long.toHexString(hash) + '"';
+	}
+
+	// --- GETTERS ---
+
+	public final String[] getUIDs() {
+		String[] uids = new String[resources.size()];
+		resources.keySet().toArray(uids);
+		return uids;
+	}
+
+	public final String getETag(String uid) {
+		String[] resource = (String[]) resources.get(uid);
+		return resource == null ? null : resource[0];
+	}
+
+	public final String getData(String uid) {
+		String[] resource = (String[]) resources.get(uid);
+		return resource == null ? null : resource[1];
+	}
+
+	public final boolean contains(String uid) {
+		return resources.containsKey(uid);
+	}
+
+	// --- COMPARATORS ---
+
+	/**
+	 * Returns the UIDs of the new or changed resources.
+	 *
+	 * @param previous
+	 *            older version of the calendar
+	 *
+	 * @return array of UIDs
+	 */
+	public final String[] getChangedUIDs(EventIndex previous) {
+		LinkedList list = new LinkedList();
+		Iterator ids = resources.keySet().iterator();
+		String id;
+		while (ids.hasNext()) {
+			id = (String) ids.next();
+			if (!getETag(id).equals(previous.getETag(id))) {
+				list.addLast(id);
+			}
+		}
+		String[] uids = new String[list.size()];
+		list.toArray(uids);
+		return uids;
+	}
+
+	/**
+	 * Returns the UIDs of the removed resources.
+	 *
+	 * @param previous
+	 *            older version of the calendar
+	 *
+	 * @return array of UIDs
+	 */
+	public final String[] getRemovedUIDs(EventIndex previous) {
+		LinkedList list = new LinkedList();
+		Iterator ids = previous.resources.keySet().iterator();
+		String id;
+		while (ids.hasNext()) {
+			id = (String) ids.next();
+			if (!resources.containsKey(id)) {
+				list.addLast(id);
+			}
+		}
+		String[] uids = new String[list.size()];
+		list.toArray(uids);
+		return uids;
+	}
+
+	final boolean isEquals(EventIndex other) {
+		if (resources.size() != other.resources.size()) {
+			return false;
+		}
+		Iterator ids = resources.keySet().iterator();
+		String id;
+		while (ids.hasNext()) {
+			id = (String) ids.next();
+			if (!getETag(id).equals(other.getETag(id))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
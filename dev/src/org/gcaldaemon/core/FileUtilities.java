@@ -0,0 +1,195 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Common file reader utilities. Files are read into byte arrays, files that
+ * are replaced or modified during the reading are read again. Large files
+ * that are only replaced by renaming (never truncated or rewritten in place,
+ * eg. snapshots) can be memory-mapped: a truncated mapped file would crash
+ * the reader, and on Windows a mapped file can't be replaced (these files are
+ * read into the heap).
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+public final class FileUtilities {
+
+	// --- CONSTANTS ---
+
+	private static final long MAPPING_THRESHOLD = 65536L;
+	private static final int MAX_TRIES = 5;
+	private static final long RETRY_MILLIS = 500L;
+
+	private static final boolean WINDOWS = File.separatorChar == '\\';
+
+	// --- PRIVATE CONSTRUCTOR ---
+
+	private FileUtilities() {
+	}
+
+	// --- FILE READERS ---
+
+	/**
+	 * Returns the content of a file as a ByteBuffer (backed by a byte array).
+	 *
+	 * @param file
+	 *            file to read
+	 *
+	 * @return content of the file
+	 */
+	public static final ByteBuffer read(File file) throws Exception {
+		return ByteBuffer.wrap(readBytes(file));
+	}
+
+	/**
+	 * Returns the content of a file as a byte array.
+	 *
+	 * @param file
+	 *            file to read
+	 *
+	 * @return content of the file
+	 */
+	public static final byte[] readBytes(File file) throws Exception {
+		for (int tries = 1;; tries++) {
+			long lastModified = file.lastModified();
+			byte[] bytes;
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				long length = raf.getChannel().size();
+				if (length > Integer.MAX_VALUE) {
+					throw new IOException("File is too large (" + file + ")!");
+				}
+				bytes = new byte[(int) length];
+				raf.readFully(bytes);
+			} catch (EOFException truncated) {
+				bytes = null;
+			} finally {
+				raf.close();
+			}
+
+			// Verify file (replaced or modified during the reading)
+			if (bytes != null && file.lastModified() == lastModified
+					&& file.length() == bytes.length) {
+				return bytes;
+			}
+			if (tries == MAX_TRIES) {
+				throw new IOException("File modified during reading (" + file
+						+ ")!");
+			}
+			Thread.sleep(RETRY_MILLIS);
+		}
+	}
+
+	/**
+	 * Returns the content of a file that is replaced only by renaming as a
+	 * read-only ByteBuffer (files larger than 64 KBytes are memory-mapped,
+	 * except on Windows). Falls back to the byte array reader if the file
+	 * can't be mapped.
+	 *
+	 * @param file
+	 *            file to read
+	 *
+	 * @return content of the file
+	 */
+	public static final ByteBuffer map(File file) throws Exception {
+		if (!WINDOWS && file.length() >= MAPPING_THRESHOLD) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long length = channel.size();
+				if (length >= MAPPING_THRESHOLD
+						&& length <= Integer.MAX_VALUE) {
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							length);
+				}
+			} catch (IOException mappingError) {
+
+				// Out of address space, unsupported filesystem, etc.
+			} finally {
+				raf.close();
+			}
+		}
+		return read(file).asReadOnlyBuffer();
+	}
+
+	// --- BUFFER CONVERTERS ---
+
+	/**
+	 * Returns the remaining bytes of a buffer (the backing array of a heap
+	 * buffer is returned without copying).
+	 *
+	 * @param buffer
+	 *            source buffer
+	 *
+	 * @return byte array
+	 */
+	public static final byte[] toByteArray(ByteBuffer buffer) {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0
+				&& buffer.position() == 0
+				&& buffer.remaining() == buffer.array().length) {
+			return buffer.array();
+		}
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Creates an InputStream of the remaining bytes of a buffer.
+	 *
+	 * @param buffer
+	 *            source buffer
+	 *
+	 * @return InputStream
+	 */
+	public static final InputStream toInputStream(ByteBuffer buffer) {
+		final ByteBuffer source = buffer.duplicate();
+		return new InputStream() {
+
+			public final int read() {
+				if (!source.hasRemaining()) {
+					return -1;
+				}
+				return source.get() & 0xFF;
+			}
+
+			public final int read(byte[] bytes, int off, int len) {
+				if (len == 0) {
+					return 0;
+				}
+				if (!source.hasRemaining()) {
+					return -1;
+				}
+				len = Math.min(len, source.remaining());
+				source.get(bytes, off, len);
+				return len;
+			}
+
+			public final int available() {
+				return source.remaining();
+			}
+
+		};
+	}
+
+}
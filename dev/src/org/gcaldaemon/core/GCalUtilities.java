@@ -196,6 +196,43 @@ public final class GCalUtilities {
 		return GCalUtilitiesV3.loadCalendar(request);
 	}
 
+	/**
+	 * Returns the version (ETag or Last-Modified header) of a Google Calendar
+	 * without downloading it.
+	 * 
+	 * @param request
+	 *            request with the URL of the calendar
+	 * 
+	 * @return version of the calendar (or null, if unknown)
+	 */
+	public static final String getCalendarVersion(Request request) {
+		return GCalUtilitiesV3.getCalendarVersion(request);
+	}
+
+	/**
+	 * Registers a push notification channel of a Google Calendar. Sets the
+	 * resource ID and the expiration time of the channel.
+	 * 
+	 * @param request
+	 *            request with the URL of the calendar
+	 * @param channel
+	 *            channel with unique ID and token
+	 * @param address
+	 *            public (HTTPS) URL of the notification endpoint
+	 * @param ttl
+	 *            requested lifetime of the channel
+	 */
+	public static final void watchCalendar(Request request,
+			PushRegistry.Channel channel, String address, long ttl)
+			throws Exception {
+		GCalUtilitiesV3.watchCalendar(request, channel, address, ttl);
+	}
+
+	public static final void stopChannel(Request request,
+			PushRegistry.Channel channel) throws Exception {
+		GCalUtilitiesV3.stopChannel(request, channel);
+	}
+
 	public static final byte[] exceptionToCalendar(Exception loadError)
 			throws Exception {
 
@@ -56,11 +56,13 @@ import net.fortuna.ical4j.model.property.Uid;
 import net.fortuna.ical4j.model.property.Url;
 
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -80,6 +82,7 @@ import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.CalendarList;
 import com.google.api.services.calendar.model.CalendarListEntry;
+import com.google.api.services.calendar.model.Channel;
 import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.Event.ExtendedProperties;
 import com.google.api.services.calendar.model.Event.Reminders;
@@ -349,6 +352,77 @@ public final class GCalUtilitiesV3 {
 		}
 	}
 
+	// --- REMOTE CALENDAR VALIDATOR ---
+
+	static final String getCalendarVersion(Request request) {
+		if (!request.url.endsWith(".ics")) {
+			return null;
+		}
+		HeadMethod head = null;
+		try {
+			String icalURL = GOOGLE_HTTPS_URL + request.url;
+			int i = icalURL.indexOf("basic.ics");
+			if (i != -1) {
+				icalURL = icalURL.substring(0, i + 9);
+			}
+			head = new HeadMethod(icalURL);
+			head.addRequestHeader("User-Agent", USER_AGENT);
+			head.setFollowRedirects(true);
+			if (httpClient.executeMethod(head) != 200) {
+				return null;
+			}
+
+			// Use the ETag or the Last-Modified header
+			Header header = head.getResponseHeader("ETag");
+			if (header == null) {
+				header = head.getResponseHeader("Last-Modified");
+			}
+			if (header == null) {
+				return null;
+			}
+			return header.getValue();
+		} catch (Exception validatorError) {
+			log.debug("Unable to get calendar version!", validatorError);
+			return null;
+		} finally {
+			if (head != null) {
+				head.releaseConnection();
+			}
+		}
+	}
+
+	// --- PUSH NOTIFICATION CHANNELS ---
+
+	static final void watchCalendar(Request request,
+			PushRegistry.Channel channel, String address, long ttl)
+			throws Exception {
+		com.google.api.services.calendar.Calendar service = getService(request);
+		Channel content = new Channel();
+		content.setId(channel.id);
+		content.setToken(channel.token);
+		content.setType("web_hook");
+		content.setAddress(address);
+		content.setExpiration(Long.valueOf(System.currentTimeMillis() + ttl));
+		Channel result = service.events()
+				.watch(getCalendarIdFromURL(request.url), content).execute();
+		channel.resourceId = result.getResourceId();
+		Long expiration = result.getExpiration();
+		if (expiration == null) {
+			channel.expiration = System.currentTimeMillis() + ttl;
+		} else {
+			channel.expiration = expiration.longValue();
+		}
+	}
+
+	static final void stopChannel(Request request, PushRegistry.Channel channel)
+			throws Exception {
+		com.google.api.services.calendar.Calendar service = getService(request);
+		Channel content = new Channel();
+		content.setId(channel.id);
+		content.setResourceId(channel.resourceId);
+		service.channels().stop(content).execute();
+	}
+
 	private static final byte[] exceptionToCalendar(Exception loadError)
 			throws Exception {
 		return GCalUtilities.exceptionToCalendar(loadError);
@@ -1466,7 +1540,8 @@ public final class GCalUtilitiesV3 {
 
 	// --- EVENT FINDER ---
 
-	private static final Map<String, Object> uidMaps = new HashMap<String, Object>();
+	private static final Map<String, Object> uidMaps = Collections
+			.synchronizedMap(new HashMap<String, Object>());
 
 	private static final Event getGoogleEntry(
 			com.google.api.services.calendar.Calendar service,
@@ -1791,7 +1866,8 @@ public final class GCalUtilitiesV3 {
 
 	// --- GOOGLE CONNECTION POOL ---
 
-	private static final Map<String, PooledGoogleService> servicePool = new HashMap<String, PooledGoogleService>();
+	private static final Map<String, PooledGoogleService> servicePool = Collections
+			.synchronizedMap(new HashMap<String, PooledGoogleService>());
 
 	private static final synchronized com.google.api.services.calendar.Calendar getService(
 			Request request) throws Exception {
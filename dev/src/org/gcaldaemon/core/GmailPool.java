@@ -12,6 +12,7 @@
 //
 package org.gcaldaemon.core;
 
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -19,7 +20,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * Gmail connection pool.
+ * Gmail connection pool. The connections are pooled per account (with a
+ * maximum number of connections per account), the logins are executed
+ * outside of the pool lock. The pool thread closes the broken connections,
+ * and reconnects the idle connections of the recently used accounts before
+ * Gmail drops them.
  * 
  * Created: Jan 03, 2007 12:50:56 PM
  * 
@@ -32,13 +37,23 @@ public final class GmailPool extends Thread {
 	private static final long GMAIL_CONNECTION_TIMEOUT = (1000L * 60 * 5)
 			- (1000L * 20);
 
+	private static final long RECONNECT_AHEAD = 1000L * 30;
+	private static final long KEEP_ALIVE_PERIOD = 1000L * 60 * 30;
+	private static final long BORROW_TIMEOUT = 1000L * 60;
+	private static final long SWEEPER_DELAY = 10000L;
+
 	// --- LOGGER ---
 
 	private static final Log log = LogFactory.getLog(GmailPool.class);
 
 	// --- GMAIL CLIENT POOL ---
 
-	private final LinkedList pool = new LinkedList();
+	// Username -> Account
+	private final HashMap accounts = new HashMap();
+
+	private final int maxConnections;
+
+	private boolean stopped;
 
 	// --- SERVICE TYPES ---
 
@@ -48,7 +63,8 @@ public final class GmailPool extends Thread {
 
 	// --- CONSTRUCTOR ---
 
-	public GmailPool(ThreadGroup mainGroup, Configurator configurator) {
+	public GmailPool(ThreadGroup mainGroup, Configurator configurator)
+			throws Exception {
 		super(mainGroup, "Gmail pool");
 		setPriority(Thread.NORM_PRIORITY - 2);
 
@@ -65,6 +81,10 @@ public final class GmailPool extends Thread {
 		imap = configurator.getConfigProperty(Configurator.MAILTERM_ENABLED,
 				false);
 
+		// Maximum number of connections per account
+		maxConnections = Math.max(1, (int) configurator.getConfigProperty(
+				Configurator.GMAIL_POOL_SIZE, 2));
+
 		// Init global static variables in entry
 		GmailEntry.globalInit();
 
@@ -72,81 +92,190 @@ public final class GmailPool extends Thread {
 		start();
 	}
 
+	// --- ACCOUNT ---
+
+	private static final class Account {
+
+		// Idle connections (the most recently used first)
+		private final LinkedList idle = new LinkedList();
+
+		// Number of idle, borrowed and connecting entries
+		private int open;
+
+		private String password;
+		private long lastBorrow;
+
+	}
+
 	// --- BORROW OBJECT ---
 
-	public final synchronized GmailEntry borrow(String username, String password)
+	public final GmailEntry borrow(String username, String password)
 			throws Exception {
 
-		// Find entry
+		// Find idle entry or reserve a new connection
 		long now = System.currentTimeMillis();
-		Iterator entries = pool.iterator();
-		GmailEntry entry;
-		while (entries.hasNext()) {
-			entry = (GmailEntry) entries.next();
-			if (entry.username.equals(username)) {
-				entries.remove();
-				if (isTimeouted(now, entry)) {
-					disconnect(entry);
-				} else {
-					log.debug("Gmail connection borrowed from the pool.");
-					entry.lastUsage = now;
-					return entry;
+		long deadline = now + BORROW_TIMEOUT;
+		LinkedList brokenEntries = null;
+		GmailEntry entry = null;
+		Account account;
+		synchronized (this) {
+			if (stopped) {
+				throw new Exception("Gmail pool stopped!");
+			}
+			account = (Account) accounts.get(username);
+			if (account == null) {
+				account = new Account();
+				accounts.put(username, account);
+			}
+			account.password = password;
+			account.lastBorrow = now;
+			for (;;) {
+				while (!account.idle.isEmpty()) {
+					entry = (GmailEntry) account.idle.removeFirst();
+					if (entry.isConnected() && !isTimeouted(now, entry)) {
+						break;
+					}
+					account.open--;
+					if (brokenEntries == null) {
+						brokenEntries = new LinkedList();
+					}
+					brokenEntries.addLast(entry);
+					entry = null;
+				}
+				if (entry != null || account.open < maxConnections) {
+					break;
+				}
+
+				// Wait for a recycled entry
+				long timeout = deadline - System.currentTimeMillis();
+				if (timeout <= 0) {
+					throw new Exception("Gmail connection pool timeout ("
+							+ username + ")!");
 				}
+				wait(timeout);
+				if (stopped) {
+					throw new Exception("Gmail pool stopped!");
+				}
+				now = System.currentTimeMillis();
+			}
+			if (entry == null) {
+				account.open++;
+			}
+		}
+
+		// Close broken entries
+		if (brokenEntries != null) {
+			Iterator entries = brokenEntries.iterator();
+			while (entries.hasNext()) {
+				disconnect((GmailEntry) entries.next());
 			}
 		}
-		entry = new GmailEntry(ldap, smtp, imap);
+		if (entry != null) {
+			log.debug("Gmail connection borrowed from the pool.");
+			entry.lastUsage = now;
+			return entry;
+		}
+
+		// Create new connection (outside of the lock)
+		try {
+			entry = createEntry(username, password);
+		} catch (Exception connectionError) {
+			release(account);
+			throw connectionError;
+		}
+		log.debug("Gmail connection has been created successfully.");
+		return entry;
+	}
+
+	private final GmailEntry createEntry(String username, String password)
+			throws Exception {
+		GmailEntry entry = new GmailEntry(ldap, smtp, imap);
 		entry.connect(username, password);
 		entry.username = username;
-		entry.lastUsage = now;
-		log.debug("Gmail connection has been created successfully.");
+		entry.lastUsage = System.currentTimeMillis();
 		return entry;
 	}
 
+	private final synchronized void release(Account account) {
+		account.open--;
+		notifyAll();
+	}
+
 	// --- RECYCLE OBJECT ---
 
-	public final synchronized void recycle(GmailEntry entry) {
-		if (entry != null && entry.isConnected()) {
-			long now = System.currentTimeMillis();
-			if (isTimeouted(now, entry)) {
-				disconnect(entry);
-				return;
+	public final void recycle(GmailEntry entry) {
+		if (entry == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Account account = (Account) accounts.get(entry.username);
+			if (account != null) {
+				if (!stopped && entry.isConnected()
+						&& !isTimeouted(now, entry)) {
+					log.debug("Gmail connection released.");
+					account.idle.addFirst(entry);
+					notifyAll();
+					return;
+				}
+				account.open--;
+				notifyAll();
 			}
-			log.debug("Gmail connection released.");
-			pool.addFirst(entry);
 		}
+		disconnect(entry);
 	}
 
 	// --- POOL CLEANUP ---
 
 	public final void run() {
+		LinkedList expiredEntries = new LinkedList();
+		LinkedList expiredAccounts = new LinkedList();
 		for (;;) {
 			try {
 
 				// Check timeouts
 				long now = System.currentTimeMillis();
-				GmailEntry entry;
+				expiredEntries.clear();
+				expiredAccounts.clear();
 				synchronized (this) {
-					if (!pool.isEmpty()) {
-						Iterator entries = pool.iterator();
+					Iterator accountIterator = accounts.values().iterator();
+					Account account;
+					Iterator entries;
+					GmailEntry entry;
+					while (accountIterator.hasNext()) {
+						account = (Account) accountIterator.next();
+						entries = account.idle.iterator();
 						while (entries.hasNext()) {
 							entry = (GmailEntry) entries.next();
-							if (isTimeouted(now, entry)) {
-								entries.remove();
-								disconnect(entry);
+							if (entry.isConnected()
+									&& now - entry.lastUsage < GMAIL_CONNECTION_TIMEOUT
+											- RECONNECT_AHEAD) {
+								continue;
 							}
+							entries.remove();
+							expiredEntries.addLast(entry);
+							expiredAccounts.addLast(account);
 						}
 					}
 				}
 
+				// Reconnect or close expired entries
+				Iterator entries = expiredEntries.iterator();
+				Iterator accountIterator = expiredAccounts.iterator();
+				while (entries.hasNext()) {
+					sweep((GmailEntry) entries.next(),
+							(Account) accountIterator.next(), now);
+				}
+
 				// Wait
-				sleep(10000);
+				sleep(SWEEPER_DELAY);
 
 			} catch (InterruptedException interrupt) {
 				return;
 			} catch (Exception poolException) {
 				log.warn("Unexpected pooling error!", poolException);
 				try {
-					sleep(10000);
+					sleep(SWEEPER_DELAY);
 				} catch (Exception ignored) {
 					return;
 				}
@@ -154,6 +283,38 @@ public final class GmailPool extends Thread {
 		}
 	}
 
+	private final void sweep(GmailEntry entry, Account account, long now) {
+		disconnect(entry);
+		String password;
+		synchronized (this) {
+			password = account.password;
+			if (stopped || now - account.lastBorrow >= KEEP_ALIVE_PERIOD) {
+
+				// Account is not in use
+				account.open--;
+				notifyAll();
+				return;
+			}
+		}
+		try {
+			entry = createEntry(entry.username, password);
+		} catch (Exception connectionError) {
+			log.debug("Unable to reconnect to Gmail!", connectionError);
+			release(account);
+			return;
+		}
+		log.debug("Idle Gmail connection reconnected.");
+		synchronized (this) {
+			if (!stopped) {
+				account.idle.addLast(entry);
+				notifyAll();
+				return;
+			}
+			account.open--;
+		}
+		disconnect(entry);
+	}
+
 	private static final boolean isTimeouted(long now, GmailEntry entry) {
 		if (entry == null) {
 			return true;
@@ -179,12 +340,22 @@ public final class GmailPool extends Thread {
 		super.interrupt();
 
 		// Disconnect all connections
+		LinkedList idleEntries = new LinkedList();
 		synchronized (this) {
-			Iterator entries = pool.iterator();
-			while (entries.hasNext()) {
-				disconnect((GmailEntry) entries.next());
+			stopped = true;
+			Iterator accountIterator = accounts.values().iterator();
+			Account account;
+			while (accountIterator.hasNext()) {
+				account = (Account) accountIterator.next();
+				account.open -= account.idle.size();
+				idleEntries.addAll(account.idle);
+				account.idle.clear();
 			}
-			pool.clear();
+			notifyAll();
+		}
+		Iterator entries = idleEntries.iterator();
+		while (entries.hasNext()) {
+			disconnect((GmailEntry) entries.next());
 		}
 	}
 
@@ -0,0 +1,206 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reverse DNS cache of the network listeners. Lookups run on a small pool of
+ * daemon threads, so a slow DNS server can't stall the accept loops (or the
+ * lookups of other addresses): new addresses are waited for at most
+ * LOOKUP_TIMEOUT msec (the unfinished lookup is not cached as failed, the next
+ * call gets its result), expired entries are served until the background
+ * refresh finishes. The least recently used entries are removed from the full
+ * cache.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class HostNameResolver {
+
+	// --- CONSTANTS ---
+
+	private static final long CACHE_TIMEOUT = 1000L * 60 * 10;
+	private static final long FAILED_CACHE_TIMEOUT = 1000L * 60;
+	private static final long LOOKUP_TIMEOUT = 2000L;
+	private static final int MAX_CACHE_SIZE = 1000;
+	private static final int LOOKUP_THREADS = 4;
+
+	private static final String LOCALHOST = "localhost";
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(HostNameResolver.class);
+
+	// --- SINGLETON ---
+
+	private static HostNameResolver instance;
+
+	static final synchronized HostNameResolver getInstance() {
+		if (instance == null) {
+			instance = new HostNameResolver();
+		}
+		return instance;
+	}
+
+	// --- VARIABLES ---
+
+	// Address -> Entry (least recently used are removed)
+	private final LinkedHashMap cache = new LinkedHashMap(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_CACHE_SIZE;
+		}
+
+	};
+
+	private final ThreadPoolExecutor lookups;
+
+	// --- CONSTRUCTOR ---
+
+	private HostNameResolver() {
+		lookups = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue(),
+				new ThreadFactory() {
+
+					private int counter;
+
+					public final synchronized Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Hostname resolver "
+								+ (++counter));
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				});
+		lookups.allowCoreThreadTimeOut(true);
+	}
+
+	// --- CACHED LOOKUP ---
+
+	/**
+	 * Returns the lowercase hostname of the specified address.
+	 *
+	 * @param address
+	 *            remote address
+	 *
+	 * @return hostname, the literal IP-address (failed lookup) or null (the
+	 *         lookup timed out, but it is still running)
+	 */
+	final String getHostName(InetAddress address) throws InterruptedException {
+		if (address.isLoopbackAddress()) {
+			return LOCALHOST;
+		}
+		long now = System.currentTimeMillis();
+		Entry entry;
+		synchronized (this) {
+			entry = (Entry) cache.get(address);
+			if (entry == null) {
+				entry = new Entry(address);
+				cache.put(address, entry);
+				lookups.execute(entry);
+			} else {
+				if (entry.hostName != null) {
+					if (now > entry.expires && !entry.queued) {
+
+						// Refresh in background, use the old hostname
+						entry.queued = true;
+						lookups.execute(entry);
+					}
+					return entry.hostName;
+				}
+			}
+
+			// Wait for the first lookup
+			long timeout = LOOKUP_TIMEOUT;
+			while (entry.hostName == null && timeout > 0) {
+				wait(timeout);
+				timeout = LOOKUP_TIMEOUT - (System.currentTimeMillis() - now);
+			}
+			if (entry.hostName != null) {
+				return entry.hostName;
+			}
+		}
+		log.debug("Reverse DNS lookup timed out (" + address.getHostAddress()
+				+ ")!");
+		return null;
+	}
+
+	// --- BLOCKING LOOKUP ---
+
+	private final void lookup(Entry entry) {
+		String hostName;
+		try {
+			hostName = normalize(InetAddress.getByAddress(
+					entry.address.getAddress()).getHostName());
+		} catch (Exception lookupError) {
+			log.debug("Reverse DNS lookup failed!", lookupError);
+			hostName = entry.address.getHostAddress();
+		}
+		resolved(entry, hostName);
+	}
+
+	private final synchronized void resolved(Entry entry, String hostName) {
+		entry.hostName = hostName;
+		entry.queued = false;
+		if (hostName.equals(entry.address.getHostAddress())) {
+			entry.expires = System.currentTimeMillis() + FAILED_CACHE_TIMEOUT;
+		} else {
+			entry.expires = System.currentTimeMillis() + CACHE_TIMEOUT;
+		}
+		notifyAll();
+	}
+
+	private static final String normalize(String host) {
+		if (host == null || host.length() == 0 || host.equals("127.0.0.1")) {
+			return LOCALHOST;
+		}
+		host = host.toLowerCase();
+		if (host.equals("localhost.localdomain")) {
+			return LOCALHOST;
+		}
+		return host;
+	}
+
+	// --- CACHE ENTRY ---
+
+	private final class Entry implements Runnable {
+
+		private final InetAddress address;
+		private String hostName;
+		private long expires;
+		private boolean queued = true;
+
+		private Entry(InetAddress address) {
+			this.address = address;
+		}
+
+		public final void run() {
+			lookup(this);
+		}
+
+	}
+
+}
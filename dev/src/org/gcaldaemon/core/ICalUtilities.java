@@ -12,11 +12,18 @@
 // 
 package org.gcaldaemon.core;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.LineNumberReader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
@@ -112,12 +119,45 @@ public final class ICalUtilities {
 
 	// --- ICAL FILE PARSERS ---
 
-	private static final CalendarBuilder builder = new CalendarBuilder();
+	// Time zone registry (shared by the parser threads)
+	private static final TimeZoneRegistry registry = new SynchronizedRegistry(
+			new CalendarBuilder().getRegistry());
+
+	// Calendar builders (one per thread, builders aren't thread-safe)
+	private static final ThreadLocal builders = new ThreadLocal() {
+
+		protected final Object initialValue() {
+			return new CalendarBuilder(registry);
+		}
+
+	};
+
+	private static final class SynchronizedRegistry implements
+			TimeZoneRegistry {
+
+		private final TimeZoneRegistry registry;
+
+		private SynchronizedRegistry(TimeZoneRegistry registry) {
+			this.registry = registry;
+		}
+
+		public final synchronized void register(TimeZone timeZone) {
+			registry.register(timeZone);
+		}
+
+		public final synchronized void clear() {
+			registry.clear();
+		}
+
+		public final synchronized TimeZone getTimeZone(String id) {
+			return registry.getTimeZone(id);
+		}
+
+	}
 
 	static final boolean setTimeZone(String id, String offset) throws Exception {
 
-		// Get time zone registry
-		TimeZoneRegistry registry = builder.getRegistry();
+		// Get time zone
 		TimeZone timeZone = registry.getTimeZone(id);
 		if (timeZone == null) {
 			return false;
@@ -148,12 +188,39 @@ public final class ICalUtilities {
 		return true;
 	}
 
+	public static final Calendar parseCalendar(ByteBuffer iCalBytes)
+			throws Exception {
+		try {
+			return ((CalendarBuilder) builders.get()).build(FileUtilities
+					.toInputStream(iCalBytes));
+		} catch (ParserException parserException) {
+
+			// Try to recover the invalid content
+			return parseCalendar(FileUtilities.toByteArray(iCalBytes));
+		}
+	}
+
+	public static final Calendar parseCalendar(File iCalFile)
+			throws Exception {
+		InputStream in = new BufferedInputStream(
+				new FileInputStream(iCalFile), 8192);
+		try {
+			return ((CalendarBuilder) builders.get()).build(in);
+		} catch (ParserException parserException) {
+
+			// Try to recover the invalid content
+			in.close();
+			return parseCalendar(FileUtilities.readBytes(iCalFile));
+		} finally {
+			in.close();
+		}
+	}
+
 	public static final Calendar parseCalendar(byte[] iCalBytes)
 			throws Exception {
 		try {
-			synchronized (builder) {
-				return builder.build(new ByteArrayInputStream(iCalBytes));
-			}
+			return ((CalendarBuilder) builders.get())
+					.build(new ByteArrayInputStream(iCalBytes));
 		} catch (ParserException parserException) {
 			try {
 
@@ -203,9 +270,8 @@ public final class ICalUtilities {
 				reader = null;
 				original = null;
 				iCalBytes = writer.getBytes();
-				synchronized (builder) {
-					return builder.build(new ByteArrayInputStream(iCalBytes));
-				}
+				return ((CalendarBuilder) builders.get())
+						.build(new ByteArrayInputStream(iCalBytes));
 			} catch (Exception secondException) {
 
 				// Unable to recover
@@ -302,6 +368,147 @@ public final class ICalUtilities {
 		return events;
 	}
 
+	// --- SINGLE EVENT MODIFICATION ---
+
+	/**
+	 * Verifies the UIDs of an uploaded event resource.
+	 * 
+	 * @param newEvents
+	 *            new version of the event
+	 * @param uid
+	 *            UID of the resource
+	 * 
+	 * @return true if the calendar has events, and all have the specified UID
+	 */
+	public static final boolean hasUid(Calendar newEvents, String uid)
+			throws Exception {
+		VEvent[] events = getEvents(newEvents);
+		if (events.length == 0) {
+			return false;
+		}
+		Uid eventUid;
+		for (int i = 0; i < events.length; i++) {
+			eventUid = events[i].getUid();
+			if (eventUid == null || !uid.equals(eventUid.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces (or removes) the events of the specified UID in a calendar.
+	 * 
+	 * @param iCalBytes
+	 *            original calendar
+	 * @param calendarURL
+	 *            URL of the calendar
+	 * @param uid
+	 *            UID of the modified event
+	 * @param newEvents
+	 *            new version of the event (or null = removed event)
+	 * @param changedEvents
+	 *            output list of the new or changed events
+	 * @param removedEvents
+	 *            output list of the removed events
+	 * 
+	 * @return the modified calendar
+	 */
+	static final byte[] replaceEvents(byte[] iCalBytes, String calendarURL,
+			String uid, Calendar newEvents, LinkedList changedEvents,
+			LinkedList removedEvents) throws Exception {
+		Calendar calendar = parseCalendar(iCalBytes);
+		ComponentList components = calendar.getComponents();
+		VEvent[] oldEvents = getEvents(calendar);
+		VEvent[] events;
+		if (newEvents == null) {
+			events = new VEvent[0];
+		} else {
+			events = getEvents(newEvents);
+		}
+
+		// Verify UIDs
+		HashSet newIDs = new HashSet();
+		Uid eventUid;
+		for (int i = 0; i < events.length; i++) {
+			eventUid = events[i].getUid();
+			if (eventUid == null || !uid.equals(eventUid.getValue())) {
+				throw new IllegalArgumentException("Invalid UID in event ("
+						+ uid + ")!");
+			}
+			newIDs.add(getUid(events[i]));
+		}
+
+		// Remove old events
+		LinkedList replacedEvents = new LinkedList();
+		String id;
+		for (int i = 0; i < oldEvents.length; i++) {
+			eventUid = oldEvents[i].getUid();
+			if (eventUid == null || !uid.equals(eventUid.getValue())) {
+				continue;
+			}
+			components.remove(oldEvents[i]);
+			id = getUid(oldEvents[i]);
+			if (newIDs.contains(id)) {
+				replacedEvents.addLast(oldEvents[i]);
+			} else {
+
+				// Recurrence exceptions first
+				if (id.indexOf('!') == -1) {
+					removedEvents.addLast(oldEvents[i]);
+				} else {
+					removedEvents.addFirst(oldEvents[i]);
+				}
+			}
+		}
+
+		// Add new events
+		boolean found;
+		Iterator olds;
+		for (int i = 0; i < events.length; i++) {
+			components.add(events[i]);
+			found = false;
+			olds = replacedEvents.iterator();
+			while (olds.hasNext()) {
+				if (isEquals((VEvent) olds.next(), events[i], true,
+						calendarURL)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+
+				// Master events first
+				if (getUid(events[i]).indexOf('!') == -1) {
+					changedEvents.addFirst(events[i]);
+				} else {
+					changedEvents.addLast(events[i]);
+				}
+			}
+		}
+
+		// Add missing timezones
+		if (newEvents != null) {
+			VTimeZone[] oldZones = getTimeZones(calendar);
+			VTimeZone[] newZones = getTimeZones(newEvents);
+			HashSet zoneIDs = new HashSet();
+			Property tzid;
+			for (int i = 0; i < oldZones.length; i++) {
+				tzid = oldZones[i].getProperty(Property.TZID);
+				if (tzid != null) {
+					zoneIDs.add(tzid.getValue());
+				}
+			}
+			for (int i = 0; i < newZones.length; i++) {
+				tzid = newZones[i].getProperty(Property.TZID);
+				if (tzid != null && zoneIDs.add(tzid.getValue())) {
+					components.add(0, newZones[i]);
+				}
+			}
+		}
+		return StringUtils.encodeString(calendar.toString(), StringUtils.UTF_8);
+	}
+
 	static final String getUid(VEvent event) throws Exception {
 		Uid uid = event.getUid();
 		if (uid == null) {
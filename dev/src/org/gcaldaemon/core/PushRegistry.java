@@ -0,0 +1,135 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core;
+
+import java.util.HashMap;
+
+/**
+ * Registry of the active push notification channels (Google Calendar API
+ * 'watch' channels). The file listener registers the channels, the HTTP
+ * listener validates the incoming notifications. Calendars with an active
+ * channel are polled only with the longest polling interval (the cached
+ * calendar is refreshed when Google reports a change). Channels are registered
+ * only while the HTTP listener's notification endpoint is running.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+public final class PushRegistry {
+
+	// --- VARIABLES ---
+
+	// Registered channels (channel ID -> Channel)
+	private final HashMap channels = new HashMap();
+
+	// Watched calendars (URL -> Channel)
+	private final HashMap watchedURLs = new HashMap();
+
+	// The notification endpoint is running
+	private boolean endpointEnabled;
+
+	// --- NOTIFICATION CHANNEL ---
+
+	public static final class Channel {
+
+		/**
+		 * Unique channel ID (X-Goog-Channel-ID)
+		 */
+		public String id;
+
+		/**
+		 * Secret token of the channel (X-Goog-Channel-Token)
+		 */
+		public String token;
+
+		/**
+		 * ID of the watched resource (required to stop the channel)
+		 */
+		public String resourceId;
+
+		/**
+		 * Expiration time of the channel
+		 */
+		public long expiration;
+
+		/**
+		 * URL of the watched calendar
+		 */
+		public String url;
+
+	}
+
+	// --- NOTIFICATION ENDPOINT ---
+
+	public final synchronized void setEndpointEnabled(boolean enabled) {
+		endpointEnabled = enabled;
+	}
+
+	public final synchronized boolean isEndpointEnabled() {
+		return endpointEnabled;
+	}
+
+	// --- CHANNEL REGISTRATION ---
+
+	public final synchronized void register(Channel channel) {
+		channels.put(channel.id, channel);
+		watchedURLs.put(channel.url, channel);
+	}
+
+	public final synchronized void unregister(Channel channel) {
+		channels.remove(channel.id);
+		if (watchedURLs.get(channel.url) == channel) {
+			watchedURLs.remove(channel.url);
+		}
+	}
+
+	// --- CHANNEL VALIDATOR ---
+
+	/**
+	 * Returns the registered channel of a notification.
+	 *
+	 * @param id
+	 *            channel ID
+	 * @param token
+	 *            channel token
+	 *
+	 * @return Channel or null (unknown channel or invalid token)
+	 */
+	public final synchronized Channel getChannel(String id, String token) {
+		if (id == null) {
+			return null;
+		}
+		Channel channel = (Channel) channels.get(id);
+		if (channel == null || !channel.token.equals(token)) {
+			return null;
+		}
+		return channel;
+	}
+
+	/**
+	 * Returns true if the calendar has an unexpired notification channel.
+	 *
+	 * @param url
+	 *            URL of the calendar
+	 * @param now
+	 *            current time
+	 *
+	 * @return true if the calendar is watched
+	 */
+	public final synchronized boolean isWatched(String url, long now) {
+		Channel channel = (Channel) watchedURLs.get(url);
+		return channel != null && channel.expiration > now;
+	}
+
+}
@@ -12,6 +12,8 @@
 //
 package org.gcaldaemon.core;
 
+import java.io.File;
+
 /**
  * Request container of a sort of calendar application (e.g.
  * Thunderbird/Lightning).
@@ -47,6 +49,24 @@ public class Request {
 	 */
 	public byte[] body;
 
+	/**
+	 * Spooled iCalendar file (optional, large uploads)
+	 */
+	public File bodyFile;
+
+	/**
+	 * Value of the WebDAV 'Depth' header (optional)
+	 */
+	public String depth;
+
+	/**
+	 * Push notification headers (X-Goog-Channel-ID, X-Goog-Channel-Token and
+	 * X-Goog-Resource-State, optional)
+	 */
+	public String channelId;
+	public String channelToken;
+	public String resourceState;
+
 	/**
 	 * Local calendar file path (optional)
 	 */
@@ -37,4 +37,9 @@ public final class Response {
 	 */
 	public String contentType = "text/calendar; charset=utf-8";
 
+	/**
+	 * Additional HTTP headers (optional, CRLF-terminated lines)
+	 */
+	public String headers;
+
 }
@@ -101,6 +101,19 @@ public final class StringUtils {
 		return new String(decodeToArray(bytes, encoding));
 	}
 
+	public static final String decodeToString(ByteBuffer bytes, String encoding)
+			throws CharacterCodingException {
+		ByteBuffer source = bytes.duplicate();
+		if (encoding.equals(US_ASCII)) {
+			char[] array = new char[source.remaining()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = (char) source.get();
+			}
+			return new String(array);
+		}
+		return getDecoder(encoding).decode(source).toString();
+	}
+
 	static final char[] decodeToArray(byte[] bytes, String encoding)
 			throws UnsupportedEncodingException {
 		if (encoding.equals(US_ASCII)) {
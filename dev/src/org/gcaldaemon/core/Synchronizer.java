@@ -130,6 +130,14 @@ final class Synchronizer extends Thread {
 					monitor.setVisible(true);
 				}
 
+				// Single event modifications (eg. CalDAV PUT or DELETE)
+				if (calendar.changedEvents != null
+						|| calendar.removedEvents != null) {
+					synchronizeEvents(calendar);
+					log.debug("Synchronization finished.", null);
+					continue;
+				}
+
 				// Find new or changed events
 				Calendar newCalendar = ICalUtilities
 						.parseCalendar(calendar.body);
@@ -183,6 +191,27 @@ final class Synchronizer extends Thread {
 		}
 	}
 
+	private final void synchronizeEvents(CachedCalendar calendar)
+			throws Exception {
+		VEvent[] removedEvents = calendar.removedEvents;
+		VEvent[] changedEvents = calendar.changedEvents;
+		VTimeZone[] timeZones = calendar.timeZones;
+		calendar.removedEvents = null;
+		calendar.changedEvents = null;
+		calendar.timeZones = null;
+		if (removedEvents != null && removedEvents.length != 0
+				&& deleteEnabled) {
+
+			// Remove deleted events from Google
+			GCalUtilities.removeEvents(calendar, removedEvents);
+		}
+		if (changedEvents != null && changedEvents.length != 0) {
+
+			// Update events in Google Calendar
+			GCalUtilities.updateEvents(calendar, timeZones, changedEvents);
+		}
+	}
+
 	// --- ON DEMAND / OFFLINE SYNCHRONIZER ---
 
 	final byte[] syncronizeNow(CachedCalendar calendar) throws Exception {
@@ -197,11 +226,12 @@ final class Synchronizer extends Thread {
 		VEvent event;
 		int i;
 
-		// Load offline history
-		loadEventRegistry();
-
-		// Get historical parameters
-		HashMap uids = (HashMap) eventRegistry.get(calendar.url);
+		// Load offline history and get historical parameters
+		HashMap uids;
+		synchronized (eventRegistry) {
+			loadEventRegistry();
+			uids = (HashMap) eventRegistry.get(calendar.url);
+		}
 		if (uids == null) {
 			uids = new HashMap();
 		}
@@ -498,10 +528,19 @@ final class Synchronizer extends Thread {
 			}
 		}
 
-		// Set historical parameters
-		eventRegistry.put(calendarURL, uids);
+		// Set historical parameters (calendars may be synchronized in
+		// parallel)
+		synchronized (eventRegistry) {
+			eventRegistry.put(calendarURL, uids);
+			writeEventRegistry();
+		}
+	}
+
+	private final void writeEventRegistry() {
 
 		// Save file
+		HashMap uids;
+		String uid;
 		FileOutputStream out = null;
 		try {
 
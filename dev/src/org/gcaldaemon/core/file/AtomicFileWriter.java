@@ -0,0 +1,96 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Atomic file writer of the file listeners. The content is written into a
+ * temporary file (in the same directory), then the temporary file is renamed
+ * to the target file, so the calendar applications never read half-written
+ * iCal files.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class AtomicFileWriter {
+
+	// --- CONSTANTS ---
+
+	static final String TEMP_EXTENSION = ".tmp";
+
+	// --- CONSTRUCTOR ---
+
+	private AtomicFileWriter() {
+	}
+
+	// --- ATOMIC WRITE ---
+
+	/**
+	 * Replaces the content of a file.
+	 *
+	 * @param file
+	 *            target file
+	 * @param bytes
+	 *            new content
+	 *
+	 * @return timestamp of the saved file
+	 */
+	static final long write(File file, byte[] bytes) throws Exception {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = new File(dir, '.' + file.getName() + TEMP_EXTENSION);
+		FileOutputStream fos = null;
+		for (int tries = 0;; tries++) {
+			try {
+
+				// Write temporary file
+				fos = new FileOutputStream(temp);
+				fos.write(bytes);
+				fos.flush();
+				fos.getFD().sync();
+				fos.close();
+				fos = null;
+
+				// Rename to target
+				try {
+					Files.move(temp.toPath(), file.toPath(),
+							StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException unsupported) {
+					Files.move(temp.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+				return file.lastModified();
+			} catch (Exception saveError) {
+				if (fos != null) {
+					try {
+						fos.close();
+					} catch (Exception ignored) {
+					}
+					fos = null;
+				}
+				temp.delete();
+				if (tries == 5) {
+					throw saveError;
+				}
+				Thread.sleep(500);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * 128-bit (MD5) digest of the normalized content of an iCal file. The raw
+ * bytes are processed in one pass, without decoding: the calendar header,
+ * timestamps (*STAMP*), UID, PRODID and X- properties are skipped and the
+ * folded lines are unfolded, so two calendars with the same events have the
+ * same digest.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class CalendarDigest {
+
+	// --- CONSTANTS ---
+
+	private static final byte[] BEGIN_VEVENT = "BEGIN:VEVENT".getBytes();
+	private static final byte[] BEGIN_VTODO = "BEGIN:VTODO".getBytes();
+	private static final byte[] STAMP = "STAMP".getBytes();
+	private static final byte[] UID = "UID".getBytes();
+	private static final byte[] PRODID = "PRODID".getBytes();
+	private static final byte[] EXTENSION = "X-".getBytes();
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte SPACE = ' ';
+	private static final byte TAB = '\t';
+	private static final byte COLON = ':';
+	private static final byte SEMICOLON = ';';
+
+	// --- CONSTRUCTOR ---
+
+	private CalendarDigest() {
+	}
+
+	// --- DIGEST CALCULATION ---
+
+	/**
+	 * Computes the digest of an iCal file.
+	 *
+	 * @param iCalBytes
+	 *            content of the iCal file (or null)
+	 *
+	 * @return 16 bytes long digest (or null)
+	 */
+	static final byte[] digest(byte[] iCalBytes) throws Exception {
+		if (iCalBytes == null) {
+			return null;
+		}
+		return digest(ByteBuffer.wrap(iCalBytes));
+	}
+
+	/**
+	 * Computes the digest of an iCal file.
+	 *
+	 * @param iCalBytes
+	 *            content of the iCal file
+	 *
+	 * @return 16 bytes long digest
+	 */
+	static final byte[] digest(ByteBuffer iCalBytes) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		int length = iCalBytes.limit();
+		boolean started = false;
+		boolean skipped = true;
+		int start = iCalBytes.position();
+		int end;
+		while (start < length) {
+
+			// Find end of line
+			end = start;
+			while (end < length && iCalBytes.get(end) != CR
+					&& iCalBytes.get(end) != LF) {
+				end++;
+			}
+			if (end == start) {
+
+				// Empty line
+				start++;
+				continue;
+			}
+			if (iCalBytes.get(start) == SPACE || iCalBytes.get(start) == TAB) {
+
+				// Folded line (unfold)
+				if (!skipped) {
+					update(digest, iCalBytes, start + 1, end);
+				}
+			} else if (!started) {
+
+				// Skip calendar header
+				if (startsWith(iCalBytes, start, end, BEGIN_VEVENT)
+						|| startsWith(iCalBytes, start, end, BEGIN_VTODO)) {
+					started = true;
+				}
+				skipped = true;
+			} else {
+
+				// Skip timestamps and generated properties
+				skipped = isIgnored(iCalBytes, start, end);
+				if (!skipped) {
+					digest.update(LF);
+					update(digest, iCalBytes, start, end);
+				}
+			}
+			start = end + 1;
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Computes the digest of the raw content of a file.
+	 *
+	 * @param bytes
+	 *            content of the file
+	 *
+	 * @return 16 bytes long digest
+	 */
+	static final byte[] digestBytes(byte[] bytes) throws Exception {
+		return MessageDigest.getInstance("MD5").digest(bytes);
+	}
+
+	static final byte[] digestBytes(ByteBuffer bytes) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("MD5");
+		digest.update(bytes.duplicate());
+		return digest.digest();
+	}
+
+	private static final void update(MessageDigest digest, ByteBuffer bytes,
+			int start, int end) {
+		if (bytes.hasArray()) {
+			digest.update(bytes.array(), bytes.arrayOffset() + start, end
+					- start);
+			return;
+		}
+		ByteBuffer range = bytes.duplicate();
+		range.limit(end);
+		range.position(start);
+		digest.update(range);
+	}
+
+	private static final boolean isIgnored(ByteBuffer bytes, int start,
+			int end) {
+		if (startsWith(bytes, start, end, UID)
+				|| startsWith(bytes, start, end, PRODID)
+				|| startsWith(bytes, start, end, EXTENSION)) {
+			return true;
+		}
+
+		// Find the 'STAMP' text in the property name
+		int nameEnd = start;
+		while (nameEnd < end && bytes.get(nameEnd) != COLON
+				&& bytes.get(nameEnd) != SEMICOLON) {
+			nameEnd++;
+		}
+		int max = nameEnd - STAMP.length;
+		for (int i = start; i <= max; i++) {
+			if (startsWith(bytes, i, nameEnd, STAMP)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final boolean startsWith(ByteBuffer bytes, int start,
+			int end, byte[] prefix) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes.get(start + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -12,14 +12,20 @@
 //
 package org.gcaldaemon.core.file;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.gcaldaemon.logger.QuickWriter;
 
 /**
- * Calendar reloader thread.
+ * Calendar reloader thread. The reload requests within the configured period
+ * are merged into one script execution. The output and the exit code of the
+ * script are written into the log.
  * 
  * Created: Jul 20, 2007 12:50:56 PM
  * 
@@ -35,31 +41,40 @@ final class CalendarReloader extends Thread {
 
 	private final String cmd;
 	private final String[] args;
+	private final long delay;
+	private final long timeout;
 
-	private boolean locked = true;
+	// Reload request tokens (consumed by the reloader thread)
+	private final LinkedBlockingQueue requests = new LinkedBlockingQueue();
 
 	// --- CONSTRUCTOR ---
 
-	CalendarReloader(String command) {
+	CalendarReloader(String command, long delay, long timeout) {
+		super("Calendar reloader");
 		cmd = command;
 		args = parseLine(command);
+		this.delay = delay;
+		this.timeout = timeout;
 		setPriority(MIN_PRIORITY);
 		setDaemon(true);
 	}
 
 	// --- RELOAD/RESTART CALENDAR APPLICATION ---
 
-	final synchronized void reload(boolean runOnce) {
+	final void reload(boolean runOnce) {
 		if (runOnce) {
 			try {
 				executeScript();
+			} catch (InterruptedException interrupt) {
+
+				// Keep the interrupted status of the caller
+				Thread.currentThread().interrupt();
 			} catch (Exception commandException) {
 				log.warn("Unable to execute command (" + cmd + ")!",
 						commandException);
 			}
 		} else {
-			locked = false;
-			notifyAll();
+			requests.offer(Boolean.TRUE);
 		}
 	}
 
@@ -69,13 +84,16 @@ final class CalendarReloader extends Thread {
 		for (;;) {
 			try {
 
-				// Wait for unlock
-				synchronized (this) {
-					while (locked) {
-						wait(5000);
-					}
-					locked = true;
+				// Wait for the first request
+				requests.take();
+				long first = System.currentTimeMillis();
+
+				// Merge the further requests of the period
+				long remaining;
+				while ((remaining = first + delay - System.currentTimeMillis()) > 0) {
+					requests.poll(remaining, TimeUnit.MILLISECONDS);
 				}
+				requests.clear();
 
 				// Execute script
 				executeScript();
@@ -94,22 +112,65 @@ final class CalendarReloader extends Thread {
 		// Execute script
 		log.debug("Executing reloader script (" + cmd + ")...");
 		ProcessBuilder builder = new ProcessBuilder(args);
+		builder.redirectErrorStream(true);
 		Process script = builder.start();
-		sleep(1000L);
+		script.getOutputStream().close();
+		OutputReader reader = new OutputReader(script);
 
 		// Wait for script
-		for (int i = 0; i < 15; i++) {
+		try {
+			if (!script.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+				log.warn("Reloader script timed out (" + cmd + ")!");
+				return;
+			}
+			reader.join(1000L);
+			int exitValue = script.exitValue();
+			if (exitValue == 0) {
+				log.debug("Reloader script finished successfully.");
+			} else {
+				log.warn("Reloader script failed (exit code " + exitValue
+						+ ")!");
+			}
+		} finally {
+
+			// Destroy script
+			script.destroy();
+		}
+	}
+
+	// --- SCRIPT OUTPUT READER ---
+
+	private static final class OutputReader extends Thread {
+
+		private final Process script;
+
+		private OutputReader(Process script) {
+			super("Reloader output");
+			this.script = script;
+			setDaemon(true);
+			start();
+		}
+
+		public final void run() {
+			BufferedReader reader = null;
 			try {
-				script.exitValue();
-			} catch (Exception processNotExited) {
-				sleep(1000L);
+				reader = new BufferedReader(new InputStreamReader(script
+						.getInputStream()));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					log.info("Reloader script: " + line);
+				}
+			} catch (Exception closed) {
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (Exception ignored) {
+					}
+				}
 			}
 		}
 
-		// Destroy script
-		script.destroy();
-		script = null;
-		log.debug("Reloader script finished successfully.");
 	}
 
 	// --- COMMAND LINE PARSER ---
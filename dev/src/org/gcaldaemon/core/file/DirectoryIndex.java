@@ -0,0 +1,192 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of a one event = one iCal file directory (eg. MacOSX Leopard,
+ * Evolution, Kontact). Stores the timestamp, size, digest and the parsed
+ * components of every event file, so only the new or changed files are loaded
+ * (and parsed in parallel) and only the changed events are rewritten.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class DirectoryIndex {
+
+	// --- VARIABLES ---
+
+	// Indexed event files (file name -> Entry)
+	private final HashMap entries = new HashMap();
+
+	private boolean scanned;
+
+	// --- INDEX ENTRY ---
+
+	static final class Entry {
+
+		long lastModified;
+		long length;
+		byte[] digest;
+		String content;
+
+	}
+
+	// --- INDEX HANDLERS ---
+
+	final Entry get(String name) {
+		return (Entry) entries.get(name);
+	}
+
+	final void put(String name, Entry entry) {
+		entries.put(name, entry);
+	}
+
+	final void remove(String name) {
+		entries.remove(name);
+	}
+
+	final void retainAll(HashSet names) {
+		entries.keySet().retainAll(names);
+	}
+
+	final String[] getNames() {
+		String[] names = new String[entries.size()];
+		entries.keySet().toArray(names);
+		Arrays.sort(names);
+		return names;
+	}
+
+	final void setScanned() {
+		scanned = true;
+	}
+
+	/**
+	 * Adds the existing (not indexed) event files to the index.
+	 *
+	 * @param dir
+	 *            calendar directory
+	 */
+	final void scan(File dir) {
+		if (scanned) {
+			return;
+		}
+		File[] files = dir.listFiles();
+		Entry entry;
+		for (int i = 0; files != null && i < files.length; i++) {
+			if (!files[i].getName().endsWith(".ics")
+					|| entries.containsKey(files[i].getName())) {
+				continue;
+			}
+			entry = new Entry();
+			entry.lastModified = files[i].lastModified();
+			entry.length = files[i].length();
+			entries.put(files[i].getName(), entry);
+		}
+		scanned = true;
+	}
+
+	/**
+	 * Returns the timestamp of the last modified event file (or the directory).
+	 *
+	 * @param dir
+	 *            calendar directory
+	 *
+	 * @return timestamp
+	 */
+	final long lastModified(File dir) {
+		long modified = dir.lastModified();
+		Iterator values = entries.values().iterator();
+		Entry entry;
+		while (values.hasNext()) {
+			entry = (Entry) values.next();
+			if (entry.lastModified > modified) {
+				modified = entry.lastModified;
+			}
+		}
+		return modified;
+	}
+
+	// --- PARALLEL FILE PARSER ---
+
+	private static ThreadPoolExecutor parser;
+
+	private static final synchronized ThreadPoolExecutor getParser() {
+		if (parser == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			parser = new ThreadPoolExecutor(threads, threads, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue(),
+					new ThreadFactory() {
+
+						private int counter;
+
+						public final synchronized Thread newThread(
+								Runnable task) {
+							Thread thread = new Thread(task, "Calendar parser "
+									+ (++counter));
+							thread.setDaemon(true);
+							return thread;
+						}
+
+					});
+			parser.allowCoreThreadTimeOut(true);
+		}
+		return parser;
+	}
+
+	/**
+	 * Executes the loader tasks on all CPU cores.
+	 *
+	 * @param tasks
+	 *            list of Callables
+	 *
+	 * @return results of the tasks
+	 */
+	static final Object[] invokeAll(LinkedList tasks) throws Exception {
+		Object[] results = new Object[tasks.size()];
+		if (results.length == 1) {
+			results[0] = ((Callable) tasks.getFirst()).call();
+			return results;
+		}
+		List futures = getParser().invokeAll(tasks);
+		Iterator iterator = futures.iterator();
+		for (int i = 0; iterator.hasNext(); i++) {
+			try {
+				results[i] = ((Future) iterator.next()).get();
+			} catch (ExecutionException executionError) {
+				Throwable cause = executionError.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				}
+				throw executionError;
+			}
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,156 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded thread pool of the file listeners. Processes the configured
+ * file/calendar pairs concurrently, but runs at most 'accountThreads' tasks of
+ * the same Google Account at the same time (to stay within the request quota).
+ * The execute method returns when all tasks of the round are finished.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class FileTaskExecutor {
+
+	// --- VARIABLES ---
+
+	private final ThreadPoolExecutor executor;
+	private final int accountThreads;
+
+	// Running tasks per account (username -> Semaphore)
+	private final HashMap accountPermits = new HashMap();
+
+	// --- CONSTRUCTOR ---
+
+	FileTaskExecutor(final ThreadGroup group, int threads, int accountThreads) {
+		if (threads < 1) {
+			threads = 1;
+		}
+		if (accountThreads < 1) {
+			accountThreads = 1;
+		}
+		this.accountThreads = accountThreads;
+		if (threads == 1) {
+
+			// Sequential processing
+			executor = null;
+			return;
+		}
+		executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue(),
+				new ThreadFactory() {
+
+					private int counter;
+
+					public final synchronized Thread newThread(Runnable task) {
+						Thread thread = new Thread(group, task, "File worker "
+								+ (++counter));
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	// --- EXECUTE TASKS ---
+
+	/**
+	 * Runs the tasks and waits for all of them.
+	 *
+	 * @param tasks
+	 *            file processors
+	 * @param accounts
+	 *            Google Account of the tasks (usernames, or null)
+	 */
+	final void execute(Runnable[] tasks, String[] accounts)
+			throws InterruptedException {
+		if (executor == null || tasks.length < 2) {
+			for (int i = 0; i < tasks.length; i++) {
+				tasks[i].run();
+			}
+			return;
+		}
+		CountDownLatch latch = new CountDownLatch(tasks.length);
+		for (int i = 0; i < tasks.length; i++) {
+			executor.execute(new Worker(tasks[i], getPermits(accounts[i]),
+					latch));
+		}
+		latch.await();
+	}
+
+	private final Semaphore getPermits(String account) {
+		if (account == null) {
+			account = "";
+		}
+		synchronized (accountPermits) {
+			Semaphore permits = (Semaphore) accountPermits.get(account);
+			if (permits == null) {
+				permits = new Semaphore(accountThreads, true);
+				accountPermits.put(account, permits);
+			}
+			return permits;
+		}
+	}
+
+	// --- STOP SERVICE ---
+
+	final void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	// --- WORKER ---
+
+	private static final class Worker implements Runnable {
+
+		private final Runnable task;
+		private final Semaphore permits;
+		private final CountDownLatch latch;
+
+		private Worker(Runnable task, Semaphore permits, CountDownLatch latch) {
+			this.task = task;
+			this.permits = permits;
+			this.latch = latch;
+		}
+
+		public final void run() {
+			try {
+				permits.acquire();
+				try {
+					task.run();
+				} finally {
+					permits.release();
+				}
+			} catch (InterruptedException interrupt) {
+
+				// Service stopped
+			} finally {
+				latch.countDown();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,202 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.io.File;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Filesystem change notifier of the file listener. Watches the parent
+ * directories of the iCal files (and the directories of the one event = one
+ * file mode), and reports the index of the modified calendars to the listener.
+ * Calendars that can't be watched (missing directory, unsupported filesystem)
+ * are polled by the listener.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class FileWatcher extends Thread {
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(FileWatcher.class);
+
+	// --- VARIABLES ---
+
+	private final OnlineFileListener listener;
+	private final WatchService watchService;
+	private final boolean[] watched;
+
+	// Registrations (WatchKey -> LinkedList of Target)
+	private final HashMap targets = new HashMap();
+
+	// --- CONSTRUCTOR ---
+
+	FileWatcher(OnlineFileListener listener, File[] iCalFiles)
+			throws Exception {
+		super("File watcher");
+		setDaemon(true);
+		this.listener = listener;
+		watchService = FileSystems.getDefault().newWatchService();
+		watched = new boolean[iCalFiles.length];
+
+		// Register directories
+		File dir;
+		String name;
+		WatchKey key;
+		LinkedList list;
+		for (int i = 0; i < iCalFiles.length; i++) {
+			if (iCalFiles[i].isDirectory()) {
+
+				// MacOSX Leopard (one calendar = multiple iCal files)
+				dir = iCalFiles[i];
+				name = null;
+			} else {
+				dir = iCalFiles[i].getAbsoluteFile().getParentFile();
+				name = iCalFiles[i].getName();
+			}
+			if (dir == null || !dir.isDirectory()) {
+				log.debug("Unable to watch " + iCalFiles[i]
+						+ " (missing directory)!");
+				continue;
+			}
+			try {
+				key = dir.toPath().register(watchService,
+						new WatchEvent.Kind[] {
+								StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_MODIFY,
+								StandardWatchEventKinds.ENTRY_DELETE });
+			} catch (Exception unsupported) {
+				log.debug("Unable to watch " + iCalFiles[i] + "!", unsupported);
+				continue;
+			}
+			list = (LinkedList) targets.get(key);
+			if (list == null) {
+				list = new LinkedList();
+				targets.put(key, list);
+			}
+			list.addLast(new Target(i, name));
+			watched[i] = true;
+		}
+		start();
+	}
+
+	// --- WATCHED FLAGS ---
+
+	final synchronized boolean isWatched(int fileIndex) {
+		return watched[fileIndex];
+	}
+
+	// --- EVENT LOOP ---
+
+	public final void run() {
+		WatchKey key;
+		LinkedList list;
+		Iterator events, iterator;
+		WatchEvent event;
+		String name;
+		Target target;
+		try {
+			for (;;) {
+				key = watchService.take();
+				list = (LinkedList) targets.get(key);
+				if (list == null) {
+					key.cancel();
+					continue;
+				}
+				events = key.pollEvents().iterator();
+				while (events.hasNext()) {
+					event = (WatchEvent) events.next();
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						name = null;
+					} else {
+						name = ((Path) event.context()).toString();
+					}
+					iterator = list.iterator();
+					while (iterator.hasNext()) {
+						target = (Target) iterator.next();
+						if (name == null || target.matches(name)) {
+							listener.fileChanged(target.fileIndex);
+						}
+					}
+				}
+				if (!key.reset()) {
+
+					// Directory removed - use polling
+					iterator = list.iterator();
+					while (iterator.hasNext()) {
+						target = (Target) iterator.next();
+						synchronized (this) {
+							watched[target.fileIndex] = false;
+						}
+						listener.fileChanged(target.fileIndex);
+					}
+					targets.remove(key);
+					log.debug("Watched directory removed, polling enabled.");
+				}
+			}
+		} catch (InterruptedException interrupt) {
+		} catch (ClosedWatchServiceException closed) {
+		} finally {
+			try {
+				watchService.close();
+			} catch (Exception ignored) {
+			}
+		}
+	}
+
+	// --- STOP SERVICE ---
+
+	public final void interrupt() {
+		try {
+			watchService.close();
+		} catch (Exception ignored) {
+		}
+		super.interrupt();
+	}
+
+	// --- WATCHED FILE ---
+
+	private static final class Target {
+
+		private final int fileIndex;
+		private final String name;
+
+		private Target(int fileIndex, String name) {
+			this.fileIndex = fileIndex;
+			this.name = name;
+		}
+
+		private final boolean matches(String fileName) {
+			if (name == null) {
+				return fileName.endsWith(".ics");
+			}
+			return name.equals(fileName);
+		}
+
+	}
+
+}
@@ -0,0 +1,133 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+/**
+ * Write coalescer of the file listener. The first update of a calendar file is
+ * written immediately, the further updates within the configured period are
+ * postponed, and only the last one is written (at the end of the period).
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class FileWriteQueue {
+
+	// --- VARIABLES ---
+
+	private final long window;
+
+	private final byte[][] pending;
+	private final long[] dueTimes;
+	private final long[] lastWrites;
+
+	// --- CONSTRUCTOR ---
+
+	FileWriteQueue(int files, long window) {
+		this.window = window;
+		pending = new byte[files][];
+		dueTimes = new long[files];
+		lastWrites = new long[files];
+	}
+
+	// --- QUEUE HANDLERS ---
+
+	/**
+	 * Adds an update to the queue.
+	 *
+	 * @param index
+	 *            index of the file
+	 * @param bytes
+	 *            new content of the file
+	 * @param now
+	 *            current time
+	 *
+	 * @return true if the content should be written now
+	 */
+	final synchronized boolean offer(int index, byte[] bytes, long now) {
+		if (pending[index] == null && now - lastWrites[index] >= window) {
+			lastWrites[index] = now;
+			return true;
+		}
+		pending[index] = bytes;
+		dueTimes[index] = lastWrites[index] + window;
+		return false;
+	}
+
+	/**
+	 * Removes a postponed update from the queue.
+	 *
+	 * @param index
+	 *            index of the file
+	 * @param now
+	 *            current time
+	 *
+	 * @return content of the file (or null, if not due)
+	 */
+	final synchronized byte[] poll(int index, long now) {
+		byte[] bytes = pending[index];
+		if (bytes == null || now < dueTimes[index]) {
+			return null;
+		}
+		pending[index] = null;
+		lastWrites[index] = now;
+		return bytes;
+	}
+
+	/**
+	 * Puts back a postponed update that could not be written (unless a newer
+	 * update has been queued). The write is retried after the period.
+	 *
+	 * @param index
+	 *            index of the file
+	 * @param bytes
+	 *            content of the file
+	 * @param now
+	 *            current time
+	 */
+	final synchronized void retry(int index, byte[] bytes, long now) {
+		if (pending[index] == null) {
+			pending[index] = bytes;
+			dueTimes[index] = now + window;
+		}
+	}
+
+	/**
+	 * Drops the postponed update of a locally modified file.
+	 *
+	 * @param index
+	 *            index of the file
+	 */
+	final synchronized void cancel(int index) {
+		pending[index] = null;
+	}
+
+	/**
+	 * Returns the time until the next postponed update.
+	 *
+	 * @param now
+	 *            current time
+	 *
+	 * @return delay in milliseconds (or Long.MAX_VALUE)
+	 */
+	final synchronized long getDelay(long now) {
+		long delay = Long.MAX_VALUE;
+		for (int i = 0; i < pending.length; i++) {
+			if (pending[i] != null) {
+				delay = Math.min(delay, Math.max(0, dueTimes[i] - now));
+			}
+		}
+		return delay;
+	}
+
+}
@@ -12,6 +12,9 @@
 //
 package org.gcaldaemon.core.file;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 import org.gcaldaemon.core.CachedCalendar;
 import org.gcaldaemon.core.Configurator;
 import org.gcaldaemon.core.GCalUtilities;
@@ -37,94 +40,187 @@ public final class OfflineFileListener extends OnlineFileListener {
 
 	// --- SYNCRONIZER LOOP ---
 
+	// Digests of the local files and versions of the Google Calendars after
+	// the last synchronization
+	private byte[][] lastLocalDigests;
+	private String[] lastRemoteVersions;
+
 	public final void run() {
+		lastLocalDigests = new byte[iCalFiles.length][];
+		lastRemoteVersions = new String[iCalFiles.length];
+		startPushSubscriber();
 
 		// Main loop
-		for (;;) {
-
-			// Loop on files
-			int files = iCalFiles.length;
-			boolean fileChanged = false;
-			for (int fileIndex = 0; fileIndex < files; fileIndex++) {
-				try {
-
-					// Create request
-					Request request = new Request();
-					request.url = urls[fileIndex];
-					request.username = usernames[fileIndex];
-					request.password = passwords[fileIndex];
-					request.filePath = iCalFiles[fileIndex].getAbsolutePath();
-
-					// Synchronize
-					if (iCalFiles[fileIndex].exists()) {
-						request.body = loadFile(fileIndex);
-						configurator.synchronizeNow(request);
-					}
-
-					// Download the new ics file
-					CachedCalendar calendar = configurator.getCalendar(request);
-					byte[] bytes = calendar.toByteArray();
-
-					// Verify loaded ics file
-					char[] chars = new char[Math.min(bytes.length, 100)];
-					for (int i = 0; i < chars.length; i++) {
-						chars[i] = (char) bytes[i];
+		try {
+			for (;;) {
+
+				// Process the scheduled files in parallel
+				long now = System.currentTimeMillis();
+				LinkedList taskList = new LinkedList();
+				LinkedList accountList = new LinkedList();
+				for (int fileIndex = 0; fileIndex < iCalFiles.length; fileIndex++) {
+					if (scheduler.isDue(fileIndex, now)) {
+						taskList.addLast(new FileTask(fileIndex, now));
+						accountList.addLast(usernames[fileIndex]);
 					}
-					if ((new String(chars)).indexOf(GCalUtilities.ERROR_MARKER) != -1) {
-						continue;
+				}
+				int files = taskList.size();
+				FileTask[] tasks = new FileTask[files];
+				String[] accounts = new String[files];
+				taskList.toArray(tasks);
+				accountList.toArray(accounts);
+				executor.execute(tasks, accounts);
+
+				// Collect results
+				boolean fileChanged = false;
+				int skipped = 0;
+				for (int i = 0; i < files; i++) {
+					if (tasks[i].interrupted) {
+						throw new InterruptedException();
 					}
-
-					// Save modified ics
-					if (!isEquals(request.body, bytes)) {
-						saveFile(bytes, fileIndex);
+					if (tasks[i].fileSaved) {
 						fileChanged = true;
 					}
+					if (tasks[i].skipped) {
+						skipped++;
+					}
+				}
+				String summary = "Synchronization finished (" + (files - skipped)
+						+ " executed, " + skipped + " skipped).";
+
+				// Reload calendars
+				if (fileChanged) {
+					reloadCalendar();
+				}
 
-					// Sleep in service mode
-					if (configurator.getRunMode() != Configurator.MODE_RUNONCE) {
-						sleep(100);
+				// Quit in 'on demand' mode
+				if (configurator.getRunMode() == Configurator.MODE_RUNONCE) {
+					log.info(summary);
+					System.exit(0);
+				}
+				log.debug(summary);
+
+				// Sleep until the next scheduled calendar (or notification)
+				synchronized (this) {
+					long delay = scheduler.getDelay(System.currentTimeMillis());
+					if (delay > 0) {
+						delay = Math.max(1000L, delay);
+						if (log.isDebugEnabled()) {
+							log.debug("Process is suspended for " + delay
+									+ " milliseconds.");
+						}
+						wait(delay);
 					}
+				}
+			}
+		} catch (InterruptedException interrupt) {
+
+			// Service stopped
+			log.info("File listener stopped.");
+		} finally {
+			stopPushSubscriber();
+			executor.shutdown();
+		}
+	}
 
-				} catch (InterruptedException interrupt) {
+	private final class FileTask implements Runnable {
 
-					// Service stopped
-					log.info("File listener stopped.");
-					return;
+		private final int fileIndex;
+		private final long now;
+
+		private boolean fileSaved;
+		private boolean skipped;
+		private boolean interrupted;
+
+		private FileTask(int fileIndex, long now) {
+			this.fileIndex = fileIndex;
+			this.now = now;
+		}
 
-				} catch (Exception fatalError) {
+		public final void run() {
+			boolean remoteChanged = false;
+			try {
 
-					// Fatal error
-					log.fatal("Fatal service error!", fatalError);
+				// Create request
+				Request request = new Request();
+				request.url = urls[fileIndex];
+				request.username = usernames[fileIndex];
+				request.password = passwords[fileIndex];
+				request.filePath = iCalFiles[fileIndex].getAbsolutePath();
+
+				// Skip unchanged calendars (same local file and remote version)
+				byte[] localDigest = null;
+				if (iCalFiles[fileIndex].exists()) {
+					request.body = loadFile(fileIndex);
+					localDigest = CalendarDigest.digest(request.body);
 				}
-			}
+				byte[] lastDigest = lastLocalDigests[fileIndex];
+				boolean localChanged = lastDigest != null
+						&& !Arrays.equals(localDigest, lastDigest);
+				if (localChanged) {
+					scheduler.localChanged(fileIndex, now);
+				}
+				// The version is queried before the download (a remote change
+				// after the query is detected in the next round)
+				String remoteVersion = null;
+				if (localDigest != null) {
+					remoteVersion = GCalUtilities.getCalendarVersion(request);
+				}
+				if (remoteVersion != null
+						&& remoteVersion.equals(lastRemoteVersions[fileIndex])
+						&& Arrays.equals(localDigest, lastLocalDigests[fileIndex])) {
+					log.debug("Calendar unchanged (" + request.url + ").");
+					skipped = true;
+					return;
+				}
+				lastRemoteVersions[fileIndex] = null;
 
-			// Reload calendars
-			if (fileChanged) {
-				reloadCalendar();
-			}
+				// Synchronize (loads the calendar from Google)
+				if (request.body != null) {
+					configurator.synchronizeNow(request);
+				}
 
-			// Quit in 'on demand' mode
-			if (configurator.getRunMode() == Configurator.MODE_RUNONCE) {
-				log.info("Synchronization finished.");
-				System.exit(0);
-			}
-			log.debug("Synchronization finished.");
+				// Download the new ics file
+				CachedCalendar calendar = configurator.getCalendar(request);
+				byte[] bytes = calendar.toByteArray();
 
-			// Sleep
-			try {
-				if (log.isDebugEnabled()) {
-					log.debug("Process is suspended for " + googlePollingTime
-							+ " milliseconds.");
+				// Verify loaded ics file
+				char[] chars = new char[Math.min(bytes.length, 100)];
+				for (int i = 0; i < chars.length; i++) {
+					chars[i] = (char) bytes[i];
 				}
-				sleep(googlePollingTime);
+				if ((new String(chars)).indexOf(GCalUtilities.ERROR_MARKER) != -1) {
+					return;
+				}
+
+				// Save modified ics
+				byte[] digest = CalendarDigest.digest(bytes);
+				if (localDigest == null || !Arrays.equals(localDigest, digest)) {
+					saveFile(bytes, fileIndex);
+					fileSaved = true;
+					remoteChanged = lastDigest != null && !localChanged;
+				}
+
+				// Store versions of the synchronized calendars
+				lastLocalDigests[fileIndex] = digest;
+				lastRemoteVersions[fileIndex] = remoteVersion;
+
 			} catch (InterruptedException interrupt) {
 
 				// Service stopped
-				log.info("File listener stopped.");
-				return;
-			}
+				interrupted = true;
+
+			} catch (Exception fatalError) {
+
+				// Fatal error
+				log.fatal("Fatal service error!", fatalError);
+			} finally {
 
+				// Adapt polling interval to the change frequency
+				scheduler.checked(fileIndex, now, remoteChanged);
+			}
 		}
+
 	}
 
 	// --- OVERRIDE WAKEUP ---
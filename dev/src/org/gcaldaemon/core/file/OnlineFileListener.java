@@ -13,13 +13,14 @@
 package org.gcaldaemon.core.file;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
@@ -31,6 +32,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.gcaldaemon.core.CachedCalendar;
 import org.gcaldaemon.core.Configurator;
+import org.gcaldaemon.core.FileUtilities;
 import org.gcaldaemon.core.ICalUtilities;
 import org.gcaldaemon.core.Request;
 import org.gcaldaemon.core.StringUtils;
@@ -53,8 +55,6 @@ public class OnlineFileListener extends Thread {
 	private static final int FAST_POLLING_LOOPS = 60;
 	private static final int MAX_INDEX_GAP = 100;
 
-	private static final String CRLF = "\r\n";
-
 	// --- LOGGER ---
 
 	protected static final Log log = LogFactory
@@ -66,10 +66,38 @@ public class OnlineFileListener extends Thread {
 
 	private final long filePollingTime;
 	private final String reloaderScript;
+	private final long reloaderDelay;
+	private final long reloaderTimeout;
+
+	// --- FILESYSTEM NOTIFICATIONS ---
+
+	private final boolean watchEnabled;
+	private final long watchDelay;
+	private FileWatcher watcher;
+
+	// --- PARALLEL FILE PROCESSOR ---
+
+	protected final FileTaskExecutor executor;
+
+	// --- ADAPTIVE GOOGLE CALENDAR POLLING ---
 
-	protected final long googlePollingTime;
+	protected final PollingScheduler scheduler;
+
+	// --- PUSH NOTIFICATIONS ---
+
+	private final boolean pushEnabled;
+	private final boolean pushLocal;
+	private final String pushAddress;
+	private final long pushTTL;
+	private PushSubscriber subscriber;
+
+	// --- COALESCED FILE WRITES ---
+
+	private final long writeDelay;
+	private FileWriteQueue writeQueue;
 
 	protected final File[] iCalFiles;
+	private final DirectoryIndex[] directoryIndexes;
 	protected final String[] usernames;
 	protected final String[] passwords;
 	protected final String[] urls;
@@ -99,11 +127,64 @@ public class OnlineFileListener extends Thread {
 			log.warn("The fastest Google Calendar polling period is '3 min'!");
 			timeout = 180000L;
 		}
-		googlePollingTime = timeout;
+		long googlePollingTime = timeout;
+		long minPollingTime = configurator.getConfigProperty(
+				Configurator.FILE_POLLING_GOOGLE_MIN, 180000L);
+		if (minPollingTime < 180000L) {
+			log.warn("The fastest Google Calendar polling period is '3 min'!");
+			minPollingTime = 180000L;
+		}
+		long maxPollingTime = configurator.getConfigProperty(
+				Configurator.FILE_POLLING_GOOGLE_MAX, 3600000L);
+
+		// Get push notification parameters
+		pushLocal = configurator.getConfigProperty(
+				Configurator.FILE_PUSH_LOCAL, false);
+		pushAddress = configurator.getConfigProperty(
+				Configurator.FILE_PUSH_ADDRESS, null);
+		if (configurator.getConfigProperty(Configurator.FILE_PUSH_ENABLED,
+				false)) {
+			if (pushAddress == null && !pushLocal) {
+				log.warn("Missing notification address ("
+						+ Configurator.FILE_PUSH_ADDRESS + ")!");
+				pushEnabled = false;
+			} else {
+				pushEnabled = true;
+			}
+		} else {
+			pushEnabled = false;
+		}
+		timeout = configurator.getConfigProperty(Configurator.FILE_PUSH_TTL,
+				86400000L);
+		if (timeout < 600000L) {
+			log.warn("The shortest notification channel lifetime is '10 min'!");
+			timeout = 600000L;
+		}
+		pushTTL = timeout;
+
+		// Get write coalescing period
+		writeDelay = configurator.getConfigProperty(
+				Configurator.FILE_WRITE_DELAY, 2000L);
+
+		// Get filesystem notification parameters
+		watchEnabled = configurator.getConfigProperty(
+				Configurator.FILE_WATCH_ENABLED, true);
+		watchDelay = configurator.getConfigProperty(
+				Configurator.FILE_WATCH_DELAY, 1000L);
+
+		// Create file processor (with per-account limit)
+		executor = new FileTaskExecutor(mainGroup, (int) configurator
+				.getConfigProperty(Configurator.FILE_PARALLEL_THREADS, 4L),
+				(int) configurator.getConfigProperty(
+						Configurator.FILE_PARALLEL_ACCOUNT, 2L));
 
 		// Get reloader script's path
 		reloaderScript = configurator.getConfigProperty(
 				Configurator.FILE_RELOADER_SCRIPT, null);
+		reloaderDelay = configurator.getConfigProperty(
+				Configurator.FILE_RELOADER_DELAY, 2000L);
+		reloaderTimeout = configurator.getConfigProperty(
+				Configurator.FILE_RELOADER_TIMEOUT, 15000L);
 
 		// Get parameters
 		LinkedList iCalFileList = new LinkedList();
@@ -215,9 +296,15 @@ public class OnlineFileListener extends Thread {
 		passwords = new String[passwordList.size()];
 		urls = new String[urlList.size()];
 		iCalFileList.toArray(iCalFiles);
+		directoryIndexes = new DirectoryIndex[iCalFiles.length];
+		for (int i = 0; i < directoryIndexes.length; i++) {
+			directoryIndexes[i] = new DirectoryIndex();
+		}
 		usernameList.toArray(usernames);
 		passwordList.toArray(passwords);
 		urlList.toArray(urls);
+		scheduler = new PollingScheduler(iCalFiles.length, googlePollingTime,
+				minPollingTime, maxPollingTime);
 		log.info("File listener started successfully.");
 
 		// Start listener
@@ -226,93 +313,106 @@ public class OnlineFileListener extends Thread {
 
 	// --- FILE LISTENER LOOP ---
 
-	private byte[][] lastCalendarBytes;
-	private long[] calendarLastModified;
-	private long[] calendarLastChecked;
-	private long[] fileLastModified;
+	// Written by the file workers, read by the watcher thread
+	private AtomicReferenceArray lastCalendarDigests;
+	private AtomicLongArray calendarLastModified;
+	private AtomicLongArray fileLastModified;
+
+	private boolean[] changedFiles;
+	private boolean hasChangedFiles;
+	private long lastFileEvent;
 
 	public void run() {
 
 		// Create processing arrays
 		int fastPollingCounter = FAST_POLLING_LOOPS;
 		int files = iCalFiles.length;
-		lastCalendarBytes = new byte[files][];
-		calendarLastModified = new long[files];
-		calendarLastChecked = new long[files];
-		fileLastModified = new long[files];
+		lastCalendarDigests = new AtomicReferenceArray(files);
+		calendarLastModified = new AtomicLongArray(files);
+		fileLastModified = new AtomicLongArray(files);
+		changedFiles = new boolean[files];
+		writeQueue = new FileWriteQueue(files, writeDelay);
+
+		// Start filesystem watcher (polling is used when unavailable)
+		if (watchEnabled) {
+			try {
+				watcher = new FileWatcher(this, iCalFiles);
+				log.info("File change notifications enabled.");
+			} catch (Throwable unsupported) {
+				log.info("File change notifications unavailable, "
+						+ "polling enabled.");
+				log.debug("Unable to start file watcher!", unsupported);
+				watcher = null;
+			}
+		}
+		startPushSubscriber();
 
 		try {
 
 			// Main loop
+			boolean[] changed = null;
 			for (;;) {
 
-				// Sleeping
+				// Sleeping (wake up for the next Google Calendar polling)
 				synchronized (this) {
-					if (fastPollingCounter < FAST_POLLING_LOOPS) {
-						wait(FAST_POLLING_TIME);
-						fastPollingCounter++;
+					long current = System.currentTimeMillis();
+					long timeout = Math.min(filePollingTime, Math.min(scheduler
+							.getDelay(current), writeQueue.getDelay(current)));
+					if (watcher == null) {
+						if (fastPollingCounter < FAST_POLLING_LOOPS) {
+							timeout = Math.min(timeout, FAST_POLLING_TIME);
+							fastPollingCounter++;
+						}
+						if (timeout > 0) {
+							wait(timeout);
+						}
 					} else {
-						wait(filePollingTime);
+
+						// Wait for the next filesystem event
+						if (!hasChangedFiles && timeout > 0) {
+							wait(timeout);
+						}
+
+						// Editors write files in several steps
+						long delay;
+						while (hasChangedFiles
+								&& (delay = watchDelay
+										- (System.currentTimeMillis() - lastFileEvent)) > 0) {
+							wait(delay);
+						}
+						changed = changedFiles;
+						changedFiles = new boolean[files];
+						hasChangedFiles = false;
 					}
 				}
 
-				// Loop on files
+				// Process files in parallel
 				long now = System.currentTimeMillis();
-				boolean fileChanged = false;
+				FileTask[] tasks = new FileTask[files];
 				for (int fileIndex = 0; fileIndex < files; fileIndex++) {
+					tasks[fileIndex] = new FileTask(fileIndex, now,
+							changed == null || changed[fileIndex]
+									|| !watcher.isWatched(fileIndex));
+				}
+				executor.execute(tasks, usernames);
 
-					// Create request
-					Request request = new Request();
-					request.url = urls[fileIndex];
-					request.username = usernames[fileIndex];
-					request.password = passwords[fileIndex];
-
-					// Verify file's timestamp
-					if (iCalFiles[fileIndex].exists()) {
-						long lastModified = lastModified(iCalFiles[fileIndex]);
-						if (lastModified != fileLastModified[fileIndex]
-								&& fileLastModified[fileIndex] != 0) {
-							request.body = loadFile(fileIndex);
-							fileLastModified[fileIndex] = lastModified;
-							fastPollingCounter = 0;
-							if (request.body != null) {
-								if (!isEquals(lastCalendarBytes[fileIndex],
-										request.body)) {
-									lastCalendarBytes[fileIndex] = request.body;
-									configurator.calendarChanged(request);
-								}
-								if (now - calendarLastChecked[fileIndex] < googlePollingTime) {
-									continue;
-								}
-							}
-						}
+				// Collect results
+				boolean fileChanged = false;
+				for (int fileIndex = 0; fileIndex < files; fileIndex++) {
+					if (tasks[fileIndex].error != null) {
+						throw tasks[fileIndex].error;
 					}
-
-					// Download iCal file (or get from cache)
-					if (now - calendarLastChecked[fileIndex] >= googlePollingTime) {
-						calendarLastChecked[fileIndex] = now;
-						CachedCalendar calendar = configurator
-								.getCalendar(request);
-
-						// Verify calendar's timestamp
-						if (calendar.lastModified != calendarLastModified[fileIndex]) {
-							calendarLastModified[fileIndex] = calendar.lastModified;
-							byte[] bytes = calendar.toByteArray();
-
-							if (!isEquals(lastCalendarBytes[fileIndex], bytes)) {
-								fileLastModified[fileIndex] = saveFile(bytes,
-										fileIndex);
-								lastCalendarBytes[fileIndex] = new byte[bytes.length];
-								System.arraycopy(bytes, 0,
-										lastCalendarBytes[fileIndex], 0,
-										bytes.length);
-								fileChanged = true;
-							}
-						}
+					if (tasks[fileIndex].fileLoaded) {
+						fastPollingCounter = 0;
+					}
+					if (tasks[fileIndex].fileSaved) {
+						fileChanged = true;
 					}
+				}
 
-					// Wait
-					sleep(100);
+				// Write the postponed updates
+				if (flushWrites()) {
+					fileChanged = true;
 				}
 
 				// Reload calendars
@@ -329,49 +429,177 @@ public class OnlineFileListener extends Thread {
 
 			// Fatal error
 			log.fatal("Fatal service error!", fatalError);
+		} finally {
+			if (watcher != null) {
+				watcher.interrupt();
+			}
+			stopPushSubscriber();
+			executor.shutdown();
 		}
 	}
 
-	protected static final boolean isEquals(byte[] iCalBytes1, byte[] iCalBytes2)
-			throws Exception {
-		if (iCalBytes1 == null || iCalBytes2 == null) {
-			return false;
+	private final boolean flushWrites() throws Exception {
+		boolean fileSaved = false;
+		long now = System.currentTimeMillis();
+		byte[] bytes;
+		for (int fileIndex = 0; fileIndex < iCalFiles.length; fileIndex++) {
+			bytes = writeQueue.poll(fileIndex, now);
+			if (bytes == null) {
+				continue;
+			}
+			try {
+				fileLastModified.set(fileIndex, saveFile(bytes, fileIndex));
+			} catch (Exception saveError) {
+				log.warn("Unable to save postponed calendar!", saveError);
+				writeQueue.retry(fileIndex, bytes, now);
+				continue;
+			}
+
+			// The file is in sync with the written calendar
+			lastCalendarDigests.set(fileIndex, CalendarDigest.digest(bytes));
+			fileSaved = true;
 		}
-		String iCal1 = removeTimestamps(iCalBytes1);
-		String iCal2 = removeTimestamps(iCalBytes2);
-		return iCal1.equals(iCal2);
+		return fileSaved;
 	}
 
-	private static final String removeTimestamps(byte[] iCalBytes)
-			throws Exception {
-		String iCal = StringUtils.decodeToString(iCalBytes, StringUtils.UTF_8);
-		StringTokenizer st = new StringTokenizer(iCal, CRLF);
-		QuickWriter writer = new QuickWriter(iCal.length());
-		boolean started = false;
-		String line;
-		while (st.hasMoreTokens()) {
-			line = st.nextToken();
-			if (!started) {
-				if (line.equals("BEGIN:VEVENT") || line.equals("BEGIN:VTODO")) {
-					started = true;
+	private final class FileTask implements Runnable {
+
+		private final int fileIndex;
+		private final long now;
+		private final boolean checkFile;
+
+		private boolean fileLoaded;
+		private boolean fileSaved;
+		private Exception error;
+
+		private FileTask(int fileIndex, long now, boolean checkFile) {
+			this.fileIndex = fileIndex;
+			this.now = now;
+			this.checkFile = checkFile;
+		}
+
+		public final void run() {
+			try {
+				processFile();
+			} catch (Exception processingError) {
+				error = processingError;
+			}
+		}
+
+		private final void processFile() throws Exception {
+
+			// Create request
+			Request request = new Request();
+			request.url = urls[fileIndex];
+			request.username = usernames[fileIndex];
+			request.password = passwords[fileIndex];
+
+			// Verify file's timestamp
+			if (checkFile && iCalFiles[fileIndex].exists()) {
+				long lastModified = lastModified(iCalFiles[fileIndex]);
+				if (lastModified != fileLastModified.get(fileIndex)
+						&& fileLastModified.get(fileIndex) != 0) {
+					request.body = loadFile(fileIndex);
+					fileLastModified.set(fileIndex, lastModified);
+					fileLoaded = true;
+					if (request.body != null) {
+						byte[] digest = CalendarDigest.digest(request.body);
+						if (!Arrays.equals((byte[]) lastCalendarDigests
+								.get(fileIndex), digest)) {
+							lastCalendarDigests.set(fileIndex, digest);
+							writeQueue.cancel(fileIndex);
+							configurator.calendarChanged(request);
+							scheduler.localChanged(fileIndex, now);
+						}
+						if (!scheduler.isDue(fileIndex, now)) {
+							return;
+						}
+					}
 				}
-				continue;
 			}
-			if (line.indexOf("STAMP") != -1) {
-				continue;
+
+			// Download iCal file (or get from cache)
+			if (scheduler.isDue(fileIndex, now)) {
+				CachedCalendar calendar = configurator.getCalendar(request);
+				boolean firstCheck = calendarLastModified.get(fileIndex) == 0;
+
+				// Verify calendar's timestamp
+				// (the digest is stored after the file has been written)
+				if (calendar.lastModified != calendarLastModified
+						.get(fileIndex)) {
+					byte[] bytes = calendar.toByteArray();
+					byte[] digest = CalendarDigest.digest(bytes);
+					if (!Arrays.equals((byte[]) lastCalendarDigests
+							.get(fileIndex), digest)) {
+						if (writeQueue.offer(fileIndex, bytes, now)) {
+							fileLastModified.set(fileIndex, saveFile(bytes,
+									fileIndex));
+							lastCalendarDigests.set(fileIndex, digest);
+							fileSaved = true;
+						} else {
+							log.debug("Saving postponed (" + request.url
+									+ ").");
+						}
+					}
+					calendarLastModified.set(fileIndex, calendar.lastModified);
+				}
+				// Adapt polling interval to the change frequency
+				scheduler.checked(fileIndex, now, fileSaved && !firstCheck);
+				if (log.isDebugEnabled()) {
+					log.debug("Polling interval of " + request.url + " is "
+							+ scheduler.getInterval(fileIndex) + " milliseconds.");
+				}
 			}
-			if (line.startsWith("UID") || line.startsWith("PRODID")
-					|| line.startsWith("X-")) {
-				continue;
+		}
+
+	}
+
+	// --- FILESYSTEM EVENT ---
+
+	final synchronized void fileChanged(int fileIndex) {
+		if (changedFiles != null) {
+
+			// Skip the listener's own writes
+			File file = iCalFiles[fileIndex];
+			if (!file.isDirectory()
+					&& file.lastModified() == fileLastModified.get(fileIndex)) {
+				return;
 			}
-			if (line.startsWith(" ")) {
-				line = line.substring(1);
-				writer.setLength(writer.length() - 2);
+			changedFiles[fileIndex] = true;
+			hasChangedFiles = true;
+			lastFileEvent = System.currentTimeMillis();
+			notifyAll();
+		}
+	}
+
+	// --- PUSH NOTIFICATIONS ---
+
+	protected final void startPushSubscriber() {
+		if (pushEnabled) {
+			subscriber = new PushSubscriber(this, configurator
+					.getPushRegistry(), pushAddress, pushTTL, pushLocal);
+			log.info("Push notifications enabled.");
+		}
+	}
+
+	protected final void stopPushSubscriber() {
+		if (subscriber != null) {
+			subscriber.interrupt();
+		}
+	}
+
+	final synchronized void pushChanged(int fileIndex, boolean enabled) {
+		scheduler.setPushed(fileIndex, enabled, System.currentTimeMillis());
+		notifyAll();
+	}
+
+	public final synchronized void remoteChanged(String url) {
+		for (int fileIndex = 0; fileIndex < urls.length; fileIndex++) {
+			if (urls[fileIndex].equals(url)) {
+				scheduler.remoteChanged(fileIndex);
 			}
-			writer.write(line);
-			writer.write(CRLF);
 		}
-		return writer.toString();
+		notifyAll();
 	}
 
 	// --- I/O HANDLERS ---
@@ -399,105 +627,128 @@ public class OnlineFileListener extends Thread {
 		}
 
 		// Standard iCal file (one calendar = one iCal file)
-		RandomAccessFile raf = null;
-		for (int tries = 0;; tries++) {
-			try {
-				if (log.isDebugEnabled()) {
-					log.debug("Loading file "
-							+ iCalFiles[fileIndex].getCanonicalPath().replace(
-									'\\', '/') + "...");
-				}
-				raf = new RandomAccessFile(iCalFiles[fileIndex], "r");
-				int len = (int) iCalFiles[fileIndex].length();
-				byte[] bytes = new byte[len];
-				raf.readFully(bytes);
-				raf.close();
-				if (log.isDebugEnabled()) {
-					log.debug("File loaded successfully (" + len + " bytes).");
-				}
-				return bytes;
-			} catch (Exception loadError) {
-				if (raf != null) {
-					try {
-						raf.close();
-					} catch (Exception ignored) {
-					}
-				}
-				if (tries == 5) {
-					throw loadError;
-				}
-				Thread.sleep(500);
-			}
+		if (log.isDebugEnabled()) {
+			log.debug("Loading file "
+					+ iCalFiles[fileIndex].getCanonicalPath().replace('\\',
+							'/') + "...");
+		}
+		byte[] bytes = FileUtilities.readBytes(iCalFiles[fileIndex]);
+		if (log.isDebugEnabled()) {
+			log.debug("File loaded successfully (" + bytes.length
+					+ " bytes).");
 		}
+		return bytes;
 	}
 
 	private final byte[] loadDir(int fileIndex) throws Exception {
 
 		// MacOSX Leopard (one calendar = multiple iCal files)
 		File dir = iCalFiles[fileIndex];
+		DirectoryIndex index = directoryIndexes[fileIndex];
 		File[] files = dir.listFiles();
 
-		QuickWriter writer = new QuickWriter();
-		writer.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:");
-		writer.write(Configurator.VERSION);
-		writer.write("\r\n");
-		ComponentList list;
-		Calendar event;
-		String content;
+		// Find new and changed files
+		HashSet names = new HashSet();
+		LinkedList tasks = new LinkedList();
+		DirectoryIndex.Entry entry;
+		String name;
 		File file;
-
-		// Load and concatenate events and todos
-		for (int i = 0; i < files.length; i++) {
+		for (int i = 0; files != null && i < files.length; i++) {
 			file = files[i];
-			if (!file.getName().endsWith(".ics")) {
+			name = file.getName();
+			if (!name.endsWith(".ics")) {
 				continue;
 			}
-			event = loadEvent(file);
-			list = event.getComponents();
-			if (list != null && !list.isEmpty()) {
-				content = list.toString();
-				if (content != null && content.indexOf("BEGIN") != -1) {
-					writer.write(content);
-				}
+			names.add(name);
+			entry = index.get(name);
+			if (entry == null || entry.content == null
+					|| entry.lastModified != file.lastModified()
+					|| entry.length != file.length()) {
+				tasks.addLast(new EventLoader(file, entry));
+			}
+		}
+		index.retainAll(names);
+		index.setScanned();
+
+		// Load and parse changed files (on all cores)
+		if (!tasks.isEmpty()) {
+			Object[] entries = DirectoryIndex.invokeAll(tasks);
+			Iterator loaders = tasks.iterator();
+			for (int i = 0; i < entries.length; i++) {
+				file = ((EventLoader) loaders.next()).file;
+				index.put(file.getName(), (DirectoryIndex.Entry) entries[i]);
+			}
+			if (log.isDebugEnabled()) {
+				log.debug(entries.length + " of " + names.size()
+						+ " event files loaded.");
+			}
+		}
+
+		// Concatenate events and todos
+		QuickWriter writer = new QuickWriter();
+		writer.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:");
+		writer.write(Configurator.VERSION);
+		writer.write("\r\n");
+		String[] indexedNames = index.getNames();
+		for (int i = 0; i < indexedNames.length; i++) {
+			entry = index.get(indexedNames[i]);
+			if (entry.content != null) {
+				writer.write(entry.content);
 			}
 		}
 		writer.write("END:VCALENDAR\r\n");
 		return StringUtils.encodeString(writer.toString(), StringUtils.UTF_8);
 	}
 
-	private final Calendar loadEvent(File file) throws Exception {
+	private final class EventLoader implements Callable {
+
+		private final File file;
+		private final DirectoryIndex.Entry previous;
+
+		private EventLoader(File file, DirectoryIndex.Entry previous) {
+			this.file = file;
+			this.previous = previous;
+		}
+
+		public final Object call() throws Exception {
+			return loadEvent(file, previous);
+		}
+
+	}
+
+	private final DirectoryIndex.Entry loadEvent(File file,
+			DirectoryIndex.Entry previous) throws Exception {
 
 		// MacOSX Leopard (one calendar = multiple iCal files)
-		RandomAccessFile raf = null;
-		for (int tries = 0;; tries++) {
-			try {
-				if (log.isDebugEnabled()) {
-					log.debug("Loading file "
-							+ file.getCanonicalPath().replace('\\', '/')
-							+ "...");
-				}
-				raf = new RandomAccessFile(file, "r");
-				int len = (int) file.length();
-				byte[] bytes = new byte[len];
-				raf.readFully(bytes);
-				raf.close();
-				if (log.isDebugEnabled()) {
-					log.debug("File loaded successfully (" + len + " bytes).");
-				}
-				return ICalUtilities.parseCalendar(bytes);
-			} catch (Exception loadError) {
-				if (raf != null) {
-					try {
-						raf.close();
-					} catch (Exception ignored) {
-					}
-				}
-				if (tries == 5) {
-					throw loadError;
-				}
-				Thread.sleep(500);
+		if (log.isDebugEnabled()) {
+			log.debug("Loading file "
+					+ file.getCanonicalPath().replace('\\', '/') + "...");
+		}
+		DirectoryIndex.Entry entry = new DirectoryIndex.Entry();
+		entry.lastModified = file.lastModified();
+		ByteBuffer buffer = FileUtilities.read(file);
+		if (log.isDebugEnabled()) {
+			log.debug("File loaded successfully (" + buffer.remaining()
+					+ " bytes).");
+		}
+		entry.length = buffer.remaining();
+		entry.digest = CalendarDigest.digestBytes(buffer);
+		if (previous != null && previous.content != null
+				&& Arrays.equals(previous.digest, entry.digest)) {
+
+			// Only the timestamp changed
+			entry.content = previous.content;
+			return entry;
+		}
+		ComponentList list = ICalUtilities.parseCalendar(buffer)
+				.getComponents();
+		if (list != null && !list.isEmpty()) {
+			String content = list.toString();
+			if (content != null && content.indexOf("BEGIN") != -1) {
+				entry.content = content;
 			}
 		}
+		return entry;
 	}
 
 	protected final long saveFile(byte[] iCalBytes, int fileIndex)
@@ -509,46 +760,28 @@ public class OnlineFileListener extends Thread {
 		}
 
 		// Standard iCal file (one calendar = one iCal file)
-		FileOutputStream fos = null;
-		for (int tries = 0;; tries++) {
-			try {
-				if (log.isDebugEnabled()) {
-					log.debug("Saving file "
-							+ iCalFiles[fileIndex].getCanonicalPath().replace(
-									'\\', '/') + "...");
-				}
-				fos = new FileOutputStream(iCalFiles[fileIndex]);
-				fos.write(iCalBytes);
-				fos.flush();
-				fos.close();
-				if (log.isDebugEnabled()) {
-					log.debug("File saved successfully ("
-							+ iCalFiles[fileIndex].length() + " bytes).");
-				}
-				return iCalFiles[fileIndex].lastModified();
-			} catch (Exception saveError) {
-				if (fos != null) {
-					try {
-						fos.close();
-					} catch (Exception ignored) {
-					}
-				}
-				if (tries == 5) {
-					throw saveError;
-				}
-				Thread.sleep(500);
-			}
+		if (log.isDebugEnabled()) {
+			log.debug("Saving file "
+					+ iCalFiles[fileIndex].getCanonicalPath().replace('\\',
+							'/') + "...");
+		}
+		long lastModified = AtomicFileWriter.write(iCalFiles[fileIndex],
+				iCalBytes);
+		if (log.isDebugEnabled()) {
+			log.debug("File saved successfully (" + iCalBytes.length
+					+ " bytes).");
 		}
+		return lastModified;
 	}
 
 	private final long saveDir(byte[] iCalBytes, int fileIndex)
 			throws Exception {
 
 		// Mac OS X Leopard (one calendar = multiple iCal files)
-		// Get original/old iCalendar files
+		// Index the original/old iCalendar files
 		File dir = iCalFiles[fileIndex];
-		HashSet oldFiles = new HashSet();
-		oldFiles.addAll(Arrays.asList(dir.list()));
+		DirectoryIndex index = directoryIndexes[fileIndex];
+		index.scan(dir);
 
 		// Get component array
 		Calendar container = ICalUtilities.parseCalendar(iCalBytes);
@@ -556,23 +789,22 @@ public class OnlineFileListener extends Thread {
 		Component[] array = new Component[list.size()];
 		list.toArray(array);
 
-		// Save component
-		String fileName;
+		// Save changed components
+		HashSet savedNames = new HashSet();
 		for (int i = 0; i < array.length; i++) {
-			fileName = saveComponent(dir, array[i], fileIndex);
-			oldFiles.remove(fileName);
+			savedNames.add(saveComponent(dir, array[i], index));
 		}
 
-		// Remove deleted events
-		Iterator removedNames = oldFiles.iterator();
+		// Remove deleted events (computed from the index)
+		String[] names = index.getNames();
 		File file;
-		while (removedNames.hasNext()) {
-			fileName = (String) removedNames.next();
-			if (!fileName.endsWith(".ics")) {
+		for (int i = 0; i < names.length; i++) {
+			if (savedNames.contains(names[i])) {
 				continue;
 			}
+			index.remove(names[i]);
 			try {
-				file = new File(dir, fileName);
+				file = new File(dir, names[i]);
 				file.delete();
 				if (log.isDebugEnabled()) {
 					log
@@ -585,11 +817,11 @@ public class OnlineFileListener extends Thread {
 		}
 
 		// Return the last modified file's timestamp
-		return lastModified(dir);
+		return index.lastModified(dir);
 	}
 
 	private final String saveComponent(File dir, Component component,
-			int fileIndex) throws Exception {
+			DirectoryIndex index) throws Exception {
 
 		// Mac OS X Leopard (one calendar = multiple iCal files)
 		String name = component.getName();
@@ -608,47 +840,39 @@ public class OnlineFileListener extends Thread {
 		}
 
 		// Create event file
+		String content = component.toString();
 		QuickWriter writer = new QuickWriter();
 		writer.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:");
 		writer.write(Configurator.VERSION);
 		writer.write("\r\n");
-		writer.write(component.toString());
+		writer.write(content);
 		writer.write("END:VCALENDAR\r\n");
 		byte[] iCalBytes = StringUtils.encodeString(writer.toString(),
 				StringUtils.UTF_8);
 
-		// Save event
+		// Skip unchanged event
 		name = uid.replace('@', '-') + ".ics";
-		FileOutputStream fos = null;
-		for (int tries = 0;; tries++) {
-			try {
-				File file = new File(dir, name);
-				if (log.isDebugEnabled()) {
-					log.debug("Saving file "
-							+ file.getCanonicalPath().replace('\\', '/')
-							+ "...");
-				}
-				fos = new FileOutputStream(file);
-				fos.write(iCalBytes);
-				fos.flush();
-				fos.close();
-				if (log.isDebugEnabled()) {
-					log.debug("File saved successfully (" + file.length()
-							+ " bytes).");
-				}
-				break;
-			} catch (Exception saveError) {
-				if (fos != null) {
-					try {
-						fos.close();
-					} catch (Exception ignored) {
-					}
-				}
-				if (tries == 5) {
-					throw saveError;
-				}
-				Thread.sleep(500);
-			}
+		byte[] digest = CalendarDigest.digestBytes(iCalBytes);
+		DirectoryIndex.Entry entry = index.get(name);
+		if (entry != null && Arrays.equals(entry.digest, digest)) {
+			return name;
+		}
+
+		// Save event
+		File file = new File(dir, name);
+		if (log.isDebugEnabled()) {
+			log.debug("Saving file "
+					+ file.getCanonicalPath().replace('\\', '/') + "...");
+		}
+		entry = new DirectoryIndex.Entry();
+		entry.lastModified = AtomicFileWriter.write(file, iCalBytes);
+		entry.length = iCalBytes.length;
+		entry.digest = digest;
+		entry.content = content;
+		index.put(name, entry);
+		if (log.isDebugEnabled()) {
+			log.debug("File saved successfully (" + iCalBytes.length
+					+ " bytes).");
 		}
 
 		// Return file name
@@ -659,9 +883,7 @@ public class OnlineFileListener extends Thread {
 
 	public void wakeUp() throws Exception {
 		synchronized (this) {
-			for (int fileIndex = 0; fileIndex < calendarLastChecked.length; fileIndex++) {
-				calendarLastChecked[fileIndex] = 0;
-			}
+			scheduler.reset();
 			this.notifyAll();
 		}
 	}
@@ -684,7 +906,8 @@ public class OnlineFileListener extends Thread {
 		// Execute custom reloader script
 		boolean runOnce = configurator.getRunMode() == Configurator.MODE_RUNONCE;
 		if (reloader == null) {
-			reloader = new CalendarReloader(reloaderScript);
+			reloader = new CalendarReloader(reloaderScript, reloaderDelay,
+					reloaderTimeout);
 			if (!runOnce) {
 				reloader.start();
 			}
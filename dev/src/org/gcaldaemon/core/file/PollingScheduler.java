@@ -0,0 +1,219 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.util.Random;
+
+/**
+ * Adaptive Google Calendar polling scheduler of the file listeners. Every
+ * calendar has its own polling interval (between the configured minimum and
+ * maximum): the interval is halved when the calendar has been changed, and
+ * increased by 50% when not. After a local modification the calendar is
+ * polled with the minimal interval for a few rounds. A random jitter (+/-10%)
+ * keeps the calendars from polling in lockstep. Calendars with push
+ * notification channel are polled when Google reports a change, and with the
+ * maximal interval (in case of lost notifications).
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class PollingScheduler {
+
+	// --- CONSTANTS ---
+
+	private static final int FAST_POLLING_LOOPS = 3;
+	private static final int JITTER_PERCENT = 10;
+
+	// --- VARIABLES ---
+
+	private final long minInterval;
+	private final long maxInterval;
+
+	private final long[] intervals;
+	private final long[] nextChecks;
+	private final int[] fastPollingCounters;
+	private final boolean[] pushed;
+
+	private final Random random = new Random();
+
+	// --- CONSTRUCTOR ---
+
+	PollingScheduler(int calendars, long interval, long minInterval,
+			long maxInterval) {
+		if (maxInterval < minInterval) {
+			maxInterval = minInterval;
+		}
+		if (interval < minInterval) {
+			interval = minInterval;
+		}
+		if (interval > maxInterval) {
+			interval = maxInterval;
+		}
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		intervals = new long[calendars];
+		nextChecks = new long[calendars];
+		fastPollingCounters = new int[calendars];
+		pushed = new boolean[calendars];
+		for (int i = 0; i < calendars; i++) {
+			intervals[i] = interval;
+		}
+	}
+
+	// --- SCHEDULING ---
+
+	/**
+	 * Returns true when the calendar should be downloaded.
+	 *
+	 * @param index
+	 *            index of the calendar
+	 * @param now
+	 *            current time
+	 *
+	 * @return true if polling time elapsed
+	 */
+	final synchronized boolean isDue(int index, long now) {
+		return now >= nextChecks[index];
+	}
+
+	/**
+	 * Schedules the next polling of a calendar.
+	 *
+	 * @param index
+	 *            index of the calendar
+	 * @param now
+	 *            time of the last polling
+	 * @param changed
+	 *            the Google Calendar has been changed since the last polling
+	 */
+	final synchronized void checked(int index, long now, boolean changed) {
+		if (pushed[index]) {
+
+			// Wait for the next notification (or the safety polling)
+			nextChecks[index] = now + maxInterval
+					+ Math.abs(jitter(maxInterval));
+			return;
+		}
+		long interval = intervals[index];
+		if (changed) {
+			interval /= 2;
+		} else {
+			interval += interval / 2;
+		}
+		interval = Math.max(minInterval, Math.min(maxInterval, interval));
+		intervals[index] = interval;
+		if (fastPollingCounters[index] > 0) {
+			fastPollingCounters[index]--;
+			interval = minInterval;
+		}
+		nextChecks[index] = now
+				+ Math.max(minInterval, interval + jitter(interval));
+	}
+
+	/**
+	 * Accelerates the polling after a local modification.
+	 *
+	 * @param index
+	 *            index of the calendar
+	 * @param now
+	 *            time of the modification
+	 */
+	final synchronized void localChanged(int index, long now) {
+		if (pushed[index]) {
+			return;
+		}
+		fastPollingCounters[index] = FAST_POLLING_LOOPS;
+		long next = now + minInterval;
+		if (next < nextChecks[index]) {
+			nextChecks[index] = next;
+		}
+	}
+
+	/**
+	 * Returns the time until the next polling.
+	 *
+	 * @param now
+	 *            current time
+	 *
+	 * @return delay in milliseconds (or 0)
+	 */
+	final synchronized long getDelay(long now) {
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < nextChecks.length; i++) {
+			if (nextChecks[i] < next) {
+				next = nextChecks[i];
+			}
+		}
+		if (next == Long.MAX_VALUE) {
+			return maxInterval;
+		}
+		return Math.max(0, next - now);
+	}
+
+	/**
+	 * Schedules the polling of a calendar immediately (Google reported a
+	 * change).
+	 *
+	 * @param index
+	 *            index of the calendar
+	 */
+	final synchronized void remoteChanged(int index) {
+		nextChecks[index] = 0;
+	}
+
+	/**
+	 * Enables or disables the polling of a calendar with push notification
+	 * channel.
+	 *
+	 * @param index
+	 *            index of the calendar
+	 * @param enabled
+	 *            the calendar has an active notification channel
+	 * @param now
+	 *            current time
+	 */
+	final synchronized void setPushed(int index, boolean enabled, long now) {
+		if (pushed[index] == enabled) {
+			return;
+		}
+		pushed[index] = enabled;
+		if (!enabled && nextChecks[index] > now) {
+
+			// Channel lost - poll the missed changes
+			nextChecks[index] = now;
+		}
+	}
+
+	final synchronized long getInterval(int index) {
+		return intervals[index];
+	}
+
+	/**
+	 * Schedules the polling of all calendars immediately.
+	 */
+	final synchronized void reset() {
+		for (int i = 0; i < nextChecks.length; i++) {
+			nextChecks[i] = 0;
+		}
+	}
+
+	private final long jitter(long interval) {
+		long range = interval * JITTER_PERCENT / 100;
+		if (range < 1) {
+			return 0;
+		}
+		return (long) ((random.nextDouble() * 2 - 1) * range);
+	}
+
+}
@@ -0,0 +1,181 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.file;
+
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gcaldaemon.core.GCalUtilities;
+import org.gcaldaemon.core.PushRegistry;
+import org.gcaldaemon.core.Request;
+
+/**
+ * Push notification subscriber of the file listener. Registers a Google
+ * Calendar 'watch' channel for every configured calendar and renews the
+ * channels before they expire. The notifications are received by the HTTP
+ * listener, the channels are registered only while its notification endpoint
+ * is running. Calendars without an active channel (registration failed,
+ * channel expired) are polled by the file listener. In local mode the channels
+ * are registered without calling Google, and a local stand-in can post the
+ * notifications (the channel IDs and tokens are logged).
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class PushSubscriber extends Thread {
+
+	// --- CONSTANTS ---
+
+	private static final long RETRY_DELAY = 300000L;
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(PushSubscriber.class);
+
+	// --- VARIABLES ---
+
+	private final OnlineFileListener listener;
+	private final PushRegistry registry;
+	private final String address;
+	private final long ttl;
+	private final boolean local;
+
+	private final PushRegistry.Channel[] channels;
+	private final long[] renewalTimes;
+
+	// --- CONSTRUCTOR ---
+
+	PushSubscriber(OnlineFileListener listener, PushRegistry registry,
+			String address, long ttl, boolean local) {
+		super("Push subscriber");
+		setDaemon(true);
+		this.listener = listener;
+		this.registry = registry;
+		this.address = address;
+		this.ttl = ttl;
+		this.local = local;
+		channels = new PushRegistry.Channel[listener.urls.length];
+		renewalTimes = new long[channels.length];
+		start();
+	}
+
+	// --- SUBSCRIBER LOOP ---
+
+	public final void run() {
+		try {
+			for (;;) {
+				long now = System.currentTimeMillis();
+				long next = now + ttl;
+				if (!registry.isEndpointEnabled()) {
+
+					// Notifications would not arrive - use polling
+					for (int i = 0; i < channels.length; i++) {
+						if (channels[i] != null) {
+							unsubscribe(i, channels[i]);
+							channels[i] = null;
+							listener.pushChanged(i, false);
+						}
+					}
+					sleep(RETRY_DELAY);
+					continue;
+				}
+				for (int i = 0; i < channels.length; i++) {
+					if (!listener.urls[i].endsWith(".ics")) {
+						continue;
+					}
+					if (channels[i] == null || renewalTimes[i] <= now) {
+						subscribe(i, now);
+					}
+					if (channels[i] == null || renewalTimes[i] <= now) {
+						next = Math.min(next, now + RETRY_DELAY);
+					} else {
+						next = Math.min(next, renewalTimes[i]);
+					}
+				}
+				sleep(Math.max(1000L, next - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException interrupt) {
+		} finally {
+
+			// Stop channels
+			for (int i = 0; i < channels.length; i++) {
+				if (channels[i] != null) {
+					unsubscribe(i, channels[i]);
+				}
+			}
+		}
+	}
+
+	private final void subscribe(int fileIndex, long now) {
+		PushRegistry.Channel previous = channels[fileIndex];
+		PushRegistry.Channel channel = new PushRegistry.Channel();
+		channel.id = UUID.randomUUID().toString();
+		channel.token = UUID.randomUUID().toString();
+		channel.url = listener.urls[fileIndex];
+		try {
+			if (local) {
+				channel.expiration = now + ttl;
+				log.info("Local notification channel registered ("
+						+ channel.url + ", id: " + channel.id + ", token: "
+						+ channel.token + ").");
+			} else {
+				GCalUtilities.watchCalendar(createRequest(fileIndex),
+						channel, address, ttl);
+			}
+		} catch (Exception watchError) {
+			log.warn("Unable to register notification channel ("
+					+ channel.url + ")!", watchError);
+			if (previous != null && previous.expiration <= now) {
+
+				// Channel expired - use polling
+				registry.unregister(previous);
+				channels[fileIndex] = null;
+				listener.pushChanged(fileIndex, false);
+			}
+			return;
+		}
+
+		// Renew channel at 90% of its lifetime
+		registry.register(channel);
+		channels[fileIndex] = channel;
+		renewalTimes[fileIndex] = now + (channel.expiration - now) * 9 / 10;
+		listener.pushChanged(fileIndex, true);
+		log.debug("Notification channel registered (" + channel.url + ").");
+		if (previous != null) {
+			unsubscribe(fileIndex, previous);
+		}
+	}
+
+	private final void unsubscribe(int fileIndex, PushRegistry.Channel channel) {
+		registry.unregister(channel);
+		if (local) {
+			return;
+		}
+		try {
+			GCalUtilities.stopChannel(createRequest(fileIndex), channel);
+		} catch (Exception stopError) {
+			log.debug("Unable to stop notification channel!", stopError);
+		}
+	}
+
+	private final Request createRequest(int fileIndex) {
+		Request request = new Request();
+		request.url = listener.urls[fileIndex];
+		request.username = listener.usernames[fileIndex];
+		request.password = listener.passwords[fileIndex];
+		return request;
+	}
+
+}
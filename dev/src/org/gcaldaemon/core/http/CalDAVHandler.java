@@ -0,0 +1,573 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.http;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.fortuna.ical4j.model.Calendar;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gcaldaemon.core.Configurator;
+import org.gcaldaemon.core.EventIndex;
+import org.gcaldaemon.core.GCalUtilities;
+import org.gcaldaemon.core.ICalUtilities;
+import org.gcaldaemon.core.Request;
+import org.gcaldaemon.core.Response;
+import org.gcaldaemon.core.StringUtils;
+import org.gcaldaemon.logger.QuickWriter;
+
+/**
+ * CalDAV (RFC 4791) subset of the HTTP listener. Each event (UID) of a cached
+ * calendar is published as a separate resource, so CalDAV clients can download
+ * and upload single events instead of the whole iCal file. Supported methods:
+ * OPTIONS, PROPFIND, REPORT (sync-collection, calendar-multiget,
+ * calendar-query), GET, PUT and DELETE. URL of a calendar collection:
+ *
+ * <li>/caldav/calendar/ical/[...]/basic.ics/
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class CalDAVHandler {
+
+	// --- CONSTANTS ---
+
+	static final String CALDAV_PREFIX = "/caldav";
+
+	private static final String SYNC_TOKEN_PREFIX = "http://gcaldaemon.sourceforge.net/ns/sync/";
+	private static final String RESOURCE_EXTENSION = ".ics";
+	private static final String XML_CONTENT_TYPE = "application/xml; charset=utf-8";
+	private static final String DAV_HEADERS = "DAV: 1, 3, calendar-access\r\n"
+			+ "Allow: OPTIONS, GET, PUT, DELETE, PROPFIND, REPORT\r\n";
+
+	private static final String OPTIONS_METHOD = "OPTIONS";
+	private static final String PROPFIND_METHOD = "PROPFIND";
+	private static final String REPORT_METHOD = "REPORT";
+	private static final String DELETE_METHOD = "DELETE";
+
+	private static final Pattern HREF = Pattern.compile(
+			"<(?:\\w+:)?href[^>]*>([^<]*)<", Pattern.CASE_INSENSITIVE);
+	private static final Pattern SYNC_TOKEN = Pattern.compile(
+			"<(?:\\w+:)?sync-token[^>]*>([^<]*)<", Pattern.CASE_INSENSITIVE);
+	private static final Pattern ROOT_ELEMENT = Pattern.compile(
+			"<(?:\\w+:)?([\\w-]+)[\\s/>]");
+	private static final Pattern CALENDAR_DATA = Pattern.compile(
+			"<(?:\\w+:)?calendar-data[\\s/>]", Pattern.CASE_INSENSITIVE);
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(CalDAVHandler.class);
+
+	// --- VARIABLES ---
+
+	private final Configurator configurator;
+
+	// --- CONSTRUCTOR ---
+
+	CalDAVHandler(Configurator configurator) {
+		this.configurator = configurator;
+		log.info("CalDAV access enabled (" + CALDAV_PREFIX + ").");
+	}
+
+	// --- PROCESS CALDAV REQUEST ---
+
+	final Response process(Request request) throws Exception {
+
+		// Split URL (collection and resource)
+		String path = request.url.substring(CALDAV_PREFIX.length());
+		int i = path.indexOf(RESOURCE_EXTENSION + '/');
+		String calendarURL, uid = null;
+		if (i == -1) {
+			calendarURL = path;
+		} else {
+			calendarURL = path.substring(0, i + RESOURCE_EXTENSION.length());
+			String name = path.substring(i + RESOURCE_EXTENSION.length() + 1);
+			if (name.endsWith(RESOURCE_EXTENSION)) {
+				uid = URLDecoder.decode(name.substring(0, name.length()
+						- RESOURCE_EXTENSION.length()), StringUtils.UTF_8);
+			} else if (name.length() != 0) {
+				return createError(HTTPListener.STATUS_NOT_FOUND,
+						"Resource not found: " + request.url);
+			}
+		}
+		if (!calendarURL.endsWith(RESOURCE_EXTENSION)) {
+			return createError(HTTPListener.STATUS_NOT_FOUND,
+					"Resource not found: " + request.url);
+		}
+		calendarURL = HTTPListener.normalizeURL(calendarURL);
+
+		// Capabilities
+		if (OPTIONS_METHOD.equals(request.method)) {
+			Response response = new Response();
+			response.status = HTTPListener.STATUS_OK;
+			response.contentType = "text/plain; charset=utf-8";
+			response.headers = DAV_HEADERS;
+			return response;
+		}
+
+		// Validate user
+		if (request.username == null || request.password == null) {
+			log.debug("Password required!");
+			return createError(HTTPListener.STATUS_UNAUTHORIZED,
+					"Password required: " + request.url);
+		}
+		Request calendarRequest = new Request();
+		calendarRequest.method = HTTPListener.GET_METHOD;
+		calendarRequest.url = calendarURL;
+		calendarRequest.username = request.username;
+		calendarRequest.password = request.password;
+		if (GCalUtilities.hasInvalidCredentials(calendarRequest)) {
+			log.debug("Password required!");
+			return createError(HTTPListener.STATUS_UNAUTHORIZED,
+					"Password required: " + request.url);
+		}
+
+		// Load spooled body (events are parsed from the spool file)
+		if (request.bodyFile != null
+				&& !HTTPListener.PUT_METHOD.equals(request.method)) {
+			request.body = HTTPListener.loadSpooledBody(request.bodyFile);
+		}
+
+		// Process method
+		if (PROPFIND_METHOD.equals(request.method)) {
+			return doPropfind(request, calendarRequest, uid);
+		}
+		if (REPORT_METHOD.equals(request.method)) {
+			return doReport(request, calendarRequest);
+		}
+		if (uid == null) {
+			if (HTTPListener.GET_METHOD.equals(request.method)) {
+				Response response = new Response();
+				response.status = HTTPListener.STATUS_OK;
+				response.body = configurator.getCalendar(calendarRequest)
+						.toByteArray();
+				return response;
+			}
+		} else {
+			if (HTTPListener.GET_METHOD.equals(request.method)) {
+				return doGetEvent(calendarRequest, uid);
+			}
+			if (HTTPListener.PUT_METHOD.equals(request.method)) {
+				return doPutEvent(request, calendarRequest, uid);
+			}
+			if (DELETE_METHOD.equals(request.method)) {
+				return doDeleteEvent(calendarRequest, uid);
+			}
+		}
+		return createError(HTTPListener.STATUS_NOT_FOUND, "Unsupported method: "
+				+ request.method);
+	}
+
+	// --- PROPFIND ---
+
+	private final Response doPropfind(Request request, Request calendarRequest,
+			String uid) throws Exception {
+		EventIndex index = configurator.getEventIndex(calendarRequest);
+		String collection = getCollectionHref(calendarRequest.url);
+		QuickWriter writer = createMultiStatus();
+		if (uid == null) {
+
+			// Calendar collection
+			String token = getSyncToken(index);
+			writer.write("<D:response><D:href>");
+			writer.write(collection);
+			writer.write("</D:href><D:propstat><D:prop>");
+			writer.write("<D:resourcetype><D:collection/><C:calendar/>");
+			writer.write("</D:resourcetype><D:displayname>");
+			writer.write(escape(getDisplayName(calendarRequest.url)));
+			writer.write("</D:displayname><CS:getctag>");
+			writer.write(token);
+			writer.write("</CS:getctag><D:sync-token>");
+			writer.write(token);
+			writer.write("</D:sync-token><C:supported-calendar-component-set>");
+			writer.write("<C:comp name=\"VEVENT\"/>");
+			writer.write("</C:supported-calendar-component-set>");
+			writer.write("</D:prop><D:status>HTTP/1.1 200 OK</D:status>");
+			writer.write("</D:propstat></D:response>");
+
+			// Members
+			if (!"0".equals(request.depth)) {
+				String[] uids = index.getUIDs();
+				for (int i = 0; i < uids.length; i++) {
+					writeResource(writer, collection, index, uids[i], false);
+				}
+			}
+		} else {
+			if (!index.contains(uid)) {
+				return createError(HTTPListener.STATUS_NOT_FOUND,
+						"Resource not found: " + request.url);
+			}
+			writeResource(writer, collection, index, uid, false);
+		}
+		return createMultiStatusResponse(writer);
+	}
+
+	// --- REPORT ---
+
+	private final Response doReport(Request request, Request calendarRequest)
+			throws Exception {
+		String body = "";
+		if (request.body != null) {
+			body = StringUtils.decodeToString(request.body, StringUtils.UTF_8);
+		}
+		String report = getRootElement(body);
+		boolean dataRequested = CALENDAR_DATA.matcher(body).find();
+		EventIndex index = configurator.getEventIndex(calendarRequest);
+		String collection = getCollectionHref(calendarRequest.url);
+		QuickWriter writer = createMultiStatus();
+		String[] uids;
+		int i;
+		if ("sync-collection".equals(report)) {
+
+			// Changes since the specified sync-token
+			EventIndex previous = null;
+			Matcher matcher = SYNC_TOKEN.matcher(body);
+			String token = matcher.find() ? matcher.group(1).trim() : "";
+			if (token.length() != 0) {
+				previous = getPreviousIndex(calendarRequest.url, token);
+				if (previous == null) {
+					log.debug("Invalid sync-token (" + token + ")!");
+					Response response = new Response();
+					response.status = HTTPListener.STATUS_FORBIDDEN;
+					response.contentType = XML_CONTENT_TYPE;
+					response.body = StringUtils.encodeString(
+							"<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n"
+									+ "<D:error xmlns:D=\"DAV:\">"
+									+ "<D:valid-sync-token/></D:error>",
+							StringUtils.UTF_8);
+					return response;
+				}
+			}
+			if (previous == null) {
+				uids = index.getUIDs();
+			} else {
+				uids = index.getChangedUIDs(previous);
+				String[] removed = index.getRemovedUIDs(previous);
+				for (i = 0; i < removed.length; i++) {
+					writer.write("<D:response><D:href>");
+					writer.write(getResourceHref(collection, removed[i]));
+					writer.write("</D:href>");
+					writer.write("<D:status>HTTP/1.1 404 Not Found</D:status>");
+					writer.write("</D:response>");
+				}
+			}
+			for (i = 0; i < uids.length; i++) {
+				writeResource(writer, collection, index, uids[i],
+						dataRequested);
+			}
+			writer.write("<D:sync-token>");
+			writer.write(getSyncToken(index));
+			writer.write("</D:sync-token>");
+			return createMultiStatusResponse(writer);
+		}
+		if ("calendar-multiget".equals(report)) {
+
+			// Requested resources
+			Matcher matcher = HREF.matcher(body);
+			HashSet processed = new HashSet();
+			String href, name, uid;
+			while (matcher.find()) {
+				href = matcher.group(1).trim();
+				name = href.substring(href.lastIndexOf('/') + 1);
+				if (!name.endsWith(RESOURCE_EXTENSION)) {
+					continue;
+				}
+				uid = URLDecoder.decode(name.substring(0, name.length()
+						- RESOURCE_EXTENSION.length()), StringUtils.UTF_8);
+				if (!processed.add(uid)) {
+					continue;
+				}
+				if (index.contains(uid)) {
+					writeResource(writer, collection, index, uid, dataRequested);
+				} else {
+					writer.write("<D:response><D:href>");
+					writer.write(escape(href));
+					writer.write("</D:href>");
+					writer.write("<D:status>HTTP/1.1 404 Not Found</D:status>");
+					writer.write("</D:response>");
+				}
+			}
+			return createMultiStatusResponse(writer);
+		}
+		if ("calendar-query".equals(report)) {
+
+			// All resources (filters are not supported)
+			uids = index.getUIDs();
+			for (i = 0; i < uids.length; i++) {
+				writeResource(writer, collection, index, uids[i],
+						dataRequested);
+			}
+			return createMultiStatusResponse(writer);
+		}
+		return createError(HTTPListener.STATUS_BAD_REQUEST,
+				"Unsupported report: " + request.url);
+	}
+
+	private static final String getRootElement(String body) {
+
+		// Skip the XML declaration, comments and DOCTYPE
+		int i = 0;
+		for (;;) {
+			i = body.indexOf('<', i);
+			if (i == -1 || i == body.length() - 1) {
+				return null;
+			}
+			char c = body.charAt(i + 1);
+			if (c != '?' && c != '!') {
+				break;
+			}
+			if (body.startsWith("<!--", i)) {
+				i = body.indexOf("-->", i + 4);
+			} else {
+				i = body.indexOf('>', i + 2);
+			}
+			if (i == -1) {
+				return null;
+			}
+		}
+		Matcher matcher = ROOT_ELEMENT.matcher(body);
+		if (!matcher.find(i) || matcher.start() != i) {
+			return null;
+		}
+		return matcher.group(1).toLowerCase();
+	}
+
+	private final EventIndex getPreviousIndex(String calendarURL, String token) {
+		if (!token.startsWith(SYNC_TOKEN_PREFIX)) {
+			return null;
+		}
+		String value = token.substring(SYNC_TOKEN_PREFIX.length());
+		int i = value.indexOf('-');
+		if (i == -1) {
+			return null;
+		}
+		try {
+			long epoch = Long.parseLong(value.substring(0, i));
+			if (epoch != configurator.getHistoryEpoch()) {
+
+				// Token of a previous session
+				return null;
+			}
+			return configurator.getEventIndex(calendarURL, Long
+					.parseLong(value.substring(i + 1)));
+		} catch (NumberFormatException malformed) {
+			return null;
+		}
+	}
+
+	// --- GET / PUT / DELETE EVENT ---
+
+	private final Response doGetEvent(Request calendarRequest, String uid)
+			throws Exception {
+		EventIndex index = configurator.getEventIndex(calendarRequest);
+		String data = index.getData(uid);
+		if (data == null) {
+			return createError(HTTPListener.STATUS_NOT_FOUND,
+					"Event not found: " + uid);
+		}
+		Response response = new Response();
+		response.status = HTTPListener.STATUS_OK;
+		response.headers = "ETag: " + index.getETag(uid) + "\r\n";
+		response.body = StringUtils.encodeString(data, StringUtils.UTF_8);
+		return response;
+	}
+
+	private final Response doPutEvent(Request request, Request calendarRequest,
+			String uid) throws Exception {
+
+		// Validate event
+		if (request.bodyFile == null
+				&& (request.body == null || request.body.length == 0)) {
+			return createError(HTTPListener.STATUS_BAD_REQUEST,
+					"Empty event uploaded to " + request.url + '!');
+		}
+		Calendar newEvents;
+		try {
+			boolean errorMarker;
+			if (request.bodyFile == null) {
+				String content = StringUtils.decodeToString(request.body,
+						StringUtils.UTF_8);
+				errorMarker = content.indexOf(GCalUtilities.ERROR_MARKER) != -1;
+			} else {
+				errorMarker = HTTPListener
+						.containsErrorMarker(request.bodyFile);
+			}
+			if (errorMarker) {
+				return createError(HTTPListener.STATUS_BAD_REQUEST,
+						"Event contains error marker (" + request.url + ")!");
+			}
+			if (request.bodyFile == null) {
+				newEvents = ICalUtilities.parseCalendar(request.body);
+			} else {
+
+				// Large event (parsed without loading it into the heap)
+				newEvents = ICalUtilities.parseCalendar(request.bodyFile);
+			}
+		} catch (Exception invalidEvent) {
+			log.warn("Malformed event uploaded to " + request.url + "!",
+					invalidEvent);
+			return createError(HTTPListener.STATUS_BAD_REQUEST,
+					"Malformed event uploaded to " + request.url + " ("
+							+ invalidEvent + ")!");
+		}
+		if (!ICalUtilities.hasUid(newEvents, uid)) {
+			return createError(HTTPListener.STATUS_BAD_REQUEST,
+					"Invalid UID in event uploaded to " + request.url + '!');
+		}
+
+		// Replace event and start synchronization
+		boolean created = !configurator.getEventIndex(calendarRequest)
+				.contains(uid);
+		calendarRequest.method = HTTPListener.PUT_METHOD;
+		log.debug("Event changed at " + calendarRequest.url + " (" + uid
+				+ ").");
+		configurator.eventChanged(calendarRequest, uid, newEvents);
+
+		// The stored event is serialized again (the ETag is not returned, the
+		// client loads the new version with the next GET or REPORT)
+		Response response = new Response();
+		response.status = created ? HTTPListener.STATUS_CREATED
+				: HTTPListener.STATUS_NO_CONTENT;
+		return response;
+	}
+
+	private final Response doDeleteEvent(Request calendarRequest, String uid)
+			throws Exception {
+		if (!configurator.getEventIndex(calendarRequest).contains(uid)) {
+			return createError(HTTPListener.STATUS_NOT_FOUND,
+					"Event not found: " + uid);
+		}
+		calendarRequest.method = HTTPListener.PUT_METHOD;
+		log.debug("Event removed from " + calendarRequest.url + " (" + uid
+				+ ").");
+		configurator.eventChanged(calendarRequest, uid, null);
+		Response response = new Response();
+		response.status = HTTPListener.STATUS_NO_CONTENT;
+		return response;
+	}
+
+	// --- MULTI-STATUS WRITER ---
+
+	private static final QuickWriter createMultiStatus() {
+		QuickWriter writer = new QuickWriter(4096);
+		writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n");
+		writer.write("<D:multistatus xmlns:D=\"DAV:\" ");
+		writer.write("xmlns:C=\"urn:ietf:params:xml:ns:caldav\" ");
+		writer.write("xmlns:CS=\"http://calendarserver.org/ns/\">");
+		return writer;
+	}
+
+	private static final Response createMultiStatusResponse(QuickWriter writer)
+			throws Exception {
+		writer.write("</D:multistatus>");
+		Response response = new Response();
+		response.status = HTTPListener.STATUS_MULTI_STATUS;
+		response.contentType = XML_CONTENT_TYPE;
+		response.body = StringUtils.encodeString(writer.toString(),
+				StringUtils.UTF_8);
+		return response;
+	}
+
+	private static final void writeResource(QuickWriter writer,
+			String collection, EventIndex index, String uid,
+			boolean dataRequested) throws Exception {
+		writer.write("<D:response><D:href>");
+		writer.write(getResourceHref(collection, uid));
+		writer.write("</D:href><D:propstat><D:prop><D:getetag>");
+		writer.write(escape(index.getETag(uid)));
+		writer.write("</D:getetag>");
+		writer.write("<D:getcontenttype>text/calendar; charset=utf-8");
+		writer.write("</D:getcontenttype><D:resourcetype/>");
+		if (dataRequested) {
+			writer.write("<C:calendar-data>");
+			writer.write(escape(index.getData(uid)));
+			writer.write("</C:calendar-data>");
+		}
+		writer.write("</D:prop><D:status>HTTP/1.1 200 OK</D:status>");
+		writer.write("</D:propstat></D:response>");
+	}
+
+	private static final Response createError(int status, String message)
+			throws Exception {
+		Response response = new Response();
+		response.status = status;
+		response.body = StringUtils.encodeString("ERROR " + status + "\r\n\r\n"
+				+ message, StringUtils.UTF_8);
+		return response;
+	}
+
+	// --- URL AND TOKEN UTILITIES ---
+
+	private final String getSyncToken(EventIndex index) {
+		return SYNC_TOKEN_PREFIX + configurator.getHistoryEpoch() + '-'
+				+ index.version;
+	}
+
+	private static final String getCollectionHref(String calendarURL) {
+		return CALDAV_PREFIX + calendarURL + '/';
+	}
+
+	private static final String getResourceHref(String collection, String uid)
+			throws Exception {
+		return collection + URLEncoder.encode(uid, StringUtils.UTF_8)
+				+ RESOURCE_EXTENSION;
+	}
+
+	private static final String getDisplayName(String calendarURL) {
+		int e = calendarURL.indexOf("%40");
+		if (e != -1) {
+			int s = calendarURL.lastIndexOf('/', e);
+			int n = calendarURL.indexOf('/', e);
+			if (n != -1) {
+				return calendarURL.substring(s + 1, e) + '@'
+						+ calendarURL.substring(e + 3, n);
+			}
+		}
+		return calendarURL.substring(calendarURL.lastIndexOf('/') + 1);
+	}
+
+	private static final String escape(String text) {
+		if (text == null) {
+			return "";
+		}
+		QuickWriter writer = new QuickWriter(text.length() + 100);
+		char c;
+		for (int i = 0; i < text.length(); i++) {
+			c = text.charAt(i);
+			switch (c) {
+			case '&':
+				writer.write("&amp;");
+				break;
+			case '<':
+				writer.write("&lt;");
+				break;
+			case '>':
+				writer.write("&gt;");
+				break;
+			case '"':
+				writer.write("&quot;");
+				break;
+			default:
+				writer.write(c);
+			}
+		}
+		return writer.toString();
+	}
+
+}
@@ -12,12 +12,10 @@
 //
 package org.gcaldaemon.core.http;
 
-import java.io.BufferedInputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.OutputStream;
-import java.net.InetAddress;
+import java.io.RandomAccessFile;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
@@ -26,8 +24,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.gcaldaemon.core.CachedCalendar;
 import org.gcaldaemon.core.Configurator;
-import org.gcaldaemon.core.FilterMask;
+import org.gcaldaemon.core.AccessFilter;
 import org.gcaldaemon.core.GCalUtilities;
+import org.gcaldaemon.core.ICalUtilities;
 import org.gcaldaemon.core.Request;
 import org.gcaldaemon.core.Response;
 import org.gcaldaemon.core.StringUtils;
@@ -52,13 +51,7 @@ public class HTTPListener extends Thread {
 	protected static final String BASIC = "Basic";
 	protected static final String CONTENT_LENGTH = "ContentLength";
 
-	private static final char CARRIAGE_RETURN = '\r';
-	private static final char LINE_FEED = '\n';
-	private static final char SPACE = ' ';
 	private static final char UPPER_A = 'A';
-	private static final char UPPER_Z = 'Z';
-	private static final char TABULATOR = '\t';
-	private static final char MINUS = '-';
 
 	protected static final char COLON = ':';
 	protected static final char LOWER_A = 'a';
@@ -67,13 +60,17 @@ public class HTTPListener extends Thread {
 
 	protected static final int STATUS_OK = 200;
 	protected static final int STATUS_CREATED = 201;
+	protected static final int STATUS_NO_CONTENT = 204;
+	protected static final int STATUS_MULTI_STATUS = 207;
+	protected static final int STATUS_BAD_REQUEST = 400;
+	protected static final int STATUS_FORBIDDEN = 403;
 	protected static final int STATUS_NOT_FOUND = 404;
 	protected static final int STATUS_UNAUTHORIZED = 401;
+	protected static final int STATUS_INTERNAL_ERROR = 500;
+	protected static final int STATUS_SERVICE_UNAVAILABLE = 503;
 
 	private static final String CACHED_FEED_POSTFIX = "-cached-feed";
-
-	private static final byte UPPER_CASE = (byte) 1;
-	private static final byte BOTH_CASE = (byte) 0;
+	private static final String UPLOAD_STATUS_POSTFIX = "-upload-status";
 
 	// --- MAX ENABLED REQUEST SIZE ---
 
@@ -89,8 +86,21 @@ public class HTTPListener extends Thread {
 	protected final Configurator configurator;
 	private final ServerSocket serverSocket;
 
-	private final FilterMask[] hosts;
-	private final FilterMask[] addresses;
+	private final AccessFilter accessFilter;
+
+	private final HTTPRequestReader reader;
+
+	// --- ASYNCHRONOUS UPLOAD QUEUE ---
+
+	private final UploadQueue uploadQueue;
+
+	// --- CALDAV HANDLER ---
+
+	private final CalDAVHandler calDAVHandler;
+
+	// --- PUSH NOTIFICATION ENDPOINT ---
+
+	private final PushHandler pushHandler;
 
 	// --- CONSTRUCTOR ---
 
@@ -99,29 +109,65 @@ public class HTTPListener extends Thread {
 		super(mainGroup, "HTTP listener");
 		this.configurator = configurator;
 
+		// Acknowledge uploads before the synchronization
+		if (configurator.getConfigProperty(Configurator.HTTP_ASYNC_ENABLED,
+				false)) {
+			uploadQueue = new UploadQueue(mainGroup, configurator);
+		} else {
+			uploadQueue = null;
+		}
+
 		// Verify standalone flag (false = servlet mode)
 		if (!configurator.isStandalone()) {
 			serverSocket = null;
-			addresses = null;
-			hosts = null;
+			accessFilter = null;
+			reader = null;
+			calDAVHandler = null;
+			pushHandler = null;
 			return;
 		}
 
-		// Acceptable hostnames
-		hosts = configurator
-				.getFilterProperty(Configurator.HTTP_ALLOWED_HOSTNAMES);
+		// Per-event calendar access
+		if (configurator.getConfigProperty(Configurator.HTTP_CALDAV_ENABLED,
+				false)) {
+			calDAVHandler = new CalDAVHandler(configurator);
+		} else {
+			calDAVHandler = null;
+		}
+
+		// Google Calendar change notifications
+		if (configurator.getConfigProperty(Configurator.FILE_PUSH_ENABLED,
+				false)) {
+			pushHandler = new PushHandler(configurator);
+		} else {
+			pushHandler = null;
+		}
+
+		// Acceptable hostnames and TCP/IP addresses
+		accessFilter = configurator.getAccessFilter(
+				Configurator.HTTP_ALLOWED_HOSTNAMES,
+				Configurator.HTTP_ALLOWED_ADDRESSES);
 
-		// Acceptable TCP/IP addresses
-		addresses = configurator
-				.getFilterProperty(Configurator.HTTP_ALLOWED_ADDRESSES);
+		// Init request parser (large bodies are spooled into the work dir)
+		long threshold = configurator.getConfigProperty(
+				Configurator.HTTP_SPOOL_THRESHOLD, 262144L);
+		if (threshold > MAX_CONTENT_LENGTH) {
+			threshold = MAX_CONTENT_LENGTH;
+		}
+		reader = new HTTPRequestReader(MAX_CONTENT_LENGTH, (int) Math.min(
+				threshold, Integer.MAX_VALUE), new File(configurator
+				.getWorkDirectory(), "spool"));
 
 		// Init server
 		int port = (int) configurator.getConfigProperty(Configurator.HTTP_PORT,
 				9090);
 		log.info("HTTP server starting on port " + port + "...");
 		serverSocket = new ServerSocket(port);
+		if (pushHandler != null) {
+			configurator.getPushRegistry().setEndpointEnabled(true);
+		}
 
-		if (hosts == null && addresses == null) {
+		if (accessFilter == null) {
 
 			// Security warning
 			log.warn("Set the '" + Configurator.HTTP_ALLOWED_HOSTNAMES
@@ -178,7 +224,7 @@ public class HTTPListener extends Thread {
 				request = null;
 				if (socket != null) {
 					try {
-						request = readRequest(socket);
+						request = reader.readRequest(socket.getInputStream());
 						log
 								.debug("Processing " + request.method
 										+ " method...");
@@ -191,21 +237,23 @@ public class HTTPListener extends Thread {
 				// Create response
 				response = null;
 				if (request != null) {
-					if (request.url != null && request.url.endsWith(".ics")) {
-						int i = request.url.indexOf('@');
-						if (i != -1) {
-							request.url = request.url.substring(0, i) + "%40"
-									+ request.url.substring(i + 1);
-						}
-						i = request.url.indexOf("googlemail.com");
-						if (i != -1) {
-							request.url = request.url.substring(0, i)
-									+ "gmail.com"
-									+ request.url.substring(i + 14);
-						}
+					boolean calDAVRequest = calDAVHandler != null
+							&& request.url != null
+							&& request.url
+									.startsWith(CalDAVHandler.CALDAV_PREFIX + '/');
+					if (!calDAVRequest
+							&& request.url != null
+							&& (request.url.endsWith(".ics") || request.url
+									.endsWith(".ics" + UPLOAD_STATUS_POSTFIX))) {
+						request.url = normalizeURL(request.url);
 					}
 					try {
-						if (GET_METHOD.equals(request.method)) {
+						if (calDAVRequest) {
+							response = calDAVHandler.process(request);
+						} else if (pushHandler != null
+								&& PushHandler.PUSH_PREFIX.equals(request.url)) {
+							response = pushHandler.process(request);
+						} else if (GET_METHOD.equals(request.method)) {
 							response = doGet(request);
 						} else {
 							if (PUT_METHOD.equals(request.method)) {
@@ -231,6 +279,9 @@ public class HTTPListener extends Thread {
 						response = null;
 					}
 				}
+				if (request != null && request.bodyFile != null) {
+					request.bodyFile.delete();
+				}
 				request = null;
 
 				// Close socket
@@ -257,6 +308,9 @@ public class HTTPListener extends Thread {
 		} finally {
 
 			// Close resources
+			if (pushHandler != null) {
+				configurator.getPushRegistry().setEndpointEnabled(false);
+			}
 			if (serverSocket != null && !serverSocket.isClosed()) {
 				try {
 					serverSocket.close();
@@ -283,241 +337,40 @@ public class HTTPListener extends Thread {
 			} catch (Exception ignore) {
 			}
 		}
+		if (uploadQueue != null) {
+			uploadQueue.interrupt();
+		}
 		super.interrupt();
 	}
 
-	// --- TCP/IP ACCESS CONTROL ---
+	// --- URL NORMALIZATION ---
 
-	private final void checkAccess(Socket socket) throws IOException, Exception {
-		if (hosts != null || addresses != null) {
-			InetAddress inetAddress = socket.getInetAddress();
-			if (hosts != null) {
-				String host = inetAddress.getHostName();
-				if (host == null || host.length() == 0
-						|| host.equals("127.0.0.1")) {
-					host = "localhost";
-				} else {
-					host = host.toLowerCase();
-					if (host.equals("localhost.localdomain")) {
-						host = "localhost";
-					}
-				}
-				if (!isHostMatch(host)) {
-					log.warn("Connection refused (" + host
-							+ " is a forbidden hostname)!");
-					throw new Exception("forbidden hostname (" + host + ')');
-				}
-			}
-			if (addresses != null) {
-				String address = inetAddress.getHostAddress();
-				if (address == null || address.length() == 0) {
-					address = "127.0.0.1";
-				}
-				if (!isAddressMatch(address)) {
-					log.warn("Connection refused (" + address
-							+ " is a forbidden address)!");
-					throw new Exception("forbidden IP-address (" + address
-							+ ')');
-				}
-			}
+	static final String normalizeURL(String url) {
+		int i = url.indexOf('@');
+		if (i != -1) {
+			url = url.substring(0, i) + "%40" + url.substring(i + 1);
 		}
-	}
-
-	private final boolean isAddressMatch(String string) {
-		for (int i = 0; i < addresses.length; i++) {
-			if (addresses[i].match(string)) {
-				return true;
-			}
-		}
-		return false;
-	}
-
-	private final boolean isHostMatch(String string) {
-		for (int i = 0; i < hosts.length; i++) {
-			if (hosts[i].match(string)) {
-				return true;
-			}
+		i = url.indexOf("googlemail.com");
+		if (i != -1) {
+			url = url.substring(0, i) + "gmail.com" + url.substring(i + 14);
 		}
-		return false;
+		return url;
 	}
 
-	// --- HTTP REQUEST READER ---
-
-	private final Request readRequest(Socket socket) throws Exception {
-
-		// Open stream
-		InputStream is = socket.getInputStream();
-		BufferedInputStream bis = new BufferedInputStream(is, BUFFER_SIZE);
-		Request request = new Request();
-
-		// Start processing - skip whitespaces
-		char[] chars = new char[BUFFER_SIZE];
-		char c;
-		int n = 0;
-		for (;;) {
-			c = (char) bis.read();
-			if (c != CARRIAGE_RETURN && c != LINE_FEED) {
-				chars[n++] = c;
-				break;
-			}
-		}
-
-		// Read HTTP-method (GET, POST, PUT, etc)
-		for (;;) {
-			c = (char) bis.read();
-			if (c == SPACE) {
-				request.method = new String(chars, 0, n);
-				break;
-			}
-			chars[n++] = c;
-		}
-
-		// Read URL and optional query-string
-		n = 0;
-		boolean flag = false;
-		for (;;) {
-			c = (char) bis.read();
-			if (c == CARRIAGE_RETURN || c == LINE_FEED || c == SPACE) {
-
-				// End of URL
-				flag = c == SPACE;
-				break;
-			}
-			chars[n++] = c;
-		}
-		int contentLength = 0;
-
-		// URL always encoded in US-ASCII
-		request.url = new String(chars, 0, n);
-
-		// Read optional protocol
-		n = 0;
-		if (flag) {
-			for (;;) {
-				c = (char) bis.read();
-				if (c == CARRIAGE_RETURN || c == LINE_FEED) {
-
-					// End of protocol
-					bis.read();
-					break;
-				}
-				chars[n++] = c;
-			}
-
-			// Read headers
-			String headerName;
-			byte caseMode;
-			for (;;) {
-				for (;;) {
-					c = (char) bis.read();
-					if ((c == CARRIAGE_RETURN)) {
-
-						// Do nothing
-					} else {
-						if (c == LINE_FEED) {
-
-							// End of headers
-							flag = false;
-						}
-						break;
-					}
-				}
-				if (!flag) {
-					break;
-				}
-
-				// Read header name
-				n = 0;
-				headerName = null;
-				caseMode = UPPER_CASE;
-				for (;;) {
-					if (c == COLON) {
-						headerName = new String(chars, 0, n);
-						break;
-					}
-					if (c == MINUS) {
-						caseMode = 1;
-						c = (char) bis.read();
-						continue;
-					}
-					if (caseMode != BOTH_CASE) {
-						if (caseMode == UPPER_CASE) {
-							if ((c >= LOWER_A) && (c <= LOWER_Z)) {
-								chars[n++] = (char) (c + CASE_OFFSET);
-							} else {
-								chars[n++] = c;
-							}
-							caseMode = BOTH_CASE;
-						} else {
-							if ((c >= UPPER_A) && (c <= UPPER_Z)) {
-								chars[n++] = (char) (c - CASE_OFFSET);
-							} else {
-								chars[n++] = c;
-							}
-						}
-					} else {
-						chars[n++] = c;
-					}
-					c = (char) bis.read();
-				}
-
-				// Read header's value
-				n = 0;
-				c = (char) bis.read();
-				while (c == SPACE || c == TABULATOR) {
-					c = (char) bis.read();
-				}
-				for (;;) {
-					if (c == CARRIAGE_RETURN) {
-					} else {
-						if (c == LINE_FEED) {
-							break;
-						}
-						chars[n++] = c;
-					}
-					c = (char) bis.read();
-				}
-				if (headerName.equals(AUTHORIZATION)) {
-					headerName = new String(chars, 0, n);
-					if (headerName.startsWith(BASIC)) {
-						headerName = StringUtils.decodeBASE64(headerName
-								.substring(6));
-						n = headerName.indexOf(COLON);
-						if (n != 0) {
-							request.username = headerName.substring(0, n);
-						}
-						if (n != headerName.length() - 1) {
-							request.password = headerName.substring(n + 1);
-						}
-					}
-				} else {
-					if (headerName.equals(CONTENT_LENGTH)) {
-						contentLength = Integer
-								.parseInt(new String(chars, 0, n));
-					}
-				}
-			}
-		}
+	// --- TCP/IP ACCESS CONTROL ---
 
-		// Read body
-		if (contentLength != 0) {
-			if (contentLength > MAX_CONTENT_LENGTH) {
-				throw new IllegalArgumentException("Too large message body ("
-						+ contentLength + ">" + MAX_CONTENT_LENGTH + ")!");
-			}
-			int packet, readed = 0;
-			request.body = new byte[contentLength];
-			while (readed != contentLength) {
-				packet = bis.read(request.body, readed, contentLength - readed);
-				if (packet == -1) {
-					throw new EOFException();
-				}
-				readed += packet;
+	private final void checkAccess(Socket socket) throws Exception {
+		if (accessFilter != null) {
+			try {
+				accessFilter.checkAccess(socket.getInetAddress());
+			} catch (InterruptedException interrupt) {
+				throw interrupt;
+			} catch (Exception forbidden) {
+				log.warn("Connection refused (" + forbidden.getMessage()
+						+ ")!");
+				throw forbidden;
 			}
 		}
-
-		// Return request
-		return request;
 	}
 
 	// --- HTTP RESPONSE WRITER ---
@@ -538,6 +391,23 @@ public class HTTPListener extends Thread {
 		case STATUS_CREATED:
 			headers.write("201 Created\r\n");
 			break;
+		case STATUS_NO_CONTENT:
+			headers.write("204 No Content\r\n");
+			break;
+		case STATUS_MULTI_STATUS:
+			headers.write("207 Multi-Status\r\nContent-Type: ");
+			headers.write(response.contentType);
+			headers.write("\r\n");
+			break;
+		case STATUS_BAD_REQUEST:
+			headers.write("400 Bad Request\r\n");
+			headers.write("Content-Type: text/plain; charset=utf-8\r\n");
+			break;
+		case STATUS_FORBIDDEN:
+			headers.write("403 Forbidden\r\nContent-Type: ");
+			headers.write(response.contentType);
+			headers.write("\r\n");
+			break;
 		case STATUS_UNAUTHORIZED:
 			headers.write("401 Unauthorized\r\n");
 			String realm = null;
@@ -572,6 +442,9 @@ public class HTTPListener extends Thread {
 			headers.write("404 Not Found\r\n");
 			headers.write("Content-Type: text/plain; charset=utf-8\r\n");
 		}
+		if (response.headers != null) {
+			headers.write(response.headers);
+		}
 		headers.write("Connection: close\r\n");
 		headers
 				.append("Cache-Control: no-cache, no-store, must-revalidate\r\n");
@@ -610,6 +483,12 @@ public class HTTPListener extends Thread {
 
 		// Validate URL
 		Response response = new Response();
+		boolean statusRequested = uploadQueue != null
+				&& request.url.endsWith(UPLOAD_STATUS_POSTFIX);
+		if (statusRequested) {
+			request.url = request.url.substring(0, request.url.length()
+					- UPLOAD_STATUS_POSTFIX.length());
+		}
 		boolean calendarRequested = request.url.endsWith(".ics");
 
 		// Validate user
@@ -624,8 +503,16 @@ public class HTTPListener extends Thread {
 			return response;
 		}
 
-		// RSS / ATOM feed cache
+		// Status of the last upload
 		response.status = STATUS_OK;
+		if (statusRequested) {
+			response.contentType = "text/plain; charset=utf-8";
+			response.body = StringUtils.encodeString(uploadQueue
+					.getStatus(request.url), StringUtils.UTF_8);
+			return response;
+		}
+
+		// RSS / ATOM feed cache
 		CachedCalendar calendar;
 		boolean feedRequested = false;
 		if (configurator.isFeedConverterEnabled()) {
@@ -647,6 +534,16 @@ public class HTTPListener extends Thread {
 			}
 		}
 
+		// Uploaded calendar is waiting in the queue
+		if (!feedRequested && uploadQueue != null) {
+			response.body = uploadQueue.getPendingBody(request.url);
+			if (response.body != null) {
+				log.debug("Calendar requested from " + request.url
+						+ " (upload pending)...");
+				return response;
+			}
+		}
+
 		// Get Google Calendar (ics file) from common cache
 		if (feedRequested) {
 			log.debug("Feed requested from " + request.url + "...");
@@ -693,6 +590,27 @@ public class HTTPListener extends Thread {
 			return response;
 		}
 
+		// Load spooled body (the upload queue reads it from the spool file)
+		if (request.bodyFile != null && uploadQueue == null) {
+			request.body = loadSpooledBody(request.bodyFile);
+		}
+
+		// Validate and enqueue calendar
+		if (uploadQueue != null) {
+			String error = validateBody(request);
+			if (error != null) {
+				log.warn(error);
+				response.status = STATUS_BAD_REQUEST;
+				response.body = StringUtils.encodeString("ERROR 400\r\n\r\n"
+						+ error, StringUtils.US_ASCII);
+				return response;
+			}
+			uploadQueue.enqueue(request);
+			log.debug("Calendar changed at " + request.url + " (enqueued).");
+			response.status = STATUS_CREATED;
+			return response;
+		}
+
 		// Start synchronization
 		log.debug("Calendar changed at " + request.url + '.');
 		configurator.calendarChanged(request);
@@ -702,4 +620,83 @@ public class HTTPListener extends Thread {
 		return response;
 	}
 
-}
\ No newline at end of file
+	private static final String validateBody(Request request) {
+		if (request.bodyFile != null) {
+			return validateSpooledBody(request);
+		}
+		if (request.body == null || request.body.length == 0) {
+			return "Empty calendar uploaded to " + request.url + '!';
+		}
+		try {
+			String content = StringUtils.decodeToString(request.body,
+					StringUtils.UTF_8);
+			if (content.indexOf(GCalUtilities.ERROR_MARKER) != -1) {
+				return "Calendar contains error marker (" + request.url
+						+ ")!";
+			}
+			ICalUtilities.parseCalendar(request.body);
+		} catch (Exception invalidCalendar) {
+			return "Malformed calendar uploaded to " + request.url + " ("
+					+ invalidCalendar + ")!";
+		}
+		return null;
+	}
+
+	private static final String validateSpooledBody(Request request) {
+		try {
+
+			// Large calendar (validated without loading it into the heap)
+			if (containsErrorMarker(request.bodyFile)) {
+				return "Calendar contains error marker (" + request.url
+						+ ")!";
+			}
+			ICalUtilities.parseCalendar(request.bodyFile);
+		} catch (Exception invalidCalendar) {
+			return "Malformed calendar uploaded to " + request.url + " ("
+					+ invalidCalendar + ")!";
+		}
+		return null;
+	}
+
+	static final boolean containsErrorMarker(File file)
+			throws Exception {
+		byte[] marker = StringUtils.encodeString(GCalUtilities.ERROR_MARKER,
+				StringUtils.US_ASCII);
+		byte[] buffer = new byte[BUFFER_SIZE * 4];
+		FileInputStream in = new FileInputStream(file);
+		try {
+
+			// The first char of the marker does not occur in its other part
+			int len, matched = 0;
+			while ((len = in.read(buffer)) != -1) {
+				for (int i = 0; i < len; i++) {
+					if (buffer[i] == marker[matched]) {
+						if (++matched == marker.length) {
+							return true;
+						}
+					} else {
+						matched = buffer[i] == marker[0] ? 1 : 0;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return false;
+	}
+
+	static final byte[] loadSpooledBody(File file) throws Exception {
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,515 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.http;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.gcaldaemon.core.Request;
+import org.gcaldaemon.core.StringUtils;
+
+/**
+ * Bounded HTTP request parser. Reads the request line and the headers into a
+ * reusable line buffer (only the URL and the credentials are converted to
+ * Strings), supports the 'Content-Length' and the 'Transfer-Encoding: chunked'
+ * body formats, and spools large request bodies into a temporary file instead
+ * of keeping them in the heap. One instance serves one connection at a time.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class HTTPRequestReader {
+
+	// --- CONSTANTS ---
+
+	private static final int BUFFER_SIZE = 2048;
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_HEADERS = 100;
+
+	private static final byte CARRIAGE_RETURN = '\r';
+	private static final byte LINE_FEED = '\n';
+	private static final byte SPACE = ' ';
+	private static final byte TABULATOR = '\t';
+	private static final byte COLON = ':';
+	private static final byte SEMICOLON = ';';
+
+	private static final byte[] GET_BYTES = { 'G', 'E', 'T' };
+	private static final byte[] PUT_BYTES = { 'P', 'U', 'T' };
+
+	private static final byte[] AUTHORIZATION = toBytes("authorization");
+	private static final byte[] CONTENT_LENGTH = toBytes("content-length");
+	private static final byte[] TRANSFER_ENCODING = toBytes("transfer-encoding");
+	private static final byte[] DEPTH = toBytes("depth");
+	private static final byte[] CHANNEL_ID = toBytes("x-goog-channel-id");
+	private static final byte[] CHANNEL_TOKEN = toBytes("x-goog-channel-token");
+	private static final byte[] RESOURCE_STATE = toBytes("x-goog-resource-state");
+	private static final byte[] CHUNKED = toBytes("chunked");
+	private static final byte[] BASIC = toBytes("basic ");
+
+	// --- VARIABLES ---
+
+	private final long maxContentLength;
+	private final int spoolThreshold;
+	private final File spoolDirectory;
+
+	private final byte[] input = new byte[BUFFER_SIZE];
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+	private byte[] body = new byte[BUFFER_SIZE];
+
+	private InputStream in;
+	private int position;
+	private int limit;
+
+	private int bodyLength;
+	private long totalLength;
+	private File spoolFile;
+	private OutputStream spool;
+
+	// --- CONSTRUCTOR ---
+
+	HTTPRequestReader(long maxContentLength, int spoolThreshold,
+			File spoolDirectory) {
+		this.maxContentLength = maxContentLength;
+		this.spoolThreshold = spoolThreshold;
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	// --- REQUEST READER ---
+
+	final Request readRequest(InputStream in) throws Exception {
+		this.in = in;
+		position = 0;
+		limit = 0;
+		try {
+			return parseRequest();
+		} finally {
+			this.in = null;
+			closeSpool();
+		}
+	}
+
+	private final Request parseRequest() throws Exception {
+		Request request = new Request();
+
+		// Start processing - skip empty lines
+		int length;
+		do {
+			length = readLine();
+			if (length == -1) {
+				throw new EOFException();
+			}
+		} while (length == 0);
+
+		// Read HTTP-method (GET, POST, PUT, etc)
+		int methodEnd = indexOf(SPACE, 0, length);
+		if (methodEnd < 1) {
+			throw new IOException("Malformed request line!");
+		}
+		if (equals(GET_BYTES, 0, methodEnd)) {
+			request.method = HTTPListener.GET_METHOD;
+		} else if (equals(PUT_BYTES, 0, methodEnd)) {
+			request.method = HTTPListener.PUT_METHOD;
+		} else {
+			request.method = getString(0, methodEnd);
+		}
+
+		// Read URL and optional protocol (URL always encoded in US-ASCII)
+		int urlStart = methodEnd + 1;
+		int urlEnd = indexOf(SPACE, urlStart, length);
+		boolean hasProtocol = urlEnd != -1;
+		if (!hasProtocol) {
+			urlEnd = length;
+		}
+		request.url = getString(urlStart, urlEnd - urlStart);
+
+		// Read headers
+		long contentLength = 0;
+		boolean chunked = false;
+		if (hasProtocol) {
+			int headers = 0;
+			int colon, valueStart;
+			for (;;) {
+				length = readLine();
+				if (length == -1) {
+					throw new EOFException();
+				}
+				if (length == 0) {
+
+					// End of headers
+					break;
+				}
+				if (++headers > MAX_HEADERS) {
+					throw new IOException("Too many request headers!");
+				}
+				if (line[0] == SPACE || line[0] == TABULATOR) {
+
+					// Folded value of an ignored header
+					continue;
+				}
+				colon = indexOf(COLON, 0, length);
+				if (colon < 1) {
+					continue;
+				}
+				valueStart = colon + 1;
+				while (valueStart < length
+						&& (line[valueStart] == SPACE || line[valueStart] == TABULATOR)) {
+					valueStart++;
+				}
+				if (equalsIgnoreCase(AUTHORIZATION, 0, colon)) {
+					parseAuthorization(request, valueStart, length);
+					continue;
+				}
+				if (equalsIgnoreCase(CONTENT_LENGTH, 0, colon)) {
+					contentLength = parseNumber(valueStart, length, 10);
+					continue;
+				}
+				if (equalsIgnoreCase(TRANSFER_ENCODING, 0, colon)) {
+					chunked = containsIgnoreCase(CHUNKED, valueStart, length);
+					continue;
+				}
+				if (equalsIgnoreCase(DEPTH, 0, colon)) {
+					request.depth = getString(valueStart,
+							length - valueStart).trim();
+					continue;
+				}
+
+				// Push notification headers
+				if (equalsIgnoreCase(CHANNEL_ID, 0, colon)) {
+					request.channelId = getString(valueStart,
+							length - valueStart).trim();
+					continue;
+				}
+				if (equalsIgnoreCase(CHANNEL_TOKEN, 0, colon)) {
+					request.channelToken = getString(valueStart,
+							length - valueStart).trim();
+					continue;
+				}
+				if (equalsIgnoreCase(RESOURCE_STATE, 0, colon)) {
+					request.resourceState = getString(valueStart,
+							length - valueStart).trim();
+				}
+			}
+		}
+
+		// Read body
+		if (chunked) {
+			readChunkedBody();
+		} else {
+			if (contentLength != 0) {
+				readBody(contentLength);
+			}
+		}
+		if (spoolFile != null) {
+			request.bodyFile = spoolFile;
+			spoolFile = null;
+		} else {
+			if (bodyLength != 0) {
+				request.body = new byte[bodyLength];
+				System.arraycopy(body, 0, request.body, 0, bodyLength);
+			}
+		}
+
+		// Return request
+		return request;
+	}
+
+	private final void parseAuthorization(Request request, int start, int end)
+			throws Exception {
+		if (end - start <= BASIC.length
+				|| !equalsIgnoreCase(BASIC, start, start + BASIC.length)) {
+			return;
+		}
+		String token = getString(start + BASIC.length, end - start
+				- BASIC.length);
+		String credentials = StringUtils.decodeBASE64(token);
+		int n = credentials.indexOf(HTTPListener.COLON);
+		if (n == -1) {
+			return;
+		}
+		if (n != 0) {
+			request.username = credentials.substring(0, n);
+		}
+		if (n != credentials.length() - 1) {
+			request.password = credentials.substring(n + 1);
+		}
+	}
+
+	// --- BODY READERS ---
+
+	private final void readBody(long contentLength) throws Exception {
+		if (contentLength < 0) {
+			throw new IllegalArgumentException("Invalid message body length ("
+					+ contentLength + ")!");
+		}
+		checkLength(contentLength);
+		copyBody(contentLength);
+	}
+
+	private final void readChunkedBody() throws Exception {
+		long chunkSize;
+		int length, end;
+		for (;;) {
+
+			// Read chunk size (chunk extensions are ignored)
+			length = readLine();
+			if (length == -1) {
+				throw new EOFException();
+			}
+			end = indexOf(SEMICOLON, 0, length);
+			if (end == -1) {
+				end = length;
+			}
+			while (end > 0
+					&& (line[end - 1] == SPACE || line[end - 1] == TABULATOR)) {
+				end--;
+			}
+			chunkSize = parseNumber(0, end, 16);
+			if (chunkSize == 0) {
+				break;
+			}
+			checkLength(totalLength + chunkSize);
+			copyBody(chunkSize);
+
+			// Skip CRLF after the chunk's data
+			if (readLine() != 0) {
+				throw new IOException("Malformed chunked message body!");
+			}
+		}
+
+		// Skip optional trailer headers
+		int trailers = 0;
+		for (;;) {
+			length = readLine();
+			if (length == -1) {
+				throw new EOFException();
+			}
+			if (length == 0) {
+				break;
+			}
+			if (++trailers > MAX_HEADERS) {
+				throw new IOException("Too many trailer headers!");
+			}
+		}
+	}
+
+	private final void checkLength(long length) {
+		if (length > maxContentLength) {
+			throw new IllegalArgumentException("Too large message body ("
+					+ length + ">" + maxContentLength + ")!");
+		}
+	}
+
+	private final void copyBody(long count) throws Exception {
+		int packet;
+		while (count > 0) {
+			if (position == limit) {
+				fillBuffer();
+				if (limit == -1) {
+					throw new EOFException();
+				}
+			}
+			packet = (int) Math.min(count, limit - position);
+			writeBody(input, position, packet);
+			position += packet;
+			count -= packet;
+		}
+	}
+
+	private final void writeBody(byte[] bytes, int off, int len)
+			throws Exception {
+		totalLength += len;
+		if (spool == null) {
+			int newLength = bodyLength + len;
+			if (newLength <= spoolThreshold) {
+
+				// Keep small bodies in the reusable buffer
+				if (newLength > body.length) {
+					byte[] copy = new byte[Math.min(Math.max(newLength,
+							body.length * 2), spoolThreshold)];
+					System.arraycopy(body, 0, copy, 0, bodyLength);
+					body = copy;
+				}
+				System.arraycopy(bytes, off, body, bodyLength, len);
+				bodyLength = newLength;
+				return;
+			}
+
+			// Spool large bodies to a temporary file
+			if (!spoolDirectory.isDirectory()) {
+				spoolDirectory.mkdirs();
+			}
+			spoolFile = File.createTempFile("request-", ".tmp", spoolDirectory);
+			spool = new FileOutputStream(spoolFile);
+			spool.write(body, 0, bodyLength);
+			bodyLength = 0;
+		}
+		spool.write(bytes, off, len);
+	}
+
+	private final void closeSpool() {
+		bodyLength = 0;
+		totalLength = 0;
+		if (body.length > 65536) {
+			body = new byte[BUFFER_SIZE];
+		}
+		if (spool != null) {
+			try {
+				spool.close();
+			} catch (Exception ignored) {
+			}
+			spool = null;
+		}
+		if (spoolFile != null) {
+
+			// Unfinished request
+			spoolFile.delete();
+			spoolFile = null;
+		}
+	}
+
+	// --- LINE READER ---
+
+	/**
+	 * Reads the next line (without CRLF) into the line buffer.
+	 *
+	 * @return length of the line or -1 at the end of the stream
+	 */
+	private final int readLine() throws Exception {
+		int length = 0;
+		byte b;
+		for (;;) {
+			if (position == limit) {
+				fillBuffer();
+				if (limit == -1) {
+					return length == 0 ? -1 : length;
+				}
+			}
+			b = input[position++];
+			if (b == LINE_FEED) {
+				if (length != 0 && line[length - 1] == CARRIAGE_RETURN) {
+					length--;
+				}
+				return length;
+			}
+			if (length == MAX_LINE_LENGTH) {
+				throw new IOException("Too long request line (>"
+						+ MAX_LINE_LENGTH + " bytes)!");
+			}
+			line[length++] = b;
+		}
+	}
+
+	private final void fillBuffer() throws IOException {
+		position = 0;
+		limit = in.read(input, 0, input.length);
+		if (limit == 0) {
+			limit = -1;
+		}
+	}
+
+	// --- BYTE UTILITIES ---
+
+	private final String getString(int start, int length) throws Exception {
+		return new String(line, start, length, StringUtils.ISO_8859_1);
+	}
+
+	private final int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (line[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private final boolean equals(byte[] bytes, int from, int to) {
+		if (to - from != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (line[from + i] != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final boolean equalsIgnoreCase(byte[] lowerCase, int from, int to) {
+		if (to - from != lowerCase.length) {
+			return false;
+		}
+		for (int i = 0; i < lowerCase.length; i++) {
+			if (toLowerCase(line[from + i]) != lowerCase[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private final boolean containsIgnoreCase(byte[] lowerCase, int from, int to) {
+		int last = to - lowerCase.length;
+		int i;
+		for (int start = from; start <= last; start++) {
+			for (i = 0; i < lowerCase.length; i++) {
+				if (toLowerCase(line[start + i]) != lowerCase[i]) {
+					break;
+				}
+			}
+			if (i == lowerCase.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private final long parseNumber(int from, int to, int radix) {
+		while (to > from && (line[to - 1] == SPACE || line[to - 1] == TABULATOR)) {
+			to--;
+		}
+		if (from == to || to - from > 15) {
+			throw new IllegalArgumentException("Malformed number in header!");
+		}
+		long value = 0;
+		int digit;
+		for (int i = from; i < to; i++) {
+			digit = Character.digit((char) line[i], radix);
+			if (digit == -1) {
+				throw new IllegalArgumentException(
+						"Malformed number in header!");
+			}
+			value = value * radix + digit;
+		}
+		return value;
+	}
+
+	private static final byte toLowerCase(byte b) {
+		if (b >= 'A' && b <= 'Z') {
+			return (byte) (b + ('a' - 'A'));
+		}
+		return b;
+	}
+
+	private static final byte[] toBytes(String text) {
+		byte[] bytes = new byte[text.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) text.charAt(i);
+		}
+		return bytes;
+	}
+
+}
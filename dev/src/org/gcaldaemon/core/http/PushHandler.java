@@ -0,0 +1,88 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gcaldaemon.core.Configurator;
+import org.gcaldaemon.core.PushRegistry;
+import org.gcaldaemon.core.Request;
+import org.gcaldaemon.core.Response;
+
+/**
+ * Push notification endpoint of the HTTP listener. Google Calendar posts the
+ * notifications of the registered 'watch' channels to this URL (via a HTTPS
+ * reverse proxy). The cached calendar of a valid notification is invalidated
+ * and the file listener downloads the modified calendar. URL of the endpoint:
+ *
+ * <li>/push
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class PushHandler {
+
+	// --- CONSTANTS ---
+
+	static final String PUSH_PREFIX = "/push";
+
+	private static final String POST_METHOD = "POST";
+	private static final String SYNC_STATE = "sync";
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(PushHandler.class);
+
+	// --- VARIABLES ---
+
+	private final Configurator configurator;
+	private final PushRegistry registry;
+
+	// --- CONSTRUCTOR ---
+
+	PushHandler(Configurator configurator) {
+		this.configurator = configurator;
+		registry = configurator.getPushRegistry();
+		log.info("Push notifications enabled (" + PUSH_PREFIX + ").");
+	}
+
+	// --- PROCESS NOTIFICATION ---
+
+	final Response process(Request request) throws Exception {
+		Response response = new Response();
+		if (!POST_METHOD.equals(request.method)) {
+			response.status = HTTPListener.STATUS_BAD_REQUEST;
+			return response;
+		}
+
+		// Verify channel
+		PushRegistry.Channel channel = registry.getChannel(request.channelId,
+				request.channelToken);
+		if (channel == null) {
+			log.debug("Unknown notification channel (" + request.channelId
+					+ ")!");
+			response.status = HTTPListener.STATUS_NOT_FOUND;
+			return response;
+		}
+
+		// Invalidate calendar ('sync' is the first message of a channel)
+		if (!SYNC_STATE.equals(request.resourceState)) {
+			log.debug("Calendar changed (" + channel.url + ").");
+			configurator.remoteChanged(channel.url);
+		}
+		response.status = HTTPListener.STATUS_NO_CONTENT;
+		return response;
+	}
+
+}
@@ -0,0 +1,472 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gcaldaemon.core.Configurator;
+import org.gcaldaemon.core.PasswordEncoder;
+import org.gcaldaemon.core.Request;
+import org.gcaldaemon.core.StringUtils;
+import org.gcaldaemon.logger.QuickWriter;
+
+/**
+ * Durable queue of the uploaded (PUT) calendars. The HTTP listener stores the
+ * uploaded file in the 'upload' subdirectory of the work directory and sends
+ * the response immediately; this thread loads the previous calendar and starts
+ * the synchronization in the background. Uploads of the same URL that are
+ * still waiting in the queue are replaced by the newer one. Unprocessed uploads
+ * are reloaded after restart.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class UploadQueue extends Thread {
+
+	// --- CONSTANTS ---
+
+	static final String STATUS_PENDING = "pending";
+	static final String STATUS_APPLIED = "applied";
+	static final String STATUS_FAILED = "failed";
+	static final String STATUS_UNKNOWN = "unknown";
+
+	private static final String BODY_EXTENSION = ".ics";
+	private static final String META_EXTENSION = ".properties";
+
+	private static final int MAX_STATUS_SIZE = 100;
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(UploadQueue.class);
+
+	// --- VARIABLES ---
+
+	private final Configurator configurator;
+	private final File uploadDirectory;
+
+	// URL -> queued or processed upload
+	private final HashMap pendingUploads = new HashMap();
+	private final LinkedList pendingURLs = new LinkedList();
+
+	// Upload under processing
+	private Upload currentUpload;
+
+	// URL -> status of the last upload (least recently used are removed)
+	private final LinkedHashMap uploadStatus = new LinkedHashMap(64, 0.75f,
+			true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_STATUS_SIZE;
+		}
+
+	};
+
+	private long lastSequence;
+
+	// --- CONSTRUCTOR ---
+
+	UploadQueue(ThreadGroup mainGroup, Configurator configurator)
+			throws Exception {
+		super(mainGroup, "Upload queue");
+		setDaemon(true);
+		this.configurator = configurator;
+		uploadDirectory = new File(configurator.getWorkDirectory(), "upload");
+		if (!uploadDirectory.isDirectory()) {
+			uploadDirectory.mkdirs();
+		}
+
+		// Reload unprocessed uploads
+		recoverUploads();
+		log.info("Asynchronous upload processing enabled.");
+		start();
+	}
+
+	// --- ENQUEUE UPLOADED CALENDAR ---
+
+	final synchronized long enqueue(Request request) throws Exception {
+
+		// Store calendar file
+		long sequence = System.currentTimeMillis();
+		if (sequence <= lastSequence) {
+			sequence = lastSequence + 1;
+		}
+		lastSequence = sequence;
+		Upload upload = new Upload();
+		upload.sequence = sequence;
+		upload.url = request.url;
+		upload.username = request.username;
+		upload.password = request.password;
+		upload.filePath = request.filePath;
+		if (request.bodyFile == null) {
+			writeFile(upload.getBodyFile(), request.body);
+		} else {
+
+			// Move the spooled calendar into the queue
+			moveFile(request.bodyFile, upload.getBodyFile());
+			request.bodyFile = null;
+		}
+
+		// The properties file marks the upload as completed
+		Properties properties = new Properties();
+		properties.setProperty("url", upload.url);
+		if (upload.username != null) {
+			properties.setProperty("username", upload.username);
+		}
+		if (upload.password != null) {
+			properties.setProperty("password", PasswordEncoder
+					.encodePassword(upload.password));
+		}
+		if (upload.filePath != null) {
+			properties.setProperty("file", upload.filePath);
+		}
+		File metaFile = upload.getMetaFile();
+		File tempFile = new File(uploadDirectory, sequence + ".tmp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			properties.store(out, null);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tempFile.renameTo(metaFile)) {
+			tempFile.delete();
+			upload.getBodyFile().delete();
+			throw new Exception("Unable to store uploaded calendar ("
+					+ metaFile + ")!");
+		}
+		addUpload(upload);
+		log.debug("Upload #" + sequence + " enqueued (" + upload.url + ").");
+		notifyAll();
+		return sequence;
+	}
+
+	private final void addUpload(Upload upload) {
+		Upload previous = (Upload) pendingUploads.put(upload.url, upload);
+		if (previous == null || previous == currentUpload) {
+			pendingURLs.addLast(upload.url);
+		} else {
+
+			// Replace the older (unprocessed) upload
+			previous.delete();
+			log.debug("Upload #" + previous.sequence + " replaced by #"
+					+ upload.sequence + '.');
+		}
+		setStatus(upload, STATUS_PENDING, null);
+	}
+
+	// --- PENDING CALENDAR ---
+
+	final byte[] getPendingBody(String url) {
+		Upload upload;
+		synchronized (this) {
+			upload = (Upload) pendingUploads.get(url);
+		}
+		if (upload == null) {
+			return null;
+		}
+		try {
+			return readFile(upload.getBodyFile());
+		} catch (Exception processed) {
+			return null;
+		}
+	}
+
+	// --- UPLOAD STATUS ---
+
+	final synchronized String getStatus(String url) {
+		Status status = (Status) uploadStatus.get(url);
+		QuickWriter writer = new QuickWriter(200);
+		writer.write("url=");
+		writer.write(url);
+		writer.write("\r\nstatus=");
+		if (status == null) {
+			writer.write(STATUS_UNKNOWN);
+			writer.write("\r\n");
+			return writer.toString();
+		}
+		writer.write(status.state);
+		writer.write("\r\nupload=");
+		writer.write(Long.toString(status.sequence));
+		writer.write("\r\nreceived=");
+		writer.write(new Date(status.sequence).toString());
+		writer.write("\r\nupdated=");
+		writer.write(new Date(status.updated).toString());
+		writer.write("\r\n");
+		if (status.message != null) {
+			writer.write("message=");
+			writer.write(status.message);
+			writer.write("\r\n");
+		}
+		return writer.toString();
+	}
+
+	private final synchronized void setStatus(Upload upload, String state,
+			String message) {
+		Status status = (Status) uploadStatus.get(upload.url);
+		if (status != null && status.sequence > upload.sequence) {
+			return;
+		}
+		if (status == null) {
+			status = new Status();
+			uploadStatus.put(upload.url, status);
+		}
+		status.sequence = upload.sequence;
+		status.state = state;
+		status.message = message;
+		status.updated = System.currentTimeMillis();
+	}
+
+	// --- BACKGROUND PROCESSOR LOOP ---
+
+	public final void run() {
+		Upload upload;
+		Request request;
+		for (;;) {
+			try {
+
+				// Wait for an uploaded calendar
+				synchronized (this) {
+					while (pendingURLs.isEmpty()) {
+						wait();
+					}
+					String url = (String) pendingURLs.removeFirst();
+					upload = (Upload) pendingUploads.get(url);
+					currentUpload = upload;
+				}
+				if (upload == null) {
+					continue;
+				}
+
+				// Load previous calendar and start synchronization
+				try {
+					request = new Request();
+					request.method = HTTPListener.PUT_METHOD;
+					request.url = upload.url;
+					request.username = upload.username;
+					request.password = upload.password;
+					request.filePath = upload.filePath;
+					request.body = readFile(upload.getBodyFile());
+					log.debug("Processing upload #" + upload.sequence + " ("
+							+ upload.url + ")...");
+					configurator.calendarChanged(request);
+					setStatus(upload, STATUS_APPLIED, null);
+				} catch (InterruptedException interrupt) {
+					throw interrupt;
+				} catch (Exception syncError) {
+					log.error("Unable to process uploaded calendar ("
+							+ upload.url + ")!", syncError);
+					setStatus(upload, STATUS_FAILED, syncError.toString());
+				} finally {
+
+					// The upload remains pending until it is processed
+					synchronized (this) {
+						if (pendingUploads.get(upload.url) == upload) {
+							pendingUploads.remove(upload.url);
+						}
+						currentUpload = null;
+					}
+					upload.delete();
+				}
+			} catch (InterruptedException interrupt) {
+				break;
+			}
+		}
+	}
+
+	// --- RECOVER UNPROCESSED UPLOADS ---
+
+	private final void recoverUploads() {
+		String[] files = uploadDirectory.list();
+		if (files == null || files.length == 0) {
+			return;
+		}
+		Arrays.sort(files);
+		Upload upload;
+		Properties properties;
+		FileInputStream in;
+		String name;
+		for (int i = 0; i < files.length; i++) {
+			name = files[i];
+			if (!name.endsWith(META_EXTENSION)) {
+				if (!name.endsWith(BODY_EXTENSION)) {
+
+					// Unfinished upload
+					new File(uploadDirectory, name).delete();
+				}
+				continue;
+			}
+			upload = new Upload();
+			in = null;
+			try {
+				upload.sequence = Long.parseLong(name.substring(0, name
+						.length()
+						- META_EXTENSION.length()));
+				properties = new Properties();
+				in = new FileInputStream(upload.getMetaFile());
+				properties.load(in);
+				in.close();
+				in = null;
+				upload.url = properties.getProperty("url");
+				upload.username = properties.getProperty("username");
+				upload.filePath = properties.getProperty("file");
+				String password = properties.getProperty("password");
+				if (password != null) {
+					upload.password = StringUtils.decodePassword(password);
+				}
+				if (upload.url == null || !upload.getBodyFile().isFile()) {
+					upload.delete();
+					continue;
+				}
+				if (upload.sequence > lastSequence) {
+					lastSequence = upload.sequence;
+				}
+				addUpload(upload);
+				log.info("Unprocessed upload found (" + upload.url + ").");
+			} catch (Exception malformed) {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (Exception ignored) {
+					}
+				}
+				log.warn("Unable to load uploaded calendar (" + name + ")!",
+						malformed);
+				new File(uploadDirectory, name).delete();
+			}
+		}
+		String[] bodies = uploadDirectory.list();
+		for (int i = 0; bodies != null && i < bodies.length; i++) {
+			name = bodies[i];
+			if (name.endsWith(BODY_EXTENSION)
+					&& !new File(uploadDirectory, name.substring(0, name
+							.length()
+							- BODY_EXTENSION.length())
+							+ META_EXTENSION).isFile()) {
+
+				// Body without properties
+				new File(uploadDirectory, name).delete();
+			}
+		}
+	}
+
+	// --- FILE UTILITIES ---
+
+	private static final void writeFile(File file, byte[] bytes)
+			throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static final void moveFile(File from, File to) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(from, "rw");
+		try {
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		if (from.renameTo(to)) {
+			return;
+		}
+
+		// Spool directory on a different file system
+		byte[] buffer = new byte[8192];
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(to);
+			try {
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					out.write(buffer, 0, len);
+				}
+				out.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		from.delete();
+	}
+
+	private static final byte[] readFile(File file) throws Exception {
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	// --- UPLOAD CONTAINERS ---
+
+	private final class Upload {
+
+		private long sequence;
+		private String url;
+		private String username;
+		private String password;
+		private String filePath;
+
+		private final File getBodyFile() {
+			return new File(uploadDirectory, sequence + BODY_EXTENSION);
+		}
+
+		private final File getMetaFile() {
+			return new File(uploadDirectory, sequence + META_EXTENSION);
+		}
+
+		private final void delete() {
+			getMetaFile().delete();
+			getBodyFile().delete();
+		}
+
+	}
+
+	private static final class Status {
+
+		private long sequence;
+		private long updated;
+		private String state;
+		private String message;
+
+	}
+
+}
@@ -0,0 +1,495 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.ldap;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.apache.directory.shared.ldap.codec.AttributeValueAssertion;
+import org.apache.directory.shared.ldap.codec.LdapConstants;
+import org.apache.directory.shared.ldap.codec.search.AndFilter;
+import org.apache.directory.shared.ldap.codec.search.AttributeValueAssertionFilter;
+import org.apache.directory.shared.ldap.codec.search.Filter;
+import org.apache.directory.shared.ldap.codec.search.NotFilter;
+import org.apache.directory.shared.ldap.codec.search.OrFilter;
+import org.apache.directory.shared.ldap.codec.search.PresentFilter;
+import org.apache.directory.shared.ldap.codec.search.SubstringFilter;
+import org.gcaldaemon.core.StringUtils;
+
+/**
+ * Compiled LDAP search filter. Supports the AND, OR, NOT, equality, presence,
+ * substring, approximate and ordering filters over the published attributes
+ * (cn, mail, telephonenumber, o, title). The sn and givenname attributes
+ * match the words of the cn attribute (eg. "sn=smi*" finds "John Smith").
+ * The filter is evaluated on the
+ * posting lists of the ContactIndex: AND nodes intersect the smallest result
+ * sets first, OR nodes merge them, NOT nodes are subtracted.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class ContactFilter {
+
+	// --- CONSTANTS ---
+
+	private static final String PLATFORM_ENCODING = Charset.defaultCharset()
+			.name();
+
+	private static final int[] EMPTY = new int[0];
+
+	// --- NODE TYPES ---
+
+	private static final byte ALL = 0;
+	private static final byte NONE = 1;
+	private static final byte AND = 2;
+	private static final byte OR = 3;
+	private static final byte NOT = 4;
+	private static final byte PRESENT = 5;
+	private static final byte EQUALS = 6;
+	private static final byte SUBSTRING = 7;
+	private static final byte GREATER = 8;
+	private static final byte LESS = 9;
+
+	// --- ATTRIBUTE NAMES ---
+
+	private static final HashMap FIELDS = new HashMap();
+
+	private static final Integer ANY_FIELD = Integer.valueOf(-1);
+
+	static {
+		Integer name = Integer.valueOf(ContactIndex.NAME);
+		FIELDS.put("cn", name);
+		FIELDS.put("commonname", name);
+		FIELDS.put("displayname", name);
+
+		// Surname and given name match the words of the name
+		Integer nameWords = Integer.valueOf(ContactIndex.NAME_WORDS);
+		FIELDS.put("sn", nameWords);
+		FIELDS.put("givenname", nameWords);
+		FIELDS.put("mail", Integer.valueOf(ContactIndex.MAIL));
+		FIELDS.put("telephonenumber", Integer.valueOf(ContactIndex.PHONE));
+		Integer company = Integer.valueOf(ContactIndex.COMPANY);
+		FIELDS.put("o", company);
+		FIELDS.put("company", company);
+		FIELDS.put("title", Integer.valueOf(ContactIndex.TITLE));
+		FIELDS.put("objectclass", ANY_FIELD);
+	}
+
+	// --- VARIABLES ---
+
+	private final byte type;
+	private final int field;
+	private final String initial;
+	private final String[] any;
+	private final String last;
+	private final ContactFilter[] children;
+
+	// --- CONSTRUCTORS ---
+
+	private ContactFilter(byte type) {
+		this(type, 0, null, null, null, null);
+	}
+
+	private ContactFilter(byte type, int field, String initial, String[] any,
+			String last, ContactFilter[] children) {
+		this.type = type;
+		this.field = field;
+		this.initial = initial;
+		this.any = any;
+		this.last = last;
+		this.children = children;
+	}
+
+	// --- FILTER COMPILER ---
+
+	/**
+	 * Compiles an LDAP filter.
+	 *
+	 * @param filter
+	 *            decoded filter (null = all contacts)
+	 * @param utf8
+	 *            values are UTF8 encoded
+	 *
+	 * @return compiled filter
+	 */
+	static final ContactFilter compile(Filter filter, boolean utf8) {
+		if (filter == null) {
+			return new ContactFilter(ALL);
+		}
+		if (filter instanceof AndFilter || filter instanceof OrFilter) {
+			ArrayList list = filter instanceof AndFilter ? ((AndFilter) filter)
+					.getAndFilter()
+					: ((OrFilter) filter).getOrFilter();
+			boolean and = filter instanceof AndFilter;
+			if (list == null || list.isEmpty()) {
+
+				// Absolute true (&) and false (|) filters
+				return new ContactFilter(and ? ALL : NONE);
+			}
+			ContactFilter[] children = new ContactFilter[list.size()];
+			for (int i = 0; i < children.length; i++) {
+				children[i] = compile((Filter) list.get(i), utf8);
+			}
+			return new ContactFilter(and ? AND : OR, 0, null, null, null,
+					children);
+		}
+		if (filter instanceof NotFilter) {
+			return new ContactFilter(NOT, 0, null, null, null,
+					new ContactFilter[] { compile(((NotFilter) filter)
+							.getNotFilter(), utf8) });
+		}
+		if (filter instanceof PresentFilter) {
+			Integer field = getField(((PresentFilter) filter)
+					.getAttributeDescription());
+			if (field == null) {
+				return new ContactFilter(NONE);
+			}
+			if (field == ANY_FIELD) {
+				return new ContactFilter(ALL);
+			}
+			return new ContactFilter(PRESENT, field.intValue(), null, null,
+					null, null);
+		}
+		if (filter instanceof SubstringFilter) {
+			SubstringFilter substrings = (SubstringFilter) filter;
+			Integer field = getField(substrings.getType());
+			if (field == null) {
+				return new ContactFilter(NONE);
+			}
+			if (field == ANY_FIELD) {
+				return new ContactFilter(ALL);
+			}
+			ArrayList list = substrings.getAnySubstrings();
+			String[] any = null;
+			if (list != null && !list.isEmpty()) {
+				ArrayList values = new ArrayList(list.size());
+				String value;
+				for (int i = 0; i < list.size(); i++) {
+					value = decode(list.get(i), utf8);
+					if (value != null) {
+						values.add(value);
+					}
+				}
+				if (!values.isEmpty()) {
+					any = new String[values.size()];
+					values.toArray(any);
+				}
+			}
+			return new ContactFilter(SUBSTRING, field.intValue(), decode(
+					substrings.getInitialSubstrings(), utf8), any, decode(
+					substrings.getFinalSubstrings(), utf8), null);
+		}
+		if (filter instanceof AttributeValueAssertionFilter) {
+			AttributeValueAssertionFilter assertionFilter = (AttributeValueAssertionFilter) filter;
+			AttributeValueAssertion assertion = assertionFilter
+					.getAssertion();
+			Integer field = getField(assertion.getAttributeDesc());
+			if (field == null) {
+				return new ContactFilter(NONE);
+			}
+			if (field == ANY_FIELD) {
+				return new ContactFilter(ALL);
+			}
+			String value = decode(assertion.getAssertionValue(), utf8);
+			if (value == null || value.length() == 0) {
+				return new ContactFilter(NONE);
+			}
+			switch (assertionFilter.getFilterType()) {
+			case LdapConstants.EQUALITY_MATCH_FILTER:
+				return new ContactFilter(EQUALS, field.intValue(), value, null,
+						null, null);
+			case LdapConstants.GREATER_OR_EQUAL_FILTER:
+				return new ContactFilter(GREATER, field.intValue(), value,
+						null, null, null);
+			case LdapConstants.LESS_OR_EQUAL_FILTER:
+				return new ContactFilter(LESS, field.intValue(), value, null,
+						null, null);
+			default:
+
+				// Approximate match
+				return new ContactFilter(SUBSTRING, field.intValue(), null,
+						new String[] { value }, null, null);
+			}
+		}
+
+		// Extensible match
+		return new ContactFilter(NONE);
+	}
+
+	private static final Integer getField(String attribute) {
+		if (attribute == null) {
+			return null;
+		}
+		return (Integer) FIELDS.get(attribute.toLowerCase());
+	}
+
+	private static final String decode(Object value, boolean utf8) {
+		if (value == null) {
+			return null;
+		}
+		String text;
+		try {
+			byte[] bytes;
+			if (value instanceof byte[]) {
+				bytes = (byte[]) value;
+			} else {
+				bytes = value.toString().getBytes(PLATFORM_ENCODING);
+			}
+
+			// Decode UTF8 chars
+			text = StringUtils.decodeToString(bytes, StringUtils.UTF_8);
+			if (utf8) {
+				bytes = text.getBytes(PLATFORM_ENCODING);
+				text = StringUtils.decodeToString(bytes, StringUtils.UTF_8);
+			}
+		} catch (Exception ignored) {
+			text = value.toString();
+		}
+		if (text.length() == 0) {
+			return null;
+		}
+		return text.toLowerCase();
+	}
+
+	// --- PROPERTIES ---
+
+	/**
+	 * Returns true if the filter contains attribute values.
+	 *
+	 * @return filter has values
+	 */
+	final boolean hasValues() {
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				if (children[i].hasValues()) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return initial != null || any != null || last != null;
+	}
+
+	/**
+	 * Returns the normalized form of the filter (key of the result cache).
+	 *
+	 * @return normalized filter
+	 */
+	public final String toString() {
+		StringBuffer buffer = new StringBuffer(64);
+		append(buffer);
+		return buffer.toString();
+	}
+
+	private final void append(StringBuffer buffer) {
+		buffer.append('(');
+		switch (type) {
+		case ALL:
+			buffer.append("&");
+			break;
+		case NONE:
+			buffer.append("|");
+			break;
+		case AND:
+		case OR:
+		case NOT:
+			buffer.append(type == AND ? '&' : type == OR ? '|' : '!');
+			for (int i = 0; i < children.length; i++) {
+				children[i].append(buffer);
+			}
+			break;
+		default:
+			buffer.append(field);
+			buffer.append(type == GREATER ? ">=" : type == LESS ? "<=" : "=");
+			if (type == PRESENT) {
+				buffer.append('*');
+				break;
+			}
+			appendValue(buffer, initial);
+			if (type == SUBSTRING) {
+				buffer.append('*');
+				if (any != null) {
+					for (int i = 0; i < any.length; i++) {
+						appendValue(buffer, any[i]);
+						buffer.append('*');
+					}
+				}
+				appendValue(buffer, last);
+			}
+		}
+		buffer.append(')');
+	}
+
+	private static final void appendValue(StringBuffer buffer, String value) {
+		if (value == null) {
+			return;
+		}
+		char c;
+		for (int i = 0; i < value.length(); i++) {
+			c = value.charAt(i);
+			if (c == '*' || c == '(' || c == ')' || c == '\\') {
+				buffer.append('\\');
+			}
+			buffer.append(c);
+		}
+	}
+
+	// --- FILTER EVALUATOR ---
+
+	/**
+	 * Finds the matching contacts.
+	 *
+	 * @param index
+	 *            contact index
+	 *
+	 * @return sorted indexes of the matching contacts (read-only)
+	 */
+	final int[] evaluate(ContactIndex index) {
+		switch (type) {
+		case ALL:
+			return index.all();
+		case NONE:
+			return EMPTY;
+		case PRESENT:
+			return index.present(field);
+		case EQUALS:
+			return index.substring(field, initial, null, null, true);
+		case SUBSTRING:
+			return index.substring(field, initial, any, last, false);
+		case GREATER:
+		case LESS:
+			return index.compare(field, initial, type == GREATER);
+		case NOT:
+			return subtract(index.all(), children[0].evaluate(index));
+		case OR:
+			int[] result = children[0].evaluate(index);
+			for (int i = 1; i < children.length; i++) {
+				result = union(result, children[i].evaluate(index));
+			}
+			return result;
+		default:
+
+			// Evaluate the positive terms, intersect the smallest sets first
+			int[][] sets = new int[children.length][];
+			int count = 0;
+			for (int i = 0; i < children.length; i++) {
+				if (children[i].type != NOT) {
+					sets[count] = children[i].evaluate(index);
+					if (sets[count].length == 0) {
+						return EMPTY;
+					}
+					count++;
+				}
+			}
+			if (count == 0) {
+				result = index.all();
+			} else {
+				Arrays.sort(sets, 0, count, new Comparator() {
+
+					public final int compare(Object o1, Object o2) {
+						return ((int[]) o1).length - ((int[]) o2).length;
+					}
+
+				});
+				result = sets[0];
+				for (int i = 1; i < count && result.length != 0; i++) {
+					result = intersect(result, sets[i]);
+				}
+			}
+
+			// Remove the negated terms
+			for (int i = 0; i < children.length && result.length != 0; i++) {
+				if (children[i].type == NOT) {
+					result = subtract(result, children[i].children[0]
+							.evaluate(index));
+				}
+			}
+			return result;
+		}
+	}
+
+	// --- SORTED SET OPERATIONS ---
+
+	private static final int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return trim(result, n);
+	}
+
+	private static final int[] union(int[] a, int[] b) {
+		if (a.length == 0) {
+			return b;
+		}
+		if (b.length == 0) {
+			return a;
+		}
+		int[] result = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			if (j == b.length || (i < a.length && a[i] < b[j])) {
+				result[n++] = a[i++];
+			} else if (i == a.length || a[i] > b[j]) {
+				result[n++] = b[j++];
+			} else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return trim(result, n);
+	}
+
+	private static final int[] subtract(int[] a, int[] b) {
+		if (b.length == 0) {
+			return a;
+		}
+		int[] result = new int[a.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length) {
+			if (j == b.length || a[i] < b[j]) {
+				result[n++] = a[i++];
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		return trim(result, n);
+	}
+
+	private static final int[] trim(int[] array, int size) {
+		if (size == array.length) {
+			return array;
+		}
+		int[] result = new int[size];
+		System.arraycopy(array, 0, result, 0, size);
+		return result;
+	}
+
+}
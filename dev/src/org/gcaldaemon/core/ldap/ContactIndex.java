@@ -0,0 +1,395 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.ldap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.gcaldaemon.core.GmailContact;
+
+/**
+ * Immutable search index of a contact array. The lowercased values of the
+ * searchable attributes (cn, mail, telephonenumber, o, title) are split into
+ * 1, 2 and 3 character long grams. A substring pattern is answered by the
+ * intersection of the posting lists of its pieces, then the candidates are
+ * verified against the attribute value.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class ContactIndex {
+
+	// --- SEARCHABLE ATTRIBUTES ---
+
+	static final int NAME = 0;
+	static final int MAIL = 1;
+	static final int PHONE = 2;
+	static final int COMPANY = 3;
+	static final int TITLE = 4;
+
+	private static final int FIELD_COUNT = 5;
+
+	// Words of the name (initial and equality matches start at a word)
+	static final int NAME_WORDS = FIELD_COUNT;
+
+	// --- CONSTANTS ---
+
+	private static final int GRAM_LENGTH = 3;
+	private static final int[] EMPTY = new int[0];
+
+	// --- VARIABLES ---
+
+	final GmailContact[] contacts;
+
+	// Normalized attribute values [field][contact]
+	private final String[][] values;
+
+	// Contacts with non-empty attribute values [field]
+	private final int[][] present;
+
+	// Field + gram -> sorted contact indexes
+	private final HashMap postings = new HashMap();
+
+	// --- CONSTRUCTOR ---
+
+	ContactIndex(GmailContact[] contacts) {
+		this.contacts = contacts;
+		values = new String[FIELD_COUNT][contacts.length];
+		present = new int[FIELD_COUNT][];
+		HashMap builders = new HashMap();
+		Postings[] presentBuilders = new Postings[FIELD_COUNT];
+		HashSet grams = new HashSet();
+		GmailContact contact;
+		String value, gram;
+		Postings list;
+		Iterator i;
+		for (int f = 0; f < FIELD_COUNT; f++) {
+			presentBuilders[f] = new Postings();
+		}
+		for (int n = 0; n < contacts.length; n++) {
+			contact = contacts[n];
+			values[NAME][n] = normalize(contact.name);
+			values[MAIL][n] = normalize(contact.email);
+			values[PHONE][n] = normalize(contact.mobile == null
+					|| contact.mobile.length() == 0 ? contact.phone
+					: contact.mobile);
+			values[COMPANY][n] = normalize(contact.company);
+			values[TITLE][n] = normalize(contact.title);
+
+			// Collect the distinct grams of the contact
+			grams.clear();
+			for (int f = 0; f < FIELD_COUNT; f++) {
+				value = values[f][n];
+				if (value.length() == 0) {
+					continue;
+				}
+				presentBuilders[f].add(n);
+				for (int start = 0; start < value.length(); start++) {
+					for (int end = start + 1; end <= start + GRAM_LENGTH
+							&& end <= value.length(); end++) {
+						grams.add(getGramKey(f, value.substring(start, end)));
+					}
+				}
+			}
+			i = grams.iterator();
+			while (i.hasNext()) {
+				gram = (String) i.next();
+				list = (Postings) builders.get(gram);
+				if (list == null) {
+					list = new Postings();
+					builders.put(gram, list);
+				}
+				list.add(n);
+			}
+		}
+
+		// Trim posting lists
+		for (int f = 0; f < FIELD_COUNT; f++) {
+			present[f] = presentBuilders[f].toArray();
+		}
+		i = builders.entrySet().iterator();
+		Map.Entry entry;
+		while (i.hasNext()) {
+			entry = (Map.Entry) i.next();
+			postings.put(entry.getKey(), ((Postings) entry.getValue())
+					.toArray());
+		}
+	}
+
+	private static final String normalize(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.toLowerCase();
+	}
+
+	private static final String getGramKey(int field, String gram) {
+		return (char) ('0' + field) + gram;
+	}
+
+	// --- SEARCH ---
+
+	/**
+	 * Returns all contacts.
+	 *
+	 * @return sorted indexes of the contacts
+	 */
+	final int[] all() {
+		int[] all = new int[contacts.length];
+		for (int n = 0; n < all.length; n++) {
+			all[n] = n;
+		}
+		return all;
+	}
+
+	/**
+	 * Finds the contacts with a non-empty attribute value.
+	 *
+	 * @param field
+	 *            attribute (eg. NAME)
+	 *
+	 * @return sorted indexes of the matching contacts (read-only)
+	 */
+	final int[] present(int field) {
+		return present[getIndexedField(field)];
+	}
+
+	private static final int getIndexedField(int field) {
+		return field == NAME_WORDS ? NAME : field;
+	}
+
+	/**
+	 * Finds the contacts whose attribute value matches a substring pattern
+	 * (or equals to the initial part, when the other parts are missing and
+	 * the exact flag is set).
+	 *
+	 * @param searchField
+	 *            attribute (eg. NAME or NAME_WORDS)
+	 * @param initial
+	 *            lowercased initial part (or null)
+	 * @param any
+	 *            lowercased middle parts (or null)
+	 * @param last
+	 *            lowercased final part (or null)
+	 * @param exact
+	 *            equality match
+	 *
+	 * @return sorted indexes of the matching contacts (read-only)
+	 */
+	final int[] substring(int searchField, String initial, String[] any,
+			String last, boolean exact) {
+		int field = getIndexedField(searchField);
+
+		// Collect posting lists of the pieces
+		int[] shortest = null;
+		int[][] lists = new int[GRAM_LENGTH][];
+		int count = 0;
+		String piece;
+		int pieces = (any == null ? 0 : any.length) + 2;
+		for (int p = 0; p < pieces; p++) {
+			if (p == 0) {
+				piece = initial;
+			} else if (p == pieces - 1) {
+				piece = last;
+			} else {
+				piece = any[p - 1];
+			}
+			if (piece == null || piece.length() == 0) {
+				continue;
+			}
+			int grams = piece.length() <= GRAM_LENGTH ? 1 : piece.length()
+					- GRAM_LENGTH + 1;
+			for (int g = 0; g < grams; g++) {
+				int[] list = (int[]) postings.get(getGramKey(field, piece
+						.substring(g, Math.min(piece.length(), g
+								+ GRAM_LENGTH))));
+				if (list == null) {
+					return EMPTY;
+				}
+				if (count == lists.length) {
+					int[][] swap = new int[count * 2][];
+					System.arraycopy(lists, 0, swap, 0, count);
+					lists = swap;
+				}
+				lists[count++] = list;
+				if (shortest == null || list.length < shortest.length) {
+					shortest = list;
+				}
+			}
+		}
+		if (shortest == null) {
+			return exact ? EMPTY : present[field];
+		}
+
+		// Intersect lists and verify candidates
+		int[] matches = new int[shortest.length];
+		int found = 0;
+		int index;
+		String value;
+		boolean matched;
+		for (int c = 0; c < shortest.length; c++) {
+			index = shortest[c];
+			for (int n = 0; n < count; n++) {
+				if (lists[n] != shortest && !contains(lists[n], index)) {
+					index = -1;
+					break;
+				}
+			}
+			if (index == -1) {
+				continue;
+			}
+			value = values[field][index];
+			if (searchField == NAME_WORDS) {
+				matched = matchesWord(value, initial, any, last, exact);
+			} else if (exact) {
+				matched = value.equals(initial);
+			} else {
+				matched = matches(value, initial, any, last);
+			}
+			if (matched) {
+				matches[found++] = index;
+			}
+		}
+		return trim(matches, found);
+	}
+
+	/**
+	 * Finds the contacts whose attribute value is greater (or less) than or
+	 * equal to the specified value.
+	 *
+	 * @param field
+	 *            attribute (eg. NAME)
+	 * @param value
+	 *            lowercased value
+	 * @param greater
+	 *            greater-or-equal (or less-or-equal) match
+	 *
+	 * @return sorted indexes of the matching contacts
+	 */
+	final int[] compare(int field, String value, boolean greater) {
+		field = getIndexedField(field);
+		int[] candidates = present[field];
+		int[] matches = new int[candidates.length];
+		int found = 0;
+		int result;
+		for (int c = 0; c < candidates.length; c++) {
+			result = values[field][candidates[c]].compareTo(value);
+			if (greater ? result >= 0 : result <= 0) {
+				matches[found++] = candidates[c];
+			}
+		}
+		return trim(matches, found);
+	}
+
+	private static final boolean matches(String value, String initial,
+			String[] any, String last) {
+		int pos = 0;
+		if (initial != null) {
+			if (!value.startsWith(initial)) {
+				return false;
+			}
+			pos = initial.length();
+		}
+		if (any != null) {
+			for (int i = 0; i < any.length; i++) {
+				pos = value.indexOf(any[i], pos);
+				if (pos == -1) {
+					return false;
+				}
+				pos += any[i].length();
+			}
+		}
+		if (last != null) {
+			return value.length() - last.length() >= pos
+					&& value.endsWith(last);
+		}
+		return true;
+	}
+
+	private static final boolean matchesWord(String value, String initial,
+			String[] any, String last, boolean exact) {
+		if (initial == null) {
+			return !exact && matches(value, null, any, last);
+		}
+		int len = initial.length();
+		int end;
+		for (int pos = value.indexOf(initial); pos != -1; pos = value.indexOf(
+				initial, pos + 1)) {
+			if (pos != 0 && Character.isLetterOrDigit(value.charAt(pos - 1))) {
+				continue;
+			}
+			if (exact) {
+				end = pos + len;
+				if (end == value.length()
+						|| !Character.isLetterOrDigit(value.charAt(end))) {
+					return true;
+				}
+			} else if (matches(value.substring(pos), initial, any, last)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final boolean contains(int[] list, int value) {
+		int low = 0;
+		int high = list.length - 1;
+		int mid;
+		while (low <= high) {
+			mid = (low + high) >>> 1;
+			if (list[mid] < value) {
+				low = mid + 1;
+			} else if (list[mid] > value) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final int[] trim(int[] array, int size) {
+		if (size == array.length) {
+			return array;
+		}
+		int[] result = new int[size];
+		System.arraycopy(array, 0, result, 0, size);
+		return result;
+	}
+
+	// --- POSTING LIST BUILDER ---
+
+	private static final class Postings {
+
+		private int[] values = new int[4];
+		private int size;
+
+		private final void add(int value) {
+			if (size == values.length) {
+				int[] swap = new int[size * 2];
+				System.arraycopy(values, 0, swap, 0, size);
+				values = swap;
+			}
+			values[size++] = value;
+		}
+
+		private final int[] toArray() {
+			return trim(values, size);
+		}
+
+	}
+
+}
@@ -16,9 +16,19 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.fortuna.ical4j.model.DateTime;
 
@@ -26,7 +36,8 @@ import org.apache.commons.codec.net.QuotedPrintableCodec;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.gcaldaemon.core.Configurator;
-import org.gcaldaemon.core.FilterMask;
+import org.gcaldaemon.core.AccessFilter;
+import org.gcaldaemon.core.FileUtilities;
 import org.gcaldaemon.core.GmailContact;
 import org.gcaldaemon.core.GmailEntry;
 import org.gcaldaemon.core.GmailPool;
@@ -54,6 +65,9 @@ public final class ContactLoader extends Thread {
 
 	private static final int MAX_INDEX_GAP = 100;
 
+	private static final byte[] REV_PREFIX = { '\r', '\n', 'R', 'E', 'V', ':' };
+	private static final byte[] CRLF = { '\r', '\n' };
+
 	// --- LOGGER ---
 
 	private static final Log log = LogFactory.getLog(ContactLoader.class);
@@ -70,7 +84,25 @@ public final class ContactLoader extends Thread {
 	private final String[] usernames;
 	private final String[] passwords;
 
-	private volatile GmailContact[] contacts;
+	// Account downloader pool
+	private final ThreadPoolExecutor downloaders;
+
+	// Last successfully loaded contacts of the accounts
+	private final AccountContacts[] lastAccounts;
+
+	// Saved vCard files (file name -> digest without REV)
+	private final HashMap cardDigests = new HashMap();
+	private boolean indexedCards;
+	private int cardWrites;
+
+	// Digest of the saved 'contacts.csv'
+	private byte[] csvDigest;
+
+	// The snapshot is outdated or corrupted (rewrite it)
+	private volatile boolean snapshotRejected;
+
+	// Contact array and its search index
+	private volatile ContactIndex index;
 
 	// --- CONSTRUCTOR ---
 
@@ -83,13 +115,10 @@ public final class ContactLoader extends Thread {
 			vcardDirectory.mkdirs();
 		}
 
-		// Acceptable hostnames
-		FilterMask[] hosts = configurator
-				.getFilterProperty(Configurator.LDAP_ALLOWED_HOSTNAMES);
-
-		// Acceptable TCP/IP addresses
-		FilterMask[] addresses = configurator
-				.getFilterProperty(Configurator.LDAP_ALLOWED_ADDRESSES);
+		// Acceptable hostnames and TCP/IP addresses
+		AccessFilter accessFilter = configurator.getAccessFilter(
+				Configurator.LDAP_ALLOWED_HOSTNAMES,
+				Configurator.LDAP_ALLOWED_ADDRESSES);
 
 		// Get contact list cache timeout
 		long timeout = configurator.getConfigProperty(
@@ -158,8 +187,9 @@ public final class ContactLoader extends Thread {
 		passwords = new String[passwordList.size()];
 		usernameList.toArray(usernames);
 		passwordList.toArray(passwords);
+		lastAccounts = new AccountContacts[usernames.length];
 
-		if (hosts == null && addresses == null) {
+		if (accessFilter == null) {
 
 			// Security warning
 			log.warn("Set the '" + Configurator.LDAP_ALLOWED_HOSTNAMES
@@ -199,10 +229,33 @@ public final class ContactLoader extends Thread {
 			throw formatError;
 		}
 
+		// Create account downloader pool
+		int downloaderThreads = (int) configurator.getConfigProperty(
+				Configurator.LDAP_DOWNLOAD_THREADS, 4);
+		downloaderThreads = Math.max(1, Math.min(downloaderThreads,
+				usernames.length));
+		downloaders = new ThreadPoolExecutor(downloaderThreads,
+				downloaderThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue(), new ThreadFactory() {
+
+					private int counter;
+
+					public final synchronized Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Contact downloader "
+								+ (++counter));
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				});
+		downloaders.allowCoreThreadTimeOut(true);
+
 		// Create and start LDAP listener
 		int port = (int) configurator.getConfigProperty(Configurator.LDAP_PORT,
 				9080);
-		ldapListener = new LDAPListener(this, hosts, addresses, port);
+		int threads = (int) configurator.getConfigProperty(
+				Configurator.LDAP_WORKER_THREADS, 2);
+		ldapListener = new LDAPListener(this, accessFilter, port, threads);
 
 		// Start listener
 		start();
@@ -211,6 +264,12 @@ public final class ContactLoader extends Thread {
 	// --- CONTACT LOADER LOOP ---
 
 	public final void run() {
+
+		// Publish the previous contact list (before the first download)
+		ContactIndex previousIndex = getContactIndex();
+		if (previousIndex != null && previousIndex.contacts.length != 0) {
+			ldapListener.contactsLoaded(previousIndex);
+		}
 		for (;;) {
 			try {
 
@@ -252,70 +311,88 @@ public final class ContactLoader extends Thread {
 
 		// Loading contact list
 		log.debug("Loading Gmail contact list...");
-		GmailPool pool = configurator.getGmailPool();
+		long started = System.currentTimeMillis();
 		LinkedList contactList = new LinkedList();
 		HashSet processedEntries = new HashSet();
 		String rev = new DateTime().toString();
 		HashSet cardFiles = new HashSet();
-		GmailEntry entry = null;
 		GmailContact contact;
-		String key, csv;
-		boolean found;
-		char[] chars;
+		String key;
 		int i, m, n;
-		char c;
 
-		// Loop on accounts
-		QuickWriter buffer = new QuickWriter();
+		// Download accounts (in parallel)
+		Future[] results = new Future[usernames.length];
 		for (n = 0; n < usernames.length; n++) {
-			try {
+			results[n] = downloaders.submit(new AccountLoader(usernames[n],
+					passwords[n]));
+		}
 
-				// Download CSV from Gmail
-				entry = pool.borrow(usernames[n], passwords[n]);
-				csv = entry.downloadCSV();
-				if (csv == null) {
-					continue;
+		// Merge contacts (in the order of accounts)
+		QuickWriter buffer = new QuickWriter();
+		LinkedList loadedContacts = new LinkedList();
+		Exception lastError = null;
+		AccountContacts account;
+		boolean complete = true;
+		int failed = 0;
+		for (n = 0; n < results.length; n++) {
+			try {
+				account = (AccountContacts) results[n].get();
+				lastAccounts[n] = account;
+			} catch (ExecutionException executionException) {
+				Throwable cause = executionException.getCause();
+				if (cause instanceof Exception) {
+					lastError = (Exception) cause;
+				} else {
+					lastError = executionException;
 				}
-
-				// Remove header
-				chars = csv.toCharArray();
-				found = false;
-				i = -1;
-				for (m = 0; m < chars.length; m++) {
-					c = chars[m];
-					if (c == '\r' || c == '\n') {
-						found = true;
-						continue;
-					}
-					if (found) {
-						i = m;
-						break;
-					}
+				failed++;
+				log.warn("Unable to load contacts of " + usernames[n] + '!',
+						lastError);
+
+				// Use the previously loaded contacts of the account
+				account = lastAccounts[n];
+				if (account == null) {
+					complete = false;
 				}
-				if (i != -1) {
-					buffer.write(chars, i, chars.length - i);
+			} catch (InterruptedException interrupt) {
+				for (i = n; i < results.length; i++) {
+					results[i].cancel(true);
 				}
-			} finally {
-				pool.recycle(entry);
+				throw interrupt;
 			}
-			if (n < usernames.length - 1) {
-				Thread.sleep(1000);
+			if (account != null) {
+				buffer.write(account.csv);
+				for (i = 0; i < account.contacts.length; i++) {
+					loadedContacts.addLast(account.contacts[i]);
+				}
 			}
 		}
-
-		// Parse CSV to GmailContact array
-		csv = buffer.toString();
-		GmailContact[] contactArray = parseCSV(csv);
-
-		// Save 'contacts.csv' in UTF8 into the 'work/vcard' dir
+		if (failed != 0 && failed == usernames.length) {
+			throw lastError;
+		}
+		String csv = buffer.toString();
+		GmailContact[] contactArray = new GmailContact[loadedContacts.size()];
+		loadedContacts.toArray(contactArray);
+		log.debug("Contact lists downloaded in "
+				+ (System.currentTimeMillis() - started) + " msec ("
+				+ usernames.length + " accounts, " + failed + " failed).");
+
+		// Save 'contacts.csv' in UTF8 into the 'work/vcard' dir (if changed)
 		File file = new File(vcardDirectory, "contacts.csv");
 		byte[] bytes = StringUtils.encodeString(csv, StringUtils.UTF_8);
-		saveFile(file, bytes);
+		byte[] digest = getDigest(bytes);
+		if (csvDigest == null && file.isFile()) {
+			csvDigest = getDigest(FileUtilities.readBytes(file));
+		}
 
-		// Process contacts
-		if (contactArray == null) {
-			contactArray = new GmailContact[0];
+		// (incomplete lists are not saved, an account has never been loaded)
+		boolean changed = complete
+				&& !MessageDigest.isEqual(digest, csvDigest);
+		if (changed) {
+			saveFile(file, bytes);
 		}
+
+		// Process contacts
 		for (i = 0; i < contactArray.length; i++) {
 
 			// Verify email address and name field
@@ -352,37 +429,77 @@ public final class ContactLoader extends Thread {
 				if (contact.name.length() != 0) {
 
 					// Save vcard without email address
-					cardFiles.add(saveVCard(contact, rev));
+					cardFiles.add(saveVCard(contact, rev, cardFiles));
 				}
 			}
 		}
 		GmailContact[] array = new GmailContact[contactList.size()];
 		contactList.toArray(array);
 
-		// Save contacts withall email addresses
+		// Save new and modified contacts withall email addresses
+		int written = cardWrites;
 		for (i = 0; i < array.length; i++) {
-			cardFiles.add(saveVCard(array[i], rev));
+			cardFiles.add(saveVCard(array[i], rev, cardFiles));
 		}
 
 		// Save contact in other formats (eg. HTML)
-		saveContacts(vcardDirectory, array, buffer);
+		if (changed) {
+			saveContacts(vcardDirectory, array, buffer);
+			csvDigest = digest;
+		}
 
 		// Remove deleted contacts
-		String[] currentFiles = vcardDirectory.list();
 		String fileName;
-		for (i = 0; i < currentFiles.length; i++) {
-			fileName = currentFiles[i];
-			if (fileName.endsWith(VCARD_EXTENSION)
-					&& !cardFiles.contains(fileName)) {
-				(new File(vcardDirectory, fileName)).delete();
+		if (!complete) {
+			log.debug("Contact list is incomplete, vCard files are kept.");
+		} else if (indexedCards) {
+
+			// Delete the removed cards of the previous index
+			Iterator names = cardDigests.keySet().iterator();
+			while (names.hasNext()) {
+				fileName = (String) names.next();
+				if (!cardFiles.contains(fileName)) {
+					(new File(vcardDirectory, fileName)).delete();
+					names.remove();
+				}
+			}
+		} else {
+
+			// First loading - clean up the directory
+			String[] currentFiles = vcardDirectory.list();
+			for (i = 0; i < currentFiles.length; i++) {
+				fileName = currentFiles[i];
+				if (fileName.endsWith(VCARD_EXTENSION)
+						&& !cardFiles.contains(fileName)) {
+					(new File(vcardDirectory, fileName)).delete();
+				}
 			}
+			indexedCards = true;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug((cardWrites - written) + " vCard files updated.");
 		}
 
-		// Contact list loaded
+		// Contact list loaded (swap array and index together)
+		ContactIndex newIndex = new ContactIndex(array);
 		synchronized (this) {
-			contacts = array;
+			index = newIndex;
 		}
 		log.debug(array.length + " contacts loaded successfully.");
+
+		// Save snapshot for the next startup
+		file = new File(vcardDirectory, ContactSnapshot.SNAPSHOT_FILE);
+		if (changed || (complete && (snapshotRejected || !file.isFile()))) {
+			try {
+				ContactSnapshot.save(file, array);
+				snapshotRejected = false;
+			} catch (Exception saveError) {
+				log.warn("Unable to save contact snapshot!", saveError);
+			}
+		}
+
+		// Encode LDAP entries
+		ldapListener.contactsLoaded(newIndex);
 	}
 
 	private static final void saveContacts(File vcardDirectory,
@@ -599,6 +716,82 @@ public final class ContactLoader extends Thread {
 		}
 	}
 
+	// --- ACCOUNT DOWNLOADER ---
+
+	private static final class AccountContacts {
+
+		// CSV lines (without header)
+		private final String csv;
+
+		private final GmailContact[] contacts;
+
+		private AccountContacts(String csv, GmailContact[] contacts) {
+			this.csv = csv;
+			this.contacts = contacts;
+		}
+
+	}
+
+	private final class AccountLoader implements Callable {
+
+		private final String username;
+		private final String password;
+
+		private AccountLoader(String username, String password) {
+			this.username = username;
+			this.password = password;
+		}
+
+		public final Object call() throws Exception {
+			long started = System.currentTimeMillis();
+			GmailPool pool = configurator.getGmailPool();
+			GmailEntry entry = null;
+			String csv;
+			try {
+
+				// Download CSV from Gmail
+				entry = pool.borrow(username, password);
+				csv = entry.downloadCSV();
+			} finally {
+				pool.recycle(entry);
+			}
+			if (csv == null) {
+				return new AccountContacts("", new GmailContact[0]);
+			}
+
+			// Remove header
+			int i = csv.indexOf('\n');
+			int r = csv.indexOf('\r');
+			if (i == -1 || (r != -1 && r < i)) {
+				i = r;
+			}
+			if (i == -1) {
+				csv = "";
+			} else {
+				while (i < csv.length()
+						&& (csv.charAt(i) == '\r' || csv.charAt(i) == '\n')) {
+					i++;
+				}
+				csv = csv.substring(i);
+			}
+			if (csv.length() != 0 && csv.charAt(csv.length() - 1) != '\n') {
+				csv += "\r\n";
+			}
+
+			// Parse CSV to GmailContact array
+			GmailContact[] contacts = parseCSV(csv);
+			if (log.isDebugEnabled()) {
+				log.debug(contacts.length + " contacts of " + username
+						+ " loaded in "
+						+ (System.currentTimeMillis() - started) + " msec.");
+			}
+			return new AccountContacts(csv, contacts);
+		}
+
+	}
+
+	// --- CSV PARSER ---
+
 	private static final GmailContact[] parseCSV(String csv) {
 
 		// Parse lines
@@ -729,7 +922,8 @@ public final class ContactLoader extends Thread {
 		return contact;
 	}
 
-	private final String saveVCard(GmailContact contact, String rev) {
+	private final String saveVCard(GmailContact contact, String rev,
+			HashSet cardFiles) {
 		String name = contact.email.toLowerCase();
 		if (name.length() == 0) {
 			name = contact.name.toLowerCase();
@@ -759,6 +953,11 @@ public final class ContactLoader extends Thread {
 			}
 		}
 		name = writer.toString() + VCARD_EXTENSION;
+		if (cardFiles.contains(name)) {
+
+			// Duplicated file name (the first contact is saved)
+			return name;
+		}
 		File file = new File(vcardDirectory, name);
 		FileOutputStream out = null;
 		try {
@@ -917,15 +1116,22 @@ public final class ContactLoader extends Thread {
 				}
 				writer.write(contact.phone);
 			}
-			writer.write("\r\nREV:");
-			writer.write(rev);
-			writer.write("\r\nEND:VCARD\r\n");
-			byte[] bytes;
-			if (encoding.equals(StringUtils.US_ASCII)) {
-				bytes = writer.getBytes();
-			} else {
-				bytes = StringUtils.encodeString(writer.toString(), encoding);
+
+			// Compare with the saved card (without revision)
+			String card = writer.toString();
+			byte[] digest = getDigest(StringUtils.encodeString(card
+					+ "\r\nEND:VCARD\r\n", encoding));
+			byte[] savedDigest = (byte[]) cardDigests.get(name);
+			if (savedDigest == null && file.isFile()) {
+				savedDigest = getDigest(removeRevision(FileUtilities
+						.readBytes(file)));
+			}
+			if (MessageDigest.isEqual(digest, savedDigest)) {
+				cardDigests.put(name, digest);
+				return name;
 			}
+			byte[] bytes = StringUtils.encodeString(card + "\r\nREV:" + rev
+					+ "\r\nEND:VCARD\r\n", encoding);
 			for (int retries = 0;; retries++) {
 				try {
 					out = new FileOutputStream(file);
@@ -948,8 +1154,11 @@ public final class ContactLoader extends Thread {
 					Thread.sleep(500);
 				}
 			}
+			cardDigests.put(name, digest);
+			cardWrites++;
 		} catch (Exception ioError) {
 			log.warn(ioError);
+			cardDigests.remove(name);
 			if (file != null) {
 				if (out != null) {
 					try {
@@ -963,6 +1172,40 @@ public final class ContactLoader extends Thread {
 		return name;
 	}
 
+	private static final byte[] removeRevision(byte[] bytes) {
+		int start = indexOf(bytes, REV_PREFIX, 0);
+		if (start == -1) {
+			return bytes;
+		}
+		int end = indexOf(bytes, CRLF, start + REV_PREFIX.length);
+		if (end == -1) {
+			return bytes;
+		}
+		byte[] card = new byte[bytes.length - (end - start)];
+		System.arraycopy(bytes, 0, card, 0, start);
+		System.arraycopy(bytes, end, card, start, bytes.length - end);
+		return card;
+	}
+
+	private static final int indexOf(byte[] bytes, byte[] pattern, int from) {
+		int i;
+		for (int n = from; n <= bytes.length - pattern.length; n++) {
+			for (i = 0; i < pattern.length; i++) {
+				if (bytes[n + i] != pattern[i]) {
+					break;
+				}
+			}
+			if (i == pattern.length) {
+				return n;
+			}
+		}
+		return -1;
+	}
+
+	private static final byte[] getDigest(byte[] bytes) throws Exception {
+		return MessageDigest.getInstance("MD5").digest(bytes);
+	}
+
 	private static final String encodeQuotedPrintable(String string)
 			throws Exception {
 		byte[] bytes = StringUtils.encodeString(string, StringUtils.UTF_8);
@@ -1020,20 +1263,51 @@ public final class ContactLoader extends Thread {
 			}
 		}
 
+		// Stop downloaders
+		downloaders.shutdownNow();
+
 		// Interrupt thread
 		super.interrupt();
 	}
 
 	// --- GMAIL CONTACT GETTER ---
 
-	public final synchronized GmailContact[] getContacts() {
-		if (contacts == null) {
+	public final GmailContact[] getContacts() {
+		ContactIndex currentIndex = getContactIndex();
+		if (currentIndex == null) {
+			return null;
+		}
+		return currentIndex.contacts;
+	}
+
+	final synchronized ContactIndex getContactIndex() {
+		if (index == null) {
+			try {
+
+				// Load the snapshot of the previous contact list
+				long started = System.currentTimeMillis();
+				File file = new File(vcardDirectory,
+						ContactSnapshot.SNAPSHOT_FILE);
+				GmailContact[] array = ContactSnapshot.load(file);
+				if (array == null) {
+					snapshotRejected = file.isFile();
+				} else {
+					index = new ContactIndex(array);
+					log.debug(array.length + " contacts loaded from snapshot in "
+							+ (System.currentTimeMillis() - started)
+							+ " msec.");
+					return index;
+				}
+			} catch (Exception snapshotError) {
+				log.warn("Unable to load contact snapshot!", snapshotError);
+				snapshotRejected = true;
+			}
 			try {
 
 				// Network down - load contacts from vcards
 				File file = new File(vcardDirectory, "contacts.csv");
 				if (!file.isFile()) {
-					return new GmailContact[0];
+					return new ContactIndex(new GmailContact[0]);
 				}
 				RandomAccessFile raf = new RandomAccessFile(file, "r");
 				byte[] bytes = new byte[(int) raf.length()];
@@ -1041,13 +1315,14 @@ public final class ContactLoader extends Thread {
 				raf.close();
 				String csv = StringUtils.decodeToString(bytes,
 						StringUtils.UTF_8);
-				contacts = parseCSV(csv);
-				log.debug(contacts.length + " contacts loaded successfully.");
+				GmailContact[] array = parseCSV(csv);
+				index = new ContactIndex(array);
+				log.debug(array.length + " contacts loaded successfully.");
 			} catch (Exception ioError) {
 				log.warn(ioError);
 			}
 		}
-		return contacts;
+		return index;
 	}
 
 }
@@ -0,0 +1,187 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.gcaldaemon.core.FileUtilities;
+import org.gcaldaemon.core.GmailContact;
+import org.gcaldaemon.core.StringUtils;
+
+/**
+ * Binary snapshot of the published contact array. The snapshot is loaded at
+ * startup (before the first Gmail download), so the LDAP server can answer
+ * the searches immediately. The file is replaced only by renaming, so large
+ * snapshots are memory-mapped. File format: magic number, format version,
+ * number of contacts, then the 14 fields of every contact as length-prefixed
+ * UTF8 strings.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class ContactSnapshot {
+
+	// --- CONSTANTS ---
+
+	static final String SNAPSHOT_FILE = "contacts.bin";
+
+	private static final int MAGIC = 0x47434453;
+	private static final int VERSION = 1;
+
+	// --- CONSTRUCTOR ---
+
+	private ContactSnapshot() {
+	}
+
+	// --- SNAPSHOT WRITER ---
+
+	/**
+	 * Saves the contact array (into a temporary file, then renames it).
+	 *
+	 * @param file
+	 *            snapshot file
+	 * @param contacts
+	 *            contact array
+	 */
+	static final void save(File file, GmailContact[] contacts)
+			throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				contacts.length * 128 + 12);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(contacts.length);
+		GmailContact contact;
+		for (int n = 0; n < contacts.length; n++) {
+			contact = contacts[n];
+			writeString(out, contact.name);
+			writeString(out, contact.email);
+			writeString(out, contact.notes);
+			writeString(out, contact.description);
+			writeString(out, contact.mail);
+			writeString(out, contact.im);
+			writeString(out, contact.phone);
+			writeString(out, contact.mobile);
+			writeString(out, contact.pager);
+			writeString(out, contact.fax);
+			writeString(out, contact.company);
+			writeString(out, contact.title);
+			writeString(out, contact.other);
+			writeString(out, contact.address);
+		}
+		out.flush();
+
+		// Write temporary file
+		File temp = new File(file.getAbsoluteFile().getParentFile(), '.'
+				+ file.getName() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			bytes.writeTo(fos);
+			fos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+
+		// Rename to target
+		try {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException unsupported) {
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static final void writeString(DataOutputStream out, String value)
+			throws Exception {
+		if (value == null || value.length() == 0) {
+			out.writeInt(0);
+			return;
+		}
+		byte[] bytes = StringUtils.encodeString(value, StringUtils.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	// --- SNAPSHOT READER ---
+
+	/**
+	 * Loads the contact array.
+	 *
+	 * @param file
+	 *            snapshot file
+	 *
+	 * @return contact array (or null, if the file is missing or its format
+	 *         is outdated)
+	 */
+	static final GmailContact[] load(File file) throws Exception {
+		if (!file.isFile()) {
+			return null;
+		}
+		ByteBuffer buffer = FileUtilities.map(file);
+		if (buffer.remaining() < 12 || buffer.getInt() != MAGIC
+				|| buffer.getInt() != VERSION) {
+			return null;
+		}
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining() / 56) {
+			throw new IllegalArgumentException("Corrupted contact snapshot!");
+		}
+		GmailContact[] contacts = new GmailContact[count];
+		GmailContact contact;
+		for (int n = 0; n < count; n++) {
+			contact = new GmailContact();
+			contact.name = readString(buffer);
+			contact.email = readString(buffer);
+			contact.notes = readString(buffer);
+			contact.description = readString(buffer);
+			contact.mail = readString(buffer);
+			contact.im = readString(buffer);
+			contact.phone = readString(buffer);
+			contact.mobile = readString(buffer);
+			contact.pager = readString(buffer);
+			contact.fax = readString(buffer);
+			contact.company = readString(buffer);
+			contact.title = readString(buffer);
+			contact.other = readString(buffer);
+			contact.address = readString(buffer);
+			contacts[n] = contact;
+		}
+		return contacts;
+	}
+
+	private static final String readString(ByteBuffer buffer) throws Exception {
+		int len = buffer.getInt();
+		if (len == 0) {
+			return "";
+		}
+		if (len < 0 || len > buffer.remaining()) {
+			throw new IllegalArgumentException("Corrupted contact snapshot!");
+		}
+		ByteBuffer value = buffer.slice();
+		value.limit(len);
+		buffer.position(buffer.position() + len);
+		return StringUtils.decodeToString(value, StringUtils.UTF_8);
+	}
+
+}
@@ -0,0 +1,333 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.directory.shared.ldap.codec.LdapMessage;
+import org.apache.directory.shared.ldap.codec.search.SearchResultEntry;
+import org.apache.directory.shared.ldap.name.LdapDN;
+import org.gcaldaemon.core.GmailContact;
+
+/**
+ * BER-encoded search entries of a contact array. The entries are encoded once
+ * per charset mode (without the message envelope), the responses are built
+ * by prepending the envelope with the actual message ID. The recent search
+ * results are stored in a small LRU cache (the whole cache is replaced when
+ * the contacts are reloaded).
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class EntryCache {
+
+	// --- CONSTANTS ---
+
+	private static final String PLATFORM_ENCODING = Charset.defaultCharset()
+			.name();
+
+	private static final int MAX_CACHED_RESULTS = 256;
+
+	private static final byte SEQUENCE_TAG = 0x30;
+	private static final byte INTEGER_TAG = 0x02;
+
+	// --- LOGGER ---
+
+	private static final Log log = LogFactory.getLog(EntryCache.class);
+
+	// --- VARIABLES ---
+
+	final ContactIndex index;
+
+	// Encoded entries (null = invalid contact)
+	private final byte[][] utf8Entries;
+	private final byte[][] nativeEntries;
+
+	// Search key -> encoded entries
+	private final LinkedHashMap results = new LinkedHashMap(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		protected final boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_CACHED_RESULTS;
+		}
+
+	};
+
+	// --- CONSTRUCTOR ---
+
+	EntryCache(ContactIndex index) {
+		this.index = index;
+		GmailContact[] contacts = index.contacts;
+		utf8Entries = new byte[contacts.length][];
+		nativeEntries = new byte[contacts.length][];
+		for (int n = 0; n < contacts.length; n++) {
+			try {
+				utf8Entries[n] = encodeEntry(contacts[n], true);
+				nativeEntries[n] = encodeEntry(contacts[n], false);
+			} catch (Exception encoderError) {
+				log.debug(encoderError);
+			}
+		}
+	}
+
+	// --- ENTRY GETTERS ---
+
+	final byte[][] getEntries(int[] matches, boolean utf8) {
+		byte[][] entries = utf8 ? utf8Entries : nativeEntries;
+		byte[][] selected = new byte[matches.length][];
+		int found = 0;
+		byte[] entry;
+		for (int n = 0; n < matches.length; n++) {
+			entry = entries[matches[n]];
+			if (entry != null) {
+				selected[found++] = entry;
+			}
+		}
+		if (found == selected.length) {
+			return selected;
+		}
+		byte[][] result = new byte[found][];
+		System.arraycopy(selected, 0, result, 0, found);
+		return result;
+	}
+
+	// --- SEARCH RESULT CACHE ---
+
+	final synchronized byte[][] getResult(String key, boolean utf8) {
+		return (byte[][]) results.get(getResultKey(key, utf8));
+	}
+
+	final synchronized void putResult(String key, boolean utf8,
+			byte[][] entries) {
+		results.put(getResultKey(key, utf8), entries);
+	}
+
+	private static final String getResultKey(String key, boolean utf8) {
+		if (key == null) {
+			key = "";
+		}
+		return (utf8 ? 'u' : 'n') + key;
+	}
+
+	// --- ENTRY ENCODER ---
+
+	private static final byte[] encodeEntry(GmailContact contact, boolean utf8)
+			throws Exception {
+		// Create search entry
+		SearchResultEntry entry = new SearchResultEntry();
+		entry.setMessageId(1);
+		LdapDN name;
+		try {
+			name = new LdapDN("CN=" + encode(contact.name, utf8));
+		} catch (Exception badDN) {
+			log.debug(badDN);
+			return null;
+		}
+		entry.setObjectName(name);
+
+		BasicAttributes partialAttributeList = new BasicAttributes(
+				true);
+		partialAttributeList.put(new BasicAttribute("cn", encode(
+				contact.name, utf8)));
+		if (contact.email.length() != 0) {
+
+			// first email
+			partialAttributeList.put(new BasicAttribute("mail",
+					encode(contact.email, utf8)));
+		}
+		if (contact.notes.length() != 0) {
+
+			// notes
+			partialAttributeList.put(new BasicAttribute("comment",
+					encode(contact.notes, utf8)));
+			partialAttributeList.put(new BasicAttribute(
+					"description", encode(contact.notes, utf8)));
+		}
+		String mobile = contact.mobile;
+		if (mobile.length() == 0) {
+			mobile = contact.phone;
+		}
+		if (mobile.length() != 0) {
+
+			// mobile phone
+			partialAttributeList.put(new BasicAttribute(
+					"telephonenumber", encode(mobile, utf8)));
+		}
+		if (contact.phone.length() != 0) {
+
+			// homePhone
+			partialAttributeList.put(new BasicAttribute(
+					"homePhone", encode(contact.phone, utf8)));
+		}
+		if (contact.mail.length() != 0) {
+
+			// second email
+			partialAttributeList.put(new BasicAttribute(
+					"mozillaSecondEmail",
+					encode(contact.mail, utf8)));
+			partialAttributeList.put(new BasicAttribute(
+					"mailAlternateAddress", encode(contact.mail,
+							utf8)));
+		}
+		if (contact.address.length() != 0) {
+
+			// postal address
+			partialAttributeList
+					.put(new BasicAttribute("postalAddress",
+							encode(contact.address, utf8)));
+			partialAttributeList.put(new BasicAttribute(
+					"homePostalAddress", encode(contact.address,
+							utf8)));
+			partialAttributeList.put(new BasicAttribute(
+					"homeStreet", encode(contact.address, utf8)));
+		}
+		if (contact.pager.length() != 0) {
+
+			// pager
+			partialAttributeList.put(new BasicAttribute("pager",
+					encode(contact.pager, utf8)));
+		}
+		if (contact.fax.length() != 0) {
+
+			// fax
+			partialAttributeList.put(new BasicAttribute(
+					"facsimileTelephoneNumber", encode(contact.fax,
+							utf8)));
+			if (contact.pager.length() == 0) {
+				partialAttributeList.put(new BasicAttribute(
+						"pager", encode(contact.fax, utf8)));
+			}
+		}
+		if (contact.title.length() != 0) {
+
+			// title
+			partialAttributeList.put(new BasicAttribute("title",
+					encode(contact.title, utf8)));
+		}
+		if (contact.company.length() != 0) {
+
+			// company
+			partialAttributeList.put(new BasicAttribute("company",
+					encode(contact.company, utf8)));
+			partialAttributeList.put(new BasicAttribute("o",
+					encode(contact.company, utf8)));
+		}
+		entry.setPartialAttributeList(partialAttributeList);
+
+		// Encode message, then remove the envelope
+		LdapMessage message = new LdapMessage();
+		message.setProtocolOP(entry);
+		message.setMessageId(1);
+		byte[] bytes = message.encode(null).array();
+		int len = bytes[1] & 0xFF;
+		int pos = len > 0x7F ? 2 + (len & 0x7F) : 2;
+		pos += 2 + bytes[pos + 1];
+		byte[] body = new byte[bytes.length - pos];
+		System.arraycopy(bytes, pos, body, 0, body.length);
+		return body;
+	}
+
+	private static final String encode(String text, boolean utf8)
+			throws Exception {
+		if (utf8) {
+			return new String(text.getBytes("UTF8"), PLATFORM_ENCODING);
+		}
+		return text;
+	}
+
+	// --- MESSAGE WRITER ---
+
+	/**
+	 * Returns the length of an encoded entry with the specified message ID.
+	 *
+	 * @param messageId
+	 *            ID of the LDAP message
+	 * @param entry
+	 *            encoded search entry
+	 *
+	 * @return length of the message
+	 */
+	static final int getMessageLength(int messageId, byte[] entry) {
+		int len = 2 + getIdLength(messageId) + entry.length;
+		return 1 + getLengthLength(len) + len;
+	}
+
+	/**
+	 * Writes an encoded entry with the specified message ID.
+	 *
+	 * @param buffer
+	 *            output buffer
+	 * @param messageId
+	 *            ID of the LDAP message
+	 * @param entry
+	 *            encoded search entry
+	 */
+	static final void writeMessage(ByteBuffer buffer, int messageId,
+			byte[] entry) {
+		int idLength = getIdLength(messageId);
+
+		// Message envelope
+		buffer.put(SEQUENCE_TAG);
+		writeLength(buffer, 2 + idLength + entry.length);
+		buffer.put(INTEGER_TAG);
+		buffer.put((byte) idLength);
+		for (int i = idLength - 1; i >= 0; i--) {
+			buffer.put((byte) (messageId >> (i * 8)));
+		}
+		buffer.put(entry);
+	}
+
+	private static final int getIdLength(int messageId) {
+
+		// Minimal two's complement form
+		int idLength = 1;
+		while (idLength < 4 && (messageId >> (idLength * 8 - 1)) != 0) {
+			idLength++;
+		}
+		return idLength;
+	}
+
+	private static final int getLengthLength(int len) {
+		if (len < 0x80) {
+			return 1;
+		}
+		int count = 1;
+		while (count < 4 && (len >>> (count * 8)) != 0) {
+			count++;
+		}
+		return count + 1;
+	}
+
+	private static final void writeLength(ByteBuffer buffer, int len) {
+		if (len < 0x80) {
+			buffer.put((byte) len);
+			return;
+		}
+		int count = getLengthLength(len) - 1;
+		buffer.put((byte) (0x80 | count));
+		for (int i = count - 1; i >= 0; i--) {
+			buffer.put((byte) (len >> (i * 8)));
+		}
+	}
+
+}
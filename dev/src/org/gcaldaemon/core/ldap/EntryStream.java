@@ -0,0 +1,76 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.ldap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pending search entries of an LDAP response. The entries are written into
+ * the (reused) output buffer of the connection chunk by chunk, when the
+ * socket becomes writable, so the whole response is never materialized.
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class EntryStream {
+
+	// --- VARIABLES ---
+
+	private final byte[][] entries;
+	private final int messageId;
+	private final int end;
+
+	private int position;
+
+	// --- CONSTRUCTOR ---
+
+	EntryStream(byte[][] entries, int start, int end, int messageId) {
+		this.entries = entries;
+		this.position = start;
+		this.end = end;
+		this.messageId = messageId;
+	}
+
+	// --- CHUNK WRITER ---
+
+	final boolean hasRemaining() {
+		return position < end;
+	}
+
+	/**
+	 * Writes the next entries into the specified (empty) buffer.
+	 *
+	 * @param chunk
+	 *            output buffer
+	 *
+	 * @return flipped buffer (the chunk, or a larger one for a huge entry)
+	 */
+	final ByteBuffer fill(ByteBuffer chunk) {
+		chunk.clear();
+		int len = EntryCache.getMessageLength(messageId, entries[position]);
+		if (len > chunk.capacity()) {
+			chunk = ByteBuffer.allocate(len);
+		}
+		while (position < end) {
+			len = EntryCache.getMessageLength(messageId, entries[position]);
+			if (len > chunk.remaining()) {
+				break;
+			}
+			EntryCache.writeMessage(chunk, messageId, entries[position++]);
+		}
+		chunk.flip();
+		return chunk;
+	}
+
+}
@@ -12,29 +12,27 @@
 //
 package org.gcaldaemon.core.ldap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
-
-import javax.naming.directory.BasicAttribute;
-import javax.naming.directory.BasicAttributes;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.directory.shared.asn1.ber.tlv.TLVStateEnum;
 import org.apache.directory.shared.asn1.codec.DecoderException;
+import org.apache.directory.shared.ldap.codec.Control;
 import org.apache.directory.shared.ldap.codec.LdapConstants;
 import org.apache.directory.shared.ldap.codec.LdapDecoder;
 import org.apache.directory.shared.ldap.codec.LdapMessage;
@@ -45,15 +43,12 @@ import org.apache.directory.shared.ldap.codec.bind.BindResponse;
 import org.apache.directory.shared.ldap.codec.search.Filter;
 import org.apache.directory.shared.ldap.codec.search.SearchRequest;
 import org.apache.directory.shared.ldap.codec.search.SearchResultDone;
-import org.apache.directory.shared.ldap.codec.search.SearchResultEntry;
-import org.apache.directory.shared.ldap.codec.search.SubstringFilter;
-import org.apache.directory.shared.ldap.name.LdapDN;
-import org.gcaldaemon.core.FilterMask;
-import org.gcaldaemon.core.GmailContact;
-import org.gcaldaemon.core.StringUtils;
+import org.gcaldaemon.core.AccessFilter;
 
 /**
- * LDAP server thread.
+ * LDAP server thread. The selector thread reads the requests and writes the
+ * responses (without blocking), the searches are executed by a small worker
+ * pool.
  * 
  * Created: Jan 03, 2007 12:50:56 PM
  * 
@@ -63,38 +58,71 @@ final class LDAPListener extends Thread {
 
 	// --- CONSTANTS ---
 
-	private static final String PLATFORM_ENCODING = Charset.defaultCharset()
-			.name();
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	private static final int MAX_MESSAGE_SIZE = 1048576;
 
-	// --- LOGGER ---
+	private static final byte SEQUENCE_TAG = 0x30;
+	private static final byte INTEGER_TAG = 0x02;
+	private static final int SEARCH_REQUEST_TAG = 0x63;
 
-	private static final Log log = LogFactory.getLog(LDAPListener.class);
+	private static final int CHUNK_SIZE = 16384;
+
+	private static final int OPERATIONS_ERROR = 1;
+	private static final int PROTOCOL_ERROR = 2;
+	private static final int SIZE_LIMIT_EXCEEDED = 4;
 
-	// --- READ BUFFER ---
+	// --- LOGGER ---
 
-	private static final ByteBuffer requestBuffer = ByteBuffer
-			.allocateDirect(1024);
+	private static final Log log = LogFactory.getLog(LDAPListener.class);
 
 	// --- VARIABLES ---
 
 	private final ContactLoader loader;
 	private final ServerSocketChannel serverChannel;
 	private final Selector selector;
-	private final FilterMask[] hosts;
-	private final FilterMask[] addresses;
+	private final AccessFilter accessFilter;
+
+	// --- WORKER POOL ---
+
+	private final ThreadPoolExecutor workers;
+
+	// Processed connections (waiting for OP_WRITE registration)
+	private final LinkedList processed = new LinkedList();
+
+	// Encoded entries of the current contact array
+	private EntryCache entryCache;
 
 	// --- CONSTRUCTOR ---
 
-	LDAPListener(ContactLoader loader, FilterMask[] hosts,
-			FilterMask[] addresses, int port) throws Exception {
+	LDAPListener(ContactLoader loader, AccessFilter accessFilter, int port,
+			int threads) throws Exception {
 
 		// Starting server
 		log.info("LDAP server starting on port " + port + "...");
 
 		// Store pointers
 		this.loader = loader;
-		this.hosts = hosts;
-		this.addresses = addresses;
+		this.accessFilter = accessFilter;
+
+		// Create worker pool
+		if (threads < 1) {
+			threads = 1;
+		}
+		workers = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue(),
+				new ThreadFactory() {
+
+					private int counter;
+
+					public final synchronized Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "LDAP worker "
+								+ (++counter));
+						thread.setDaemon(true);
+						return thread;
+					}
+
+				});
+		workers.allowCoreThreadTimeOut(true);
 
 		// Allocate an unbound server socket channel
 		serverChannel = ServerSocketChannel.open();
@@ -118,25 +146,96 @@ final class LDAPListener extends Thread {
 		start();
 	}
 
+	// --- CONNECTION STATE ---
+
+	private static final class Connection {
+
+		// Received bytes (growable buffer, in write mode)
+		private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		// Encoded responses (ByteBuffers and EntryStreams)
+		private final LinkedList pending = new LinkedList();
+
+		// Response under sending
+		private ByteBuffer output;
+
+		// Reused output buffer of the entry streams
+		private ByteBuffer chunk;
+
+		// Paged search state (RFC 2696)
+		private String pagedKey;
+		private byte[][] pagedEntries;
+		private int pagedOffset;
+		private int pagedEnd;
+		private boolean pagedLimited;
+		private int pagedCookie;
+
+		// Request is under processing (reads are suspended)
+		private boolean processing;
+
+		// Processing failed (close connection)
+		private boolean failed;
+
+		private boolean nativeCharsetLocked;
+
+		private final int read(SocketChannel channel) throws IOException {
+			if (!input.hasRemaining()) {
+				if (input.capacity() >= MAX_MESSAGE_SIZE) {
+					throw new IOException("LDAP message is too large!");
+				}
+				ByteBuffer swap = ByteBuffer.allocate(input.capacity() * 2);
+				input.flip();
+				swap.put(input);
+				input = swap;
+			}
+			return channel.read(input);
+		}
+
+		private final boolean nextResponse() {
+			if (pending.isEmpty()) {
+				output = null;
+				return false;
+			}
+			Object response = pending.getFirst();
+			if (response instanceof ByteBuffer) {
+				pending.removeFirst();
+				output = (ByteBuffer) response;
+				return true;
+			}
+			EntryStream stream = (EntryStream) response;
+			if (chunk == null) {
+				chunk = ByteBuffer.allocate(CHUNK_SIZE);
+			}
+			output = stream.fill(chunk);
+			if (!stream.hasRemaining()) {
+				pending.removeFirst();
+			}
+			return true;
+		}
+
+		private final void clearPaging() {
+			pagedKey = null;
+			pagedEntries = null;
+		}
+
+	}
+
 	// --- REQUEST LISTENER LOOP ---
 
 	public final void run() {
 		log.info("LDAP server started successfully.");
 
 		// Create variables
-		SelectionKey key, newKey;
-		SocketChannel channel;
-		Socket socket = null;
+		SelectionKey key;
 		Iterator keys;
 		int n;
 
 		// Server loop
-		for (;;) {
-			try {
+		try {
+			for (;;) {
 
 				// Select sockets
 				try {
-					socket = null;
 					n = selector.select();
 				} catch (NullPointerException closedError) {
 
@@ -153,210 +252,340 @@ final class LDAPListener extends Thread {
 					log.warn("Unable to select sockets!", selectError);
 					break;
 				}
+				if (isInterrupted()) {
+					break;
+				}
 
-				if (n != 0) {
+				// Send the processed responses
+				registerResponses();
+				if (n == 0) {
+					continue;
+				}
 
-					// Get an iterator over the set of selected keys
-					keys = selector.selectedKeys().iterator();
-					if (keys == null) {
+				// Look at each key in the selected set
+				keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					key = (SelectionKey) keys.next();
+					keys.remove();
+					if (!key.isValid()) {
 						continue;
 					}
+					try {
+						if (key.isAcceptable()) {
 
-					// Look at each key in the selected set
-					while (keys.hasNext()) {
-						key = (SelectionKey) keys.next();
-						keys.remove();
-
-						// Nothing to do
-						if (key == null) {
-							continue;
-						}
+							// Accept new incoming connection
+							processAccept();
+						} else if (key.isReadable()) {
 
-						// Check key status
-						if (key.isValid()) {
+							// Read from socket connection
+							processRead(key);
+						} else if (key.isWritable()) {
 
-							// Accept new incoming connection
-							if (key.isAcceptable()) {
-								channel = serverChannel.accept();
-								if (channel != null) {
-
-									// Register new socket connection
-									socket = channel.socket();
-									channel.configureBlocking(false);
-									newKey = channel.register(selector,
-											SelectionKey.OP_READ);
-									processAccept(newKey);
-								}
-							} else {
-								if (key.isReadable()) {
-
-									// Read from socket connection
-									socket = ((SocketChannel) key.channel())
-											.socket();
-									processRead(key);
-								} else {
-
-									// Write to socket connection
-									if (key.isWritable()) {
-										socket = ((SocketChannel) key.channel())
-												.socket();
-										processWrite(key);
-									}
-								}
-							}
+							// Write to socket connection
+							processWrite(key);
 						}
+					} catch (IOException socketClosed) {
+						closeConnection(key);
+					} catch (Exception processingException) {
+						closeConnection(key);
+						log.warn(processingException.getMessage(),
+								processingException);
 					}
 				}
-			} catch (InterruptedException interrupt) {
-				closeSocket(socket);
-				break;
-			} catch (IOException socketClosed) {
-				closeSocket(socket);
-				continue;
-			} catch (Exception processingException) {
-				closeSocket(socket);
-				log.warn(processingException.getMessage(), processingException);
 			}
+		} finally {
+			workers.shutdownNow();
 		}
 		log.info("LDAP server stopped.");
 	}
 
-	private static final void closeSocket(Socket socket) {
-		if (socket != null) {
-			try {
-				if (!socket.isClosed()) {
-					socket.close();
-				}
-			} catch (Exception ignored) {
-			}
+	private static final void closeConnection(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (Exception ignored) {
 		}
 	}
 
 	// --- TCP/IP ACCESS CONTROL ---
 
-	private final void processAccept(SelectionKey key) throws Exception {
+	private final void processAccept() throws Exception {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
 
 		// Check TCP/IP access
-		if (hosts != null || addresses != null) {
-			Socket socket = ((SocketChannel) key.channel()).socket();
-			InetAddress inetAddress = socket.getInetAddress();
-			if (hosts != null) {
-				String host = inetAddress.getHostName();
-				if (host == null || host.length() == 0
-						|| host.equals("127.0.0.1")) {
-					host = "localhost";
-				} else {
-					host = host.toLowerCase();
-					if (host.equals("localhost.localdomain")) {
-						host = "localhost";
-					}
-				}
-				if (!isHostMatch(host)) {
-					throw new Exception(
-							"Connection refused, forbidden hostname (" + host
-									+ ")!");
+		if (accessFilter != null) {
+			try {
+				accessFilter.checkAccess(channel.socket().getInetAddress());
+			} catch (Exception forbidden) {
+				try {
+					channel.close();
+				} catch (Exception ignored) {
 				}
+				log.warn("Connection refused, " + forbidden.getMessage()
+						+ '!');
+				return;
 			}
-			if (addresses != null) {
-				String address = inetAddress.getHostAddress();
-				if (address == null || address.length() == 0) {
-					address = "127.0.0.1";
-				}
-				if (!isAddressMatch(address)) {
-					throw new Exception(
-							"Connection refused, forbidden IP-address ("
-									+ address + ")!");
-				}
+		}
+
+		// Register new socket connection
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection());
+	}
+
+	// --- LDAP REQUEST DECODER ---
+
+	private final void processRead(SelectionKey key) throws Exception {
+
+		// Read packet from socket channel
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		int len = connection.read(channel);
+		if (len == -1) {
+			throw new IOException();
+		}
+		if (len == 0 || connection.processing) {
+			return;
+		}
+
+		// Decode the complete messages (in the order of arrival)
+		ByteBuffer input = connection.input;
+		input.flip();
+		LinkedList requests = new LinkedList();
+		try {
+			int frameLength;
+			while ((frameLength = getFrameLength(input)) != -1) {
+				ByteBuffer frame = input.slice();
+				frame.limit(frameLength);
+				input.position(input.position() + frameLength);
+				requests.addLast(decodeMessage(frame));
 			}
+		} finally {
+
+			// Keep the incomplete message
+			input.compact();
+		}
+		if (requests.isEmpty()) {
+			return;
 		}
+
+		// Process LDAP requests (on a worker thread)
+		connection.processing = true;
+		key.interestOps(0);
+		workers.execute(new RequestProcessor(key, requests));
 	}
 
-	private final boolean isAddressMatch(String string) {
-		for (int i = 0; i < addresses.length; i++) {
-			if (addresses[i].match(string)) {
-				return true;
+	private static final int getFrameLength(ByteBuffer buffer)
+			throws Exception {
+
+		// Get the length of the outer BER sequence
+		int remaining = buffer.remaining();
+		if (remaining < 2) {
+			return -1;
+		}
+		int pos = buffer.position();
+		if (buffer.get(pos) != SEQUENCE_TAG) {
+			throw new DecoderException("Invalid LDAP message!");
+		}
+		int len = buffer.get(pos + 1) & 0xFF;
+		int header = 2;
+		if (len > 0x7F) {
+			int count = len & 0x7F;
+			if (count == 0 || count > 3) {
+				throw new DecoderException("Invalid LDAP message length!");
+			}
+			if (remaining < header + count) {
+				return -1;
+			}
+			len = 0;
+			for (int i = 0; i < count; i++) {
+				len = len << 8 | buffer.get(pos + header + i) & 0xFF;
 			}
+			header += count;
 		}
-		return false;
+		if (header + len > MAX_MESSAGE_SIZE) {
+			throw new DecoderException("LDAP message is too large!");
+		}
+		if (remaining < header + len) {
+			return -1;
+		}
+		return header + len;
 	}
 
-	private final boolean isHostMatch(String string) {
-		for (int i = 0; i < hosts.length; i++) {
-			if (hosts[i].match(string)) {
-				return true;
+	private static final DecodedRequest decodeMessage(ByteBuffer frame)
+			throws Exception {
+		LdapMessageContainer container = new LdapMessageContainer();
+		LdapMessage message;
+		try {
+			LdapDecoder decoder = new LdapDecoder();
+			decoder.decode(frame.duplicate(), container);
+			if (container.getState() != TLVStateEnum.PDU_DECODED) {
+				throw new DecoderException("Truncated LDAP message!");
+			}
+			message = container.getLdapMessage();
+		} catch (DecoderException decoderException) {
+			if (getProtocolTag(frame) != SEARCH_REQUEST_TAG) {
+				throw decoderException;
+			}
+			int id = getMessageId(frame);
+			SearchRequest search = new SearchRequest();
+			search.setMessageId(id);
+			message = new LdapMessage();
+			message.setMessageId(id);
+			message.setProtocolOP(search);
+
+			// Empty substrings (eg. "(cn=*)") are rejected by the decoder,
+			// other errors ("Bad transition") are malformed filters
+			String msg = decoderException.getMessage();
+			if (msg == null || msg.indexOf("empty") == -1) {
+				log.debug("Unable to decode search filter!", decoderException);
+				return new DecodedRequest(message, false, PROTOCOL_ERROR);
 			}
+			log.debug("Empty search filter, all contacts requested.");
 		}
-		return false;
+		return new DecodedRequest(message, !container.isGrammarEndAllowed(),
+				0);
 	}
 
-	// --- LDAP REQUEST PROCESSOR ---
+	private static final int getMessageId(ByteBuffer frame) throws Exception {
+		int pos = getMessageIdPosition(frame);
+		int len = frame.get(pos + 1) & 0xFF;
+		if (len == 0 || len > 4) {
+			throw new DecoderException("Invalid LDAP message ID!");
+		}
+		int id = 0;
+		for (int i = 0; i < len; i++) {
+			id = id << 8 | frame.get(pos + 2 + i) & 0xFF;
+		}
+		return id;
+	}
 
-	private final void processRead(SelectionKey key) throws Exception {
+	private static final int getProtocolTag(ByteBuffer frame)
+			throws Exception {
+		int pos = getMessageIdPosition(frame);
+		pos += 2 + (frame.get(pos + 1) & 0xFF);
+		if (pos >= frame.limit()) {
+			throw new DecoderException("Invalid LDAP message!");
+		}
+		return frame.get(pos) & 0xFF;
+	}
 
-		// Read packet from socket channel
-		sleep(100);
-		byte[] bytes = null;
-		Object att = key.attachment();
-		if (att != null && att instanceof byte[]) {
-			bytes = (byte[]) att;
+	private static final int getMessageIdPosition(ByteBuffer frame)
+			throws Exception {
+		int len = frame.get(1) & 0xFF;
+		int pos = len > 0x7F ? 2 + (len & 0x7F) : 2;
+		if (pos + 2 > frame.limit() || frame.get(pos) != INTEGER_TAG) {
+			throw new DecoderException("Invalid LDAP message ID!");
 		}
-		SocketChannel channel = (SocketChannel) key.channel();
-		requestBuffer.clear();
-		int len = channel.read(requestBuffer);
-		if (len == -1) {
-			throw new IOException();
+		return pos;
+	}
+
+	// --- WORKER TASK ---
+
+	private static final class DecodedRequest {
+
+		private final LdapMessage message;
+		private final boolean utf8;
+
+		// Result code of an undecodable search request (or 0)
+		private final int resultCode;
+
+		private DecodedRequest(LdapMessage message, boolean utf8,
+				int resultCode) {
+			this.message = message;
+			this.utf8 = utf8;
+			this.resultCode = resultCode;
 		}
-		if (len != 0) {
-			requestBuffer.flip();
-			byte[] packet = new byte[len];
-			requestBuffer.get(packet, 0, len);
-			if (bytes == null || bytes.length == 0) {
-				bytes = packet;
-				key.attach(bytes);
-			} else {
-				byte[] swap = new byte[bytes.length + packet.length];
-				System.arraycopy(bytes, 0, swap, 0, bytes.length);
-				System.arraycopy(packet, 0, swap, bytes.length, packet.length);
-				bytes = swap;
-				key.attach(bytes);
-			}
 
-			// Try to process packet
-			LdapMessageContainer container = new LdapMessageContainer();
+	}
+
+	private final class RequestProcessor implements Runnable {
+
+		private final SelectionKey key;
+		private final LinkedList requests;
+
+		private RequestProcessor(SelectionKey key, LinkedList requests) {
+			this.key = key;
+			this.requests = requests;
+		}
+
+		public final void run() {
+			Connection connection = (Connection) key.attachment();
 			try {
-				ByteBuffer buffer = ByteBuffer.wrap(bytes);
-				LdapDecoder decoder = new LdapDecoder();
-				decoder.decode(buffer, container);
-			} catch (DecoderException emptyStringException) {
-				String msg = emptyStringException.getMessage();
-				if (msg != null
-						&& (msg.indexOf("empty") != -1 || msg
-								.indexOf("transition") != -1)) {
-
-					// All contacts requested
-					int id = container.getMessageId();
-					SearchRequest search = new SearchRequest();
-					search.setMessageId(id);
-					LdapMessage ldap = new LdapMessage();
-					ldap.setMessageId(id);
-					ldap.setProtocolOP(search);
-					container.setLdapMessage(ldap);
-				} else {
-					throw emptyStringException;
+				Iterator i = requests.iterator();
+				while (i.hasNext()) {
+					DecodedRequest request = (DecodedRequest) i.next();
+					if (request.resultCode == 0) {
+						processRequest(connection, request.message,
+								request.utf8);
+					} else {
+						processError(connection, request.message,
+								request.resultCode);
+					}
 				}
+			} catch (Exception processingException) {
+				log.warn(processingException.getMessage(), processingException);
+				connection.failed = true;
 			}
 
-			// Process LDAP request
-			ByteBuffer response = processRequest(container.getLdapMessage(), !container.isGrammarEndAllowed());
-			key.attach(response);
-			key.interestOps(SelectionKey.OP_WRITE);
+			// Pass the response to the selector thread
+			synchronized (processed) {
+				processed.addLast(key);
+			}
+			selector.wakeup();
 		}
+
 	}
 
-	private boolean nativeCharsetLocked = false;
-	
-	private final ByteBuffer processRequest(LdapMessage request, boolean utf8)
-			throws Exception {
+	private final void registerResponses() {
+		SelectionKey key;
+		Connection connection;
+		for (;;) {
+			synchronized (processed) {
+				if (processed.isEmpty()) {
+					return;
+				}
+				key = (SelectionKey) processed.removeFirst();
+			}
+			if (!key.isValid()) {
+				continue;
+			}
+			connection = (Connection) key.attachment();
+			if (connection.failed) {
+				closeConnection(key);
+			} else if (connection.pending.isEmpty()) {
+				connection.processing = false;
+				key.interestOps(SelectionKey.OP_READ);
+			} else {
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	// --- ENCODED ENTRIES ---
+
+	final void contactsLoaded(ContactIndex index) {
+		getEntryCache(index);
+	}
+
+	private final synchronized EntryCache getEntryCache(ContactIndex index) {
+		if (entryCache == null || entryCache.index != index) {
+			long started = System.currentTimeMillis();
+			entryCache = new EntryCache(index);
+			if (log.isDebugEnabled()) {
+				log.debug(index.contacts.length + " LDAP entries encoded in "
+						+ (System.currentTimeMillis() - started) + " msec.");
+			}
+		}
+		return entryCache;
+	}
+
+	// --- LDAP REQUEST PROCESSOR ---
+
+	private final void processRequest(Connection connection,
+			LdapMessage request, boolean utf8) throws Exception {
 		if (log.isDebugEnabled()) {
 			try {
 				String command = request.getMessageTypeName();
@@ -369,6 +598,7 @@ final class LDAPListener extends Thread {
 			}
 		}
 		LinkedList list = new LinkedList();
+		Control responseControl = null;
 		switch (request.getMessageType()) {
 		case LdapConstants.BIND_REQUEST:
 
@@ -395,204 +625,121 @@ final class LDAPListener extends Thread {
 		case LdapConstants.SEARCH_REQUEST:
 
 			// Switch back encoding
-			if (nativeCharsetLocked) {
+			if (connection.nativeCharsetLocked) {
 				utf8 = false;
 			}
-			
-			// Get search string
+
+			// Compile search filter
 			SearchRequest search = request.getSearchRequest();
-			Filter filter = search.getTerminalFilter();
-			String key = null;
+			Filter filter = search.getFilter();
 			if (filter == null) {
-				filter = search.getFilter();
-				if (filter == null) {
-					filter = search.getCurrentFilter();
-				}
+				filter = search.getCurrentFilter();
 			}
-			if (filter != null) {
-				if (filter instanceof SubstringFilter) {
-					SubstringFilter substringFilter = (SubstringFilter) filter;
-					ArrayList substrings = substringFilter.getAnySubstrings();
-					if (substrings != null && substrings.size() != 0) {
-						key = (String) substrings.get(0);
-					}
-				}
-				if (key == null) {
-					key = filter.toString();
-					if (key != null) {
-						if (key.charAt(0) == '*') {
-							key = key.substring(1);
-						}
-						if (key.charAt(key.length() - 1) == '*') {
-							key = key.substring(0, key.length() - 1);
-						}
-						if (key.indexOf('=') != -1) {
-							key = key.substring(key.indexOf('=') + 1);
-						}
-					}
-				}
-				if (key != null) {
-					if (key.length() == 0) {
-						key = null;
-					} else {
-
-						// Decode UTF8 chars
-						try {
-							byte[] bytes = key.getBytes(PLATFORM_ENCODING);
-							key = StringUtils.decodeToString(bytes,
-									StringUtils.UTF_8);
-							if (utf8) {
-								bytes = key.getBytes(PLATFORM_ENCODING);
-								key = StringUtils.decodeToString(bytes,
-										StringUtils.UTF_8);
-							}
-						} catch (Exception ignored) {
-						}
-
-						if (log.isDebugEnabled()) {
-							log.debug("LDAP search filter (" + key
-									+ ") readed.");
-						}
-						key = key.toLowerCase();
-
-						// All contacts requested
-						if (key.equals("@")) {
-							key = null;
-						}
-					}
-				}
+			ContactFilter contactFilter = ContactFilter.compile(filter, utf8);
+			String key = contactFilter.toString();
+			if (log.isDebugEnabled()) {
+				log.debug("LDAP search filter (" + key + ") readed.");
 			}
 
 			// Handle native charset lock
-			if (key != null && !utf8) {
-				nativeCharsetLocked = true;
-			}
-			
-			// Find entry
-			GmailContact[] contacts = loader.getContacts();
-			if (contacts != null) {
-				GmailContact contact;
-				for (int n = 0; n < contacts.length; n++) {
-					contact = contacts[n];
-					if (key != null
-							&& contact.name.toLowerCase().indexOf(key) == -1) {
-						continue;
-					}
-
-					// Add search entry
-					SearchResultEntry entry = new SearchResultEntry();
-					entry.setMessageId(request.getMessageId());
-					LdapDN name;
-					try {
-						name = new LdapDN("CN=" + encode(contact.name, utf8));
-					} catch (Exception badDN) {
-						log.debug(badDN);
-						continue;
-					}
-					entry.setObjectName(name);
-
-					BasicAttributes partialAttributeList = new BasicAttributes(
-							true);
-					partialAttributeList.put(new BasicAttribute("cn", encode(
-							contact.name, utf8)));
-					if (contact.email.length() != 0) {
-
-						// first email
-						partialAttributeList.put(new BasicAttribute("mail",
-								encode(contact.email, utf8)));
-					}
-					if (contact.notes.length() != 0) {
-
-						// notes
-						partialAttributeList.put(new BasicAttribute("comment",
-								encode(contact.notes, utf8)));
-						partialAttributeList.put(new BasicAttribute(
-								"description", encode(contact.notes, utf8)));
-					}
-					String mobile = contact.mobile;
-					if (mobile.length() == 0) {
-						mobile = contact.phone;
-					}
-					if (mobile.length() != 0) {
-
-						// mobile phone
-						partialAttributeList.put(new BasicAttribute(
-								"telephonenumber", encode(mobile, utf8)));
-					}
-					if (contact.phone.length() != 0) {
+			if (!utf8 && contactFilter.hasValues()) {
+				connection.nativeCharsetLocked = true;
+			}
 
-						// homePhone
-						partialAttributeList.put(new BasicAttribute(
-								"homePhone", encode(contact.phone, utf8)));
-					}
-					if (contact.mail.length() != 0) {
-
-						// second email
-						partialAttributeList.put(new BasicAttribute(
-								"mozillaSecondEmail",
-								encode(contact.mail, utf8)));
-						partialAttributeList.put(new BasicAttribute(
-								"mailAlternateAddress", encode(contact.mail,
-										utf8)));
-					}
-					if (contact.address.length() != 0) {
-
-						// postal address
-						partialAttributeList
-								.put(new BasicAttribute("postalAddress",
-										encode(contact.address, utf8)));
-						partialAttributeList.put(new BasicAttribute(
-								"homePostalAddress", encode(contact.address,
-										utf8)));
-						partialAttributeList.put(new BasicAttribute(
-								"homeStreet", encode(contact.address, utf8)));
-					}
-					if (contact.pager.length() != 0) {
+			// Read paged results control
+			PagingRequest paging = PagingRequest.getPagingRequest(request);
+			int resultCode = 0;
+			int start = 0;
+			int end = 0;
+			byte[][] entries = null;
+			boolean limited = false;
+			if (paging != null && paging.cookie.length != 0) {
+
+				// Next page requested
+				if (connection.pagedKey == null
+						|| !connection.pagedKey.equals(key)
+						|| paging.getCookieValue() != connection.pagedCookie) {
+					log.debug("Invalid paged results cookie!");
+					connection.clearPaging();
+					resultCode = OPERATIONS_ERROR;
+				} else {
+					entries = connection.pagedEntries;
+					start = connection.pagedOffset;
+					end = connection.pagedEnd;
+					limited = connection.pagedLimited;
+				}
+			} else {
 
-						// pager
-						partialAttributeList.put(new BasicAttribute("pager",
-								encode(contact.pager, utf8)));
+				// Find entries
+				ContactIndex index = loader.getContactIndex();
+				if (index != null) {
+					EntryCache cache = getEntryCache(index);
+					entries = cache.getResult(key, utf8);
+					if (entries == null) {
+						entries = cache.getEntries(contactFilter
+								.evaluate(index), utf8);
+						cache.putResult(key, utf8, entries);
 					}
-					if (contact.fax.length() != 0) {
-
-						// fax
-						partialAttributeList.put(new BasicAttribute(
-								"facsimileTelephoneNumber", encode(contact.fax,
-										utf8)));
-						if (contact.pager.length() == 0) {
-							partialAttributeList.put(new BasicAttribute(
-									"pager", encode(contact.fax, utf8)));
-						}
+					end = entries.length;
+					int sizeLimit = search.getSizeLimit();
+					if (sizeLimit > 0 && end > sizeLimit) {
+						end = sizeLimit;
+						limited = true;
 					}
-					if (contact.title.length() != 0) {
-
-						// title
-						partialAttributeList.put(new BasicAttribute("title",
-								encode(contact.title, utf8)));
-					}
-					if (contact.company.length() != 0) {
+				}
+			}
 
-						// company
-						partialAttributeList.put(new BasicAttribute("company",
-								encode(contact.company, utf8)));
-						partialAttributeList.put(new BasicAttribute("o",
-								encode(contact.company, utf8)));
-					}
-					entry.setPartialAttributeList(partialAttributeList);
-					list.addLast(entry);
+			// Select page
+			Control pagingResponse = null;
+			boolean lastPage = true;
+			if (paging != null && resultCode == 0) {
+				int total = end;
+				if (paging.size == 0) {
+
+					// Paged search abandoned
+					end = start;
+					connection.clearPaging();
+				} else if (end - start > paging.size) {
+
+					// Store the rest of the result
+					end = start + paging.size;
+					connection.pagedKey = key;
+					connection.pagedEntries = entries;
+					connection.pagedOffset = end;
+					connection.pagedEnd = total;
+					connection.pagedLimited = limited;
+					connection.pagedCookie++;
+					lastPage = false;
+					pagingResponse = PagingRequest.createResponse(total,
+							connection.pagedCookie);
+				} else {
+					connection.clearPaging();
+				}
+				if (pagingResponse == null) {
+					pagingResponse = PagingRequest.createResponse(total, -1);
 				}
 			}
 
+			// Stream entries
+			if (end > start) {
+				connection.pending.addLast(new EntryStream(entries, start, end,
+						request.getMessageId()));
+			}
+			if (resultCode == 0 && limited && lastPage) {
+				resultCode = SIZE_LIMIT_EXCEEDED;
+			}
+
 			// Search done
 			if (log.isDebugEnabled()) {
-				log.debug("Found " + list.size() + " contacts.");
+				log.debug("Found " + (end - start) + " contacts.");
 			}
 			SearchResultDone done = new SearchResultDone();
 			done.setMessageId(request.getMessageId());
 			result = new LdapResult();
-			result.setResultCode(0);
+			result.setResultCode(resultCode);
 			done.setLdapResult(result);
 			list.addLast(done);
+			responseControl = pagingResponse;
 			break;
 
 		case LdapConstants.ABANDON_REQUEST:
@@ -617,7 +764,6 @@ final class LDAPListener extends Thread {
 		}
 		log.debug("LDAP request processed.");
 		if (!list.isEmpty()) {
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
 			Iterator responses = list.iterator();
 			while (responses.hasNext()) {
 				LdapMessage response = (LdapMessage) responses.next();
@@ -627,40 +773,55 @@ final class LDAPListener extends Thread {
 				LdapMessage message = new LdapMessage();
 				message.setProtocolOP(response);
 				message.setMessageId(request.getMessageId());
-				ByteBuffer bb = message.encode(null);
-				byte[] a = bb.array();
-				out.write(a);
+				if (responseControl != null && !responses.hasNext()) {
+					message.addControl(responseControl);
+				}
+				connection.pending.addLast(ByteBuffer.wrap(message
+						.encode(null).array()));
 			}
-			byte[] bytes = out.toByteArray();
-			return ByteBuffer.wrap(bytes);
 		}
-		return null;
 	}
 
-	private static final String encode(String text, boolean utf8)
-			throws Exception {
-		if (utf8) {
-			return new String(text.getBytes("UTF8"), PLATFORM_ENCODING);
-		}
-		return text;
+	private static final void processError(Connection connection,
+			LdapMessage request, int resultCode) throws Exception {
+		SearchResultDone done = new SearchResultDone();
+		done.setMessageId(request.getMessageId());
+		LdapResult result = new LdapResult();
+		result.setResultCode(resultCode);
+		result.setErrorMessage("Unsupported search filter!");
+		done.setLdapResult(result);
+		LdapMessage message = new LdapMessage();
+		message.setProtocolOP(done);
+		message.setMessageId(request.getMessageId());
+		connection.pending.addLast(ByteBuffer.wrap(message.encode(null)
+				.array()));
 	}
 
+	// --- LDAP RESPONSE WRITER ---
+
 	private static final void processWrite(SelectionKey key) throws Exception {
-		Object att = key.attachment();
-		if (att == null) {
-			Thread.sleep(100);
-			return;
-		}
-		if (att instanceof ByteBuffer) {
-			ByteBuffer buffer = (ByteBuffer) att;
-			if (!buffer.hasRemaining()) {
-				key.attach(new byte[0]);
-				key.interestOps(SelectionKey.OP_READ);
-				return;
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer;
+		for (;;) {
+			buffer = connection.output;
+			if (buffer == null || !buffer.hasRemaining()) {
+				if (!connection.nextResponse()) {
+					break;
+				}
+				continue;
 			}
-			SocketChannel channel = (SocketChannel) key.channel();
 			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+
+				// Socket buffer is full
+				return;
+			}
 		}
+
+		// Responses sent - wait for the next request
+		connection.processing = false;
+		key.interestOps(SelectionKey.OP_READ);
 	}
 
 	// --- STOP SERVICE ---
@@ -0,0 +1,171 @@
+//
+// GCALDaemon is an OS-independent Java program that offers two-way
+// synchronization between Google Calendar and various iCalalendar (RFC 2445)
+// compatible calendar applications (Sunbird, Rainlendar, iCal, Lightning, etc).
+//
+// Apache License
+// Version 2.0, January 2004
+// http://www.apache.org/licenses/
+//
+// Project home:
+// http://gcaldaemon.sourceforge.net
+//
+package org.gcaldaemon.core.ldap;
+
+import java.util.ArrayList;
+
+import org.apache.directory.shared.ldap.codec.Control;
+import org.apache.directory.shared.ldap.codec.LdapMessage;
+
+/**
+ * Simple Paged Results control (RFC 2696). The value of the control is a BER
+ * sequence of the page size (or the estimated result size in the response)
+ * and an opaque cookie. The cookie is a 4 byte counter of the connection (an
+ * empty cookie marks the last page).
+ *
+ * Created: Jan 03, 2007 12:50:56 PM
+ *
+ * @author Andras Berkes
+ */
+final class PagingRequest {
+
+	// --- CONSTANTS ---
+
+	static final String PAGED_RESULTS_OID = "1.2.840.113556.1.4.319";
+
+	private static final byte SEQUENCE_TAG = 0x30;
+	private static final byte INTEGER_TAG = 0x02;
+	private static final byte OCTET_STRING_TAG = 0x04;
+
+	// --- VARIABLES ---
+
+	final int size;
+	final byte[] cookie;
+
+	// --- CONSTRUCTOR ---
+
+	private PagingRequest(int size, byte[] cookie) {
+		this.size = size;
+		this.cookie = cookie;
+	}
+
+	// --- COOKIE ---
+
+	final int getCookieValue() {
+		if (cookie.length != 4) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = value << 8 | cookie[i] & 0xFF;
+		}
+		return value;
+	}
+
+	// --- CONTROL DECODER ---
+
+	/**
+	 * Returns the paged results control of a search request.
+	 *
+	 * @param request
+	 *            LDAP message
+	 *
+	 * @return control (or null, if the request is not paged)
+	 */
+	static final PagingRequest getPagingRequest(LdapMessage request)
+			throws Exception {
+		ArrayList controls = request.getControls();
+		if (controls == null) {
+			return null;
+		}
+		Control control;
+		for (int i = 0; i < controls.size(); i++) {
+			control = (Control) controls.get(i);
+			if (!PAGED_RESULTS_OID.equals(control.getControlType())) {
+				continue;
+			}
+			Object value = control.getControlValue();
+			if (!(value instanceof byte[])) {
+				throw new IllegalArgumentException(
+						"Invalid paged results control!");
+			}
+			byte[] bytes = (byte[]) value;
+
+			// realSearchControlValue ::= SEQUENCE { size INTEGER, cookie
+			// OCTET STRING }
+			int[] header = readHeader(bytes, 0, SEQUENCE_TAG);
+			header = readHeader(bytes, header[0], INTEGER_TAG);
+			int size = 0;
+			for (int n = 0; n < header[1]; n++) {
+				size = size << 8 | bytes[header[0] + n] & 0xFF;
+			}
+			header = readHeader(bytes, header[0] + header[1],
+					OCTET_STRING_TAG);
+			byte[] cookie = new byte[header[1]];
+			System.arraycopy(bytes, header[0], cookie, 0, cookie.length);
+			return new PagingRequest(Math.max(0, size), cookie);
+		}
+		return null;
+	}
+
+	private static final int[] readHeader(byte[] bytes, int pos, byte tag) {
+
+		// Returns the position and the length of the value
+		if (pos + 2 > bytes.length || bytes[pos] != tag) {
+			throw new IllegalArgumentException(
+					"Invalid paged results control!");
+		}
+		int len = bytes[pos + 1] & 0xFF;
+		pos += 2;
+		if (len > 0x7F) {
+			int count = len & 0x7F;
+			if (count > 3 || pos + count > bytes.length) {
+				throw new IllegalArgumentException(
+						"Invalid paged results control!");
+			}
+			len = 0;
+			for (int i = 0; i < count; i++) {
+				len = len << 8 | bytes[pos++] & 0xFF;
+			}
+		}
+		if (pos + len > bytes.length) {
+			throw new IllegalArgumentException(
+					"Invalid paged results control!");
+		}
+		return new int[] { pos, len };
+	}
+
+	// --- CONTROL ENCODER ---
+
+	/**
+	 * Creates the paged results control of a search response.
+	 *
+	 * @param total
+	 *            estimated result size
+	 * @param cookie
+	 *            cookie of the next page (or -1, if this is the last page)
+	 *
+	 * @return response control
+	 */
+	static final Control createResponse(int total, int cookie) {
+		int cookieLength = cookie == -1 ? 0 : 4;
+		byte[] bytes = new byte[10 + cookieLength];
+		bytes[0] = SEQUENCE_TAG;
+		bytes[1] = (byte) (8 + cookieLength);
+		bytes[2] = INTEGER_TAG;
+		bytes[3] = 4;
+		for (int i = 0; i < 4; i++) {
+			bytes[4 + i] = (byte) (total >> ((3 - i) * 8));
+		}
+		bytes[8] = OCTET_STRING_TAG;
+		bytes[9] = (byte) cookieLength;
+		for (int i = 0; i < cookieLength; i++) {
+			bytes[10 + i] = (byte) (cookie >> ((3 - i) * 8));
+		}
+		Control control = new Control();
+		control.setControlType(PAGED_RESULTS_OID);
+		control.setControlValue(bytes);
+		return control;
+	}
+
+}
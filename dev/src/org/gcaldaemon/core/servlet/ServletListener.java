@@ -14,8 +14,16 @@ package org.gcaldaemon.core.servlet;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
@@ -25,6 +33,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.gcaldaemon.core.CachedCalendar;
 import org.gcaldaemon.core.Configurator;
 import org.gcaldaemon.core.Request;
 import org.gcaldaemon.core.Response;
@@ -40,16 +49,103 @@ import org.gcaldaemon.core.http.HTTPListener;
  */
 public final class ServletListener extends HTTPListener {
 
+	// --- CONSTANTS ---
+
+	private static final int MAX_QUEUED_REQUESTS = 100;
+	private static final long MAX_CALENDAR_AGE = 3600000L;
+
 	// --- LOGGER ---
 
 	private static final Log log = LogFactory.getLog(ServletListener.class);
 
+	// --- SERVLET 3.0 ASYNC API (INVOKED BY REFLECTION) ---
+
+	private static final Method isAsyncSupported;
+	private static final Method startAsync;
+	private static final Method setTimeout;
+	private static final Method complete;
+
+	static {
+		Method[] methods = new Method[4];
+		try {
+			Class requestClass = Class.forName("javax.servlet.ServletRequest");
+			Class contextClass = Class.forName("javax.servlet.AsyncContext");
+			methods[0] = requestClass.getMethod("isAsyncSupported",
+					new Class[0]);
+			methods[1] = requestClass.getMethod("startAsync", new Class[0]);
+			methods[2] = contextClass.getMethod("setTimeout",
+					new Class[] { long.class });
+			methods[3] = contextClass.getMethod("complete", new Class[0]);
+		} catch (Throwable servlet24) {
+
+			// Servlet 2.x container
+			methods = new Method[4];
+		}
+		isAsyncSupported = methods[0];
+		startAsync = methods[1];
+		setTimeout = methods[2];
+		complete = methods[3];
+	}
+
+	// --- ASYNC PROCESSING ---
+
+	private final ThreadPoolExecutor executor;
+	private final Timer timeoutTimer;
+	private final long asyncTimeout;
+
 	// --- CONSTRUCTOR ---
 
 	public ServletListener(ThreadGroup mainGroup, Configurator configurator)
 			throws Exception {
 		super(mainGroup, configurator);
 
+		// Init async request processor
+		if (configurator.getConfigProperty(Configurator.SERVLET_ASYNC_ENABLED,
+				false)) {
+			if (startAsync == null) {
+				log.warn("Asynchronous request processing requires "
+						+ "Servlet 3.0 container!");
+				executor = null;
+				timeoutTimer = null;
+				asyncTimeout = 0;
+			} else {
+				long timeout = configurator.getConfigProperty(
+						Configurator.SERVLET_ASYNC_TIMEOUT, 30000L);
+				if (timeout < 1000L) {
+					log.warn("The enabled minimal async timeout is '1 sec'!");
+					timeout = 1000L;
+				}
+				asyncTimeout = timeout;
+				int threads = (int) configurator.getConfigProperty(
+						Configurator.SERVLET_ASYNC_THREADS, 4L);
+				if (threads < 1) {
+					threads = 1;
+				}
+				final ThreadGroup group = mainGroup;
+				executor = new ThreadPoolExecutor(threads, threads, 60,
+						TimeUnit.SECONDS, new ArrayBlockingQueue(
+								MAX_QUEUED_REQUESTS), new ThreadFactory() {
+
+							private int counter;
+
+							public final synchronized Thread newThread(
+									Runnable task) {
+								Thread thread = new Thread(group, task,
+										"Servlet worker " + (++counter));
+								thread.setDaemon(true);
+								return thread;
+							}
+
+						});
+				timeoutTimer = new Timer(true);
+				log.info("Asynchronous request processing enabled.");
+			}
+		} else {
+			executor = null;
+			timeoutTimer = null;
+			asyncTimeout = 0;
+		}
+
 		// Log start (serlet mode)
 		log.info("GCALDaemon started successfully.");
 	}
@@ -132,6 +228,24 @@ public final class ServletListener extends HTTPListener {
 				}
 			}
 
+			// Hand off the request to the daemon's executor
+			if (executor != null && isAsyncSupported(req)) {
+				Object asyncContext = startAsync.invoke(req, new Object[0]);
+				setTimeout.invoke(asyncContext, new Object[] { Long
+						.valueOf(asyncTimeout + 5000L) });
+				AsyncRequest task = new AsyncRequest(asyncContext, request,
+						rsp, getMethod);
+				timeoutTimer.schedule(task.timer, asyncTimeout);
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException overloaded) {
+					log.warn("Too many pending requests!");
+					task.timer.cancel();
+					task.timeout();
+				}
+				return;
+			}
+
 			// Redirect request to superclass
 			Response response;
 			if (getMethod) {
@@ -139,55 +253,174 @@ public final class ServletListener extends HTTPListener {
 			} else {
 				response = doPut(request);
 			}
+			writeResponse(request, response, rsp);
+
+		} catch (Exception processingError) {
+			throw new ServletException("Unable to process " + req.getMethod()
+					+ " request!", processingError);
+		}
+	}
 
-			// Set response status
-			rsp.setStatus(response.status);
+	private final void writeResponse(Request request, Response response,
+			HttpServletResponse rsp) throws Exception {
 
-			// Add unauthorized header and realm
-			if (response.status == STATUS_UNAUTHORIZED) {
-				String realm = null;
-				int s, e = request.url.indexOf("%40");
-				if (e != -1) {
-					s = request.url.lastIndexOf('/', e);
-					if (s != -1) {
-						realm = request.url.substring(s + 1, e).replace('.',
-								' ');
-					}
+		// Set response status
+		rsp.setStatus(response.status);
+
+		// Add unauthorized header and realm
+		if (response.status == STATUS_UNAUTHORIZED) {
+			String realm = null;
+			int s, e = request.url.indexOf("%40");
+			if (e != -1) {
+				s = request.url.lastIndexOf('/', e);
+				if (s != -1) {
+					realm = request.url.substring(s + 1, e).replace('.',
+							' ');
 				}
-				if (realm == null) {
-					s = request.url.indexOf("private");
-					if (s != -1) {
-						e = request.url.indexOf('/', s + 7);
-						if (e != -1) {
-							realm = request.url.substring(s + 8, e);
-						}
+			}
+			if (realm == null) {
+				s = request.url.indexOf("private");
+				if (s != -1) {
+					e = request.url.indexOf('/', s + 7);
+					if (e != -1) {
+						realm = request.url.substring(s + 8, e);
 					}
 				}
-				if (realm == null || realm.length() == 0) {
-					realm = "Google Account";
+			}
+			if (realm == null || realm.length() == 0) {
+				realm = "Google Account";
+			}
+			rsp.addHeader("WWW-Authenticate", "Basic realm=\"" + realm
+					+ '\"');
+		}
+
+		// Write body
+		ServletOutputStream out = null;
+		try {
+			out = rsp.getOutputStream();
+			if (response.body != null) {
+				out.write(response.body);
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (Exception ignored) {
 				}
-				rsp.addHeader("WWW-Authenticate", "Basic realm=\"" + realm
-						+ '\"');
 			}
+		}
+	}
+
+	private static final boolean isAsyncSupported(HttpServletRequest req) {
+		try {
+			return ((Boolean) isAsyncSupported.invoke(req, new Object[0]))
+					.booleanValue();
+		} catch (Exception unsupported) {
+			return false;
+		}
+	}
+
+	// --- ASYNC REQUEST CONTAINER ---
+
+	private final class AsyncRequest implements Runnable {
+
+		private final Object asyncContext;
+		private final Request request;
+		private final HttpServletResponse rsp;
+		private final boolean getMethod;
+
+		private final TimerTask timer = new TimerTask() {
+
+			public final void run() {
+				timeout();
+			}
+
+		};
 
-			// Write body
-			ServletOutputStream out = null;
+		private boolean completed;
+
+		private AsyncRequest(Object asyncContext, Request request,
+				HttpServletResponse rsp, boolean getMethod) {
+			this.asyncContext = asyncContext;
+			this.request = request;
+			this.rsp = rsp;
+			this.getMethod = getMethod;
+		}
+
+		public final void run() {
+			Response response = null;
 			try {
-				out = rsp.getOutputStream();
-				out.write(response.body);
-			} finally {
-				if (out != null) {
+
+				// Redirect request to superclass
+				if (getMethod) {
+					response = doGet(request);
+				} else {
+					response = doPut(request);
+				}
+			} catch (Exception processingError) {
+				log.warn("Unable to process request!", processingError);
+			}
+			timer.cancel();
+			finish(response);
+		}
+
+		private final void timeout() {
+			Response response = new Response();
+			if (getMethod) {
+
+				// Use the last cached calendar (if it's not too old)
+				CachedCalendar calendar = configurator
+						.getLastCalendar(request.url);
+				long now = System.currentTimeMillis();
+				if (calendar == null
+						|| now - calendar.lastModified > MAX_CALENDAR_AGE) {
+					response.status = STATUS_SERVICE_UNAVAILABLE;
+				} else {
+					log.debug("Request timed out, returning cached calendar ("
+							+ request.url + ")...");
+					response.status = STATUS_OK;
 					try {
-						out.close();
-					} catch (Exception ignored) {
+						response.body = calendar.toByteArray();
+					} catch (Exception invalidCalendar) {
+						response.status = STATUS_SERVICE_UNAVAILABLE;
 					}
 				}
+			} else {
+
+				// Not saved yet (or rejected) - the client should retry
+				response.status = STATUS_SERVICE_UNAVAILABLE;
 			}
+			finish(response);
+		}
 
-		} catch (Exception processingError) {
-			throw new ServletException("Unable to process " + req.getMethod()
-					+ " request!", processingError);
+		private final void finish(Response response) {
+			synchronized (this) {
+				if (completed) {
+					return;
+				}
+				completed = true;
+			}
+			try {
+				if (response == null) {
+					rsp.setStatus(STATUS_INTERNAL_ERROR);
+				} else {
+					if (response.status == STATUS_SERVICE_UNAVAILABLE) {
+						response.body = StringUtils.encodeString(
+								"ERROR 503\r\n\r\nCalendar is not available: "
+										+ request.url, StringUtils.US_ASCII);
+					}
+					writeResponse(request, response, rsp);
+				}
+			} catch (Exception writeError) {
+				log.warn("Unable to write response!", writeError);
+			} finally {
+				try {
+					complete.invoke(asyncContext, new Object[0]);
+				} catch (Exception ignored) {
+				}
+			}
 		}
+
 	}
 
 	// --- PRIVATE UTILITIES ---